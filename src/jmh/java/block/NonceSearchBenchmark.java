@@ -0,0 +1,78 @@
+package block;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.openjdk.jmh.annotations.*;
+import utils.ByteUtil;
+import utils.ShaTwoFiftySix;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of trying one nonce with a copied {@code SHA256Digest}, as {@code Block.findValidNonce} used to
+ * do, against {@code NonceHasher} and {@code MultiNonceHasher}. The kernel benchmarks search a target no hash meets,
+ * and report the time per nonce. Run with {@code gradle jmh}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NonceSearchBenchmark {
+    // About the size of a serialized block with two small transactions
+    @Param({"400"})
+    public int prefixLength;
+
+    private SHA256Digest midstate;
+    private byte[] nonce;
+    private byte[] hash;
+    private NonceHasher hasher;
+    private NonceHasher scalarKernel;
+    private MultiNonceHasher multiBufferKernel;
+    private int[] impossibleTarget;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        byte[] prefix = new byte[prefixLength];
+        random.nextBytes(prefix);
+        nonce = new byte[Block.NONCE_SIZE_IN_BYTES];
+        random.nextBytes(nonce);
+        hash = new byte[ShaTwoFiftySix.HASH_SIZE_IN_BYTES];
+
+        midstate = new SHA256Digest();
+        midstate.update(prefix, 0, prefix.length);
+        hasher = new NonceHasher(prefix, nonce);
+        scalarKernel = new NonceHasher(prefix, nonce);
+        multiBufferKernel = new MultiNonceHasher(prefix, nonce);
+        impossibleTarget = new int[8];
+    }
+
+    @Benchmark
+    public boolean copiedDigest() {
+        SHA256Digest copy = new SHA256Digest(midstate);
+        ByteUtil.addOne(nonce);
+        copy.update(nonce, 0, nonce.length);
+        copy.doFinal(hash, 0);
+        return ShaTwoFiftySix.create(hash).get().checkHashZeros(2);
+    }
+
+    @Benchmark
+    public boolean nonceHasher() {
+        hasher.increment();
+        return hasher.hasLeadingZeroBytes(2);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MultiNonceHasher.LANES)
+    public boolean scalarKernel() {
+        return scalarKernel.search(impossibleTarget, MultiNonceHasher.LANES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MultiNonceHasher.LANES)
+    public boolean multiBufferKernel() {
+        return multiBufferKernel.search(impossibleTarget, MultiNonceHasher.LANES);
+    }
+}
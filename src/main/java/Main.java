@@ -1,3 +1,4 @@
+import block.BlockChain;
 import cli.ClientInterface;
 import com.beust.jcommander.JCommander;
 import com.google.inject.AbstractModule;
@@ -10,10 +11,13 @@ import crypto.ECDSAPublicKey;
 import jcommander.CommandClient;
 import jcommander.CommandMiner;
 import jcommander.CommandNode;
+import jcommander.CommandRemoteMiner;
 import jcommander.CommandWebserver;
 import network.Miner;
 import network.Node;
+import network.RemoteMiner;
 import server.Application;
+import utils.Config;
 import utils.DeserializationException;
 import utils.IOUtils;
 import utils.Log;
@@ -29,6 +33,8 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
 import java.util.logging.FileHandler;
 import java.util.stream.Collectors;
 
@@ -39,6 +45,7 @@ public class Main {
         CommandClient cc = new CommandClient();
         CommandMiner cm = new CommandMiner();
         CommandNode cn = new CommandNode();
+        CommandRemoteMiner crm = new CommandRemoteMiner();
         CommandWebserver cw = new CommandWebserver();
 
         JCommander jc = new JCommander();
@@ -46,6 +53,7 @@ public class Main {
         jc.addCommand("client", cc);
         jc.addCommand("miner", cm);
         jc.addCommand("node", cn);
+        jc.addCommand("remote-miner", crm);
         jc.addCommand("webserver", cw);
 
         if (args.length == 0) {
@@ -78,6 +86,14 @@ public class Main {
                         || !runMiner(nodeProp)) {
                     System.exit(1);
                 }
+                break;
+            }
+            case "remote-miner": {
+                Config.setMultiBufferMining(crm.multiBuffer);
+                if (!runRemoteMiner(crm.nodeAddress)) {
+                    System.exit(1);
+                }
+                break;
             }
             case "client": {
                 injector.getInstance(ClientInterface.class).startInterface();
@@ -128,9 +144,25 @@ public class Main {
     }
 
     private static boolean runMiner(Properties prop) {
+        Config.setMultiBufferMining(Boolean.parseBoolean(prop.getProperty("multiBufferMining", "false")));
         return runNode(prop, true);
     }
 
+    private static boolean runRemoteMiner(String address) {
+        Optional<InetSocketAddress> optAddr = IOUtils.parseAddress(address);
+        if (!optAddr.isPresent()) {
+            System.err.println(String.format("Invalid address %s", address));
+            return false;
+        }
+        try {
+            new RemoteMiner(optAddr.get().getHostName(), optAddr.get().getPort()).run();
+            return true;
+        } catch (DeserializationException | IOException | InterruptedException e) {
+            System.err.println(String.format("Error: %s", e.getMessage()));
+            return false;
+        }
+    }
+
     private static boolean runNode(Properties prop) {
         return runNode(prop, false);
     }
@@ -146,6 +178,7 @@ public class Main {
 
     private static boolean runNodeWithThrowing(Properties prop, boolean isMining)
             throws IOException {
+        configure(prop);
         int port = Integer.parseInt(IOUtils.getPropertyChecked(prop, "nodePort"));
         ECDSAPublicKey myPublic;
         ECDSAPrivateKey myPrivate;
@@ -161,6 +194,11 @@ public class Main {
             System.err.println(String.format("Error: %s", e.getMessage()));
             return false;
         }
+        if (BlockChain.hasLegacyBlocks(Paths.get(blockChainPath))) {
+            System.err.println(String.format("Error: %s holds blocks in the legacy one-file-per-block layout, which "
+                    + "can no longer be read. Move them away or use another blockChainPath.", blockChainPath));
+            return false;
+        }
 
         if (isMining) {
             node = new Miner(
@@ -207,6 +245,46 @@ public class Main {
         return true;
     }
 
+    /**
+     * Sets the tunables of {@code Config} that are given in {@code prop}. The others keep their defaults.
+     */
+    private static void configure(Properties prop) throws IOException {
+        configureInt(prop, "segmentSize", Config::setSegmentSize);
+        configureInt(prop, "utxoSnapshotInterval", Config::setUtxoSnapshotInterval);
+        configureInt(prop, "miningThreads", Config::setMiningThreads);
+        configureInt(prop, "miningStatsLogInterval", Config::setMiningStatsLogInterval);
+        configureInt(prop, "maxTemplateTransactions", Config::setMaxTemplateTransactions);
+        configureInt(prop, "maxTemplateBytes", Config::setMaxTemplateBytes);
+        configureInt(prop, "maxMempoolTransactions", Config::setMaxMempoolTransactions);
+        configureInt(prop, "maxOrphanTransactions", Config::setMaxOrphanTransactions);
+        configureLong(prop, "orphanExpiryMillis", Config::setOrphanExpiryMillis);
+        configureInt(prop, "signatureCacheSize", Config::setSignatureCacheSize);
+    }
+
+    private static void configureInt(Properties prop, String key, IntConsumer setter) throws IOException {
+        String value = prop.getProperty(key);
+        if (value == null) {
+            return;
+        }
+        try {
+            setter.accept(Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            throw new IOException("Property '" + key + "' is not a number.");
+        }
+    }
+
+    private static void configureLong(Properties prop, String key, LongConsumer setter) throws IOException {
+        String value = prop.getProperty(key);
+        if (value == null) {
+            return;
+        }
+        try {
+            setter.accept(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            throw new IOException("Property '" + key + "' is not a number.");
+        }
+    }
+
     private static Injector injector() {
         return Guice.createInjector(new Module());
     }
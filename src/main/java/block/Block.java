@@ -2,7 +2,7 @@ package block;
 
 
 import crypto.ECDSAPublicKey;
-import org.bouncycastle.crypto.digests.SHA256Digest;
+import transaction.SignatureCheck;
 import transaction.Transaction;
 import transaction.TxOut;
 import utils.*;
@@ -10,8 +10,11 @@ import utils.*;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
 
 /**
  * Represents a block of transactions in the ledger
@@ -20,42 +23,82 @@ public class Block extends HashCache implements Iterable<Transaction>, CanBeSeri
     private final static Log LOGGER = Log.forClass(Block.class);
     public final static Deserializer<Block> DESERIALIZER = new BlockDeserializer();
 
-    public final static int NUM_TRANSACTIONS_PER_BLOCK = 2;
+    // The number of pending transactions a miner waits for before it starts mining a block. Blocks may hold
+    // anywhere from none up to Config.maxBlockTransactions() transactions.
+    public final static int MIN_TRANSACTIONS_TO_MINE = 2;
     public final static int NONCE_SIZE_IN_BYTES = 128;
     public final static int REWARD_AMOUNT = 50000;
+    // Nonces tried between checks of whether to quit searching
+    private final static int SEARCH_BATCH_SIZE = 1 << 10;
 
     public final ShaTwoFiftySix previousBlockHash;
+    // Milliseconds since the epoch at which the block was created
+    public final long timestamp;
+    // The hash of the block must be at most this target
+    public final Target target;
     public final Transaction[] transactions;
     public final TxOut reward;
     public final byte[] nonce = new byte[NONCE_SIZE_IN_BYTES];
 
-    Block(ShaTwoFiftySix previousBlockHash, Transaction[] transactions, TxOut reward) {
+    Block(ShaTwoFiftySix previousBlockHash, long timestamp, Target target, Transaction[] transactions, TxOut reward) {
         this.previousBlockHash = previousBlockHash;
+        this.timestamp = timestamp;
+        this.target = target;
         this.transactions = transactions;
         this.reward = reward;
     }
 
     /**
-     * @return a genesis block
+     * @return a genesis block, with the initial target
      */
     public static Block genesis(ECDSAPublicKey rewardKey) {
-        return new Block(ShaTwoFiftySix.zero(), new Transaction[0], new TxOut(REWARD_AMOUNT, rewardKey));
+        return new Block(ShaTwoFiftySix.zero(), System.currentTimeMillis(), initialTarget(),
+                new Transaction[0], new TxOut(REWARD_AMOUNT, rewardKey));
     }
 
+    /**
+     * @return a block created now, with the initial target
+     */
     public static Block block(ShaTwoFiftySix previousBlockHash,
                               List<Transaction> transactions,
                               ECDSAPublicKey rewardKey) {
+        return block(previousBlockHash, System.currentTimeMillis(), initialTarget(), transactions, rewardKey);
+    }
+
+    /**
+     * @return a block created now, with the initial target
+     */
+    public static Block block(ShaTwoFiftySix previousBlockHash,
+                              Transaction[] transactions,
+                              ECDSAPublicKey rewardKey) {
+        return block(previousBlockHash, System.currentTimeMillis(), initialTarget(), transactions, rewardKey);
+    }
+
+    public static Block block(ShaTwoFiftySix previousBlockHash,
+                              long timestamp,
+                              Target target,
+                              List<Transaction> transactions,
+                              ECDSAPublicKey rewardKey) {
         Transaction[] transactionsArray = transactions.toArray(new Transaction[transactions.size()]);
-        return block(previousBlockHash, transactionsArray, rewardKey);
+        return block(previousBlockHash, timestamp, target, transactionsArray, rewardKey);
     }
 
     public static Block block(ShaTwoFiftySix previousBlockHash,
+                              long timestamp,
+                              Target target,
                               Transaction[] transactions,
                               ECDSAPublicKey rewardKey) {
-        if (transactions.length != NUM_TRANSACTIONS_PER_BLOCK) {
+        if (transactions.length > Config.maxBlockTransactions()) {
             throw new IllegalArgumentException("Invalid number of transactions");
         }
-        return new Block(previousBlockHash, transactions, new TxOut(REWARD_AMOUNT, rewardKey));
+        return new Block(previousBlockHash, timestamp, target, transactions, new TxOut(REWARD_AMOUNT, rewardKey));
+    }
+
+    /**
+     * @return The target of the genesis block, which holds until the first retarget
+     */
+    public static Target initialTarget() {
+        return Target.ofLeadingZeroBytes(Config.hashGoal());
     }
 
     /**
@@ -72,10 +115,22 @@ public class Block extends HashCache implements Iterable<Transaction>, CanBeSeri
 
     public void serializeWithoutNonce(DataOutputStream outputStream) throws IOException {
         previousBlockHash.writeTo(outputStream);
+        outputStream.writeLong(timestamp);
+        target.writeTo(outputStream);
         CanBeSerialized.serializeArray(outputStream, transactions);
         reward.ownerPubKey.serialize(outputStream);
     }
 
+    /**
+     * @return A copy of this block with {@code nonce} as its nonce. This block is left unchanged, so a template
+     * shared between threads can be copied safely.
+     */
+    public Block withNonce(byte[] nonce) {
+        Block block = new Block(previousBlockHash, timestamp, target, transactions, reward);
+        System.arraycopy(nonce, 0, block.nonce, 0, NONCE_SIZE_IN_BYTES);
+        return block;
+    }
+
     /**
      * Add one to the nonce byte array
      */
@@ -94,10 +149,11 @@ public class Block extends HashCache implements Iterable<Transaction>, CanBeSeri
 
     /**
      * Check that hashing the block with the current nonce does in fact result in a hash
-     * with hashGoalZeros number of leading zeros.
+     * that meets the block's target. Whether the target itself is right depends on the chain, see
+     * {@code BlockChain.verifyNonGenesisBlock}.
      */
     public boolean checkHash() {
-        return getShaTwoFiftySix().checkHashZeros(Config.hashGoal());
+        return target.isMetBy(getShaTwoFiftySix());
     }
 
     /**
@@ -133,27 +189,79 @@ public class Block extends HashCache implements Iterable<Transaction>, CanBeSeri
      * @return Whether we finished finding a valid nonce
      */
     public boolean findValidNonce(AtomicBoolean quit) throws IOException {
-        SHA256Digest digest = new SHA256Digest();
+        return findValidNonce(quit, 1);
+    }
+
+    /**
+     * Update the `nonce` of `this` to make the SHA-256 hash have the correct number of zeros, searching with
+     * {@code numThreads} threads. Each thread owns the nonces that start with its index, so no nonce is tried twice,
+     * and the first valid nonce found is kept.
+     *
+     * @param quit       Stops every thread when set
+     * @param numThreads The number of threads to search with
+     * @return Whether we finished finding a valid nonce
+     */
+    public boolean findValidNonce(AtomicBoolean quit, int numThreads) throws IOException {
         byte[] ser = ByteUtil.asByteArray(this::serializeWithoutNonce);
-        digest.update(ser, 0, ser.length);
-
-        byte[] hash = new byte[ShaTwoFiftySix.HASH_SIZE_IN_BYTES];
-        int hashGoal = Config.hashGoal();
-
-        while (!quit.get()) {
-            SHA256Digest copy = new SHA256Digest(digest);
-            nonceAddOne();
-            copy.update(nonce, 0, nonce.length);
-            copy.doFinal(hash, 0);
-            Optional<ShaTwoFiftySix> optSha = ShaTwoFiftySix.create(hash);
-            if (!optSha.isPresent()) {
-                LOGGER.severe("Invalid hash: %s", Arrays.toString(hash));
-                break;
-            } else if (optSha.get().checkHashZeros(hashGoal)) {
-                return true;
+
+        int[] targetWords = target.toWords();
+        if (numThreads <= 1) {
+            boolean found = searchNonce(ser, targetWords, nonce, quit::get);
+            invalidateCache();
+            return found;
+        }
+
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicReference<byte[]> winner = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            byte[] workerNonce = nonce.clone();
+            ByteBuffer.wrap(workerNonce).putInt(i);
+            Thread worker = new Thread(() -> {
+                if (searchNonce(ser, targetWords, workerNonce, () -> stop.get() || quit.get())
+                        && winner.compareAndSet(null, workerNonce)) {
+                    stop.set(true);
+                }
+            }, "NonceSearch-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        try {
+            for (Thread worker : workers) {
+                worker.join();
             }
+        } catch (InterruptedException e) {
+            stop.set(true);
+            Thread.currentThread().interrupt();
         }
-        return false;
+
+        byte[] found = winner.get();
+        if (found == null) {
+            return false;
+        }
+        System.arraycopy(found, 0, nonce, 0, NONCE_SIZE_IN_BYTES);
+        invalidateCache();
+        return true;
+    }
+
+    /**
+     * Increments {@code nonce} until the hash of {@code prefix} followed by it meets {@code target}, or
+     * {@code quit} returns true.
+     *
+     * @param prefix The serialization of a block without its nonce
+     * @param target The target of the block, as words
+     * @return Whether {@code nonce} is now valid
+     */
+    private static boolean searchNonce(byte[] prefix, int[] target, byte[] nonce, BooleanSupplier quit) {
+        NonceKernel kernel = NonceKernel.create(prefix, nonce);
+
+        boolean found = false;
+        while (!found && !quit.getAsBoolean()) {
+            found = kernel.search(target, SEARCH_BATCH_SIZE);
+        }
+        kernel.copyNonce(nonce);
+        return found;
     }
 
     /**
@@ -194,16 +302,23 @@ public class Block extends HashCache implements Iterable<Transaction>, CanBeSeri
             return Optional.empty();
         } else if (this.reward.value != REWARD_AMOUNT) {
             return Optional.empty();
-        } else if (this.transactions.length != NUM_TRANSACTIONS_PER_BLOCK) {
+        } else if (this.transactions.length > Config.maxBlockTransactions()) {
+            return Optional.empty();
+        } else if (ByteUtil.asByteArray(this::serialize).length > Config.maxBlockBytes()) {
             return Optional.empty();
         }
 
+        // A sequential pass over the inputs and outputs, then the signatures, which are independent, in parallel
         UnspentTransactions copy = unspentTransactions.copy();
+        List<SignatureCheck> signatureChecks = new ArrayList<>();
         for (Transaction tx : transactions) {
-            if (!tx.verify(copy)) {
+            if (!tx.verifyWithoutSignatures(copy, signatureChecks)) {
                 return Optional.empty();
             }
         }
+        if (!SignatureCheck.verifyAll(signatureChecks)) {
+            return Optional.empty();
+        }
         copy.put(getShaTwoFiftySix(), 0, reward);
         return Optional.of(copy);
     }
@@ -213,7 +328,7 @@ public class Block extends HashCache implements Iterable<Transaction>, CanBeSeri
             return false;
         } else if (this.reward.value != REWARD_AMOUNT) {
             return false;
-        } else if (!this.checkHash()) {
+        } else if (!this.target.equals(initialTarget()) || !this.checkHash()) {
             return false;
         }
         return this.reward.ownerPubKey.equals(privilegedKey);
@@ -244,15 +359,14 @@ public class Block extends HashCache implements Iterable<Transaction>, CanBeSeri
         @Override
         public Block deserialize(DataInputStream input) throws DeserializationException, IOException {
             ShaTwoFiftySix hash = ShaTwoFiftySix.deserialize(input);
+            long timestamp = input.readLong();
+            Target target = Target.deserialize(input);
 
-            Transaction[] transactions = Deserializer.deserializeList(input, Transaction.DESERIALIZER)
+            Transaction[] transactions = Deserializer
+                    .deserializeList(input, Transaction.DESERIALIZER, Config.maxBlockTransactions() + 1)
                     .stream().toArray(Transaction[]::new);
-            if (transactions.length != 0 && transactions.length != NUM_TRANSACTIONS_PER_BLOCK) {
-                String msg = String.format("Invalid number of transactions: %d", transactions.length);
-                throw new DeserializationException(msg);
-            }
             ECDSAPublicKey rewardKey = ECDSAPublicKey.DESERIALIZER.deserialize(input);
-            Block block = new Block(hash, transactions, new TxOut(REWARD_AMOUNT, rewardKey));
+            Block block = new Block(hash, timestamp, target, transactions, new TxOut(REWARD_AMOUNT, rewardKey));
             IOUtils.fill(input, block.nonce);
             return block;
         }
@@ -1,53 +1,101 @@
 package block;
 
-import transaction.Transaction;
+import crypto.ECDSAPublicKey;
 import transaction.TxIn;
 import transaction.TxOut;
 import utils.*;
 
-import java.io.*;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * A {@code BlockChain} represents a forest of related {@code Blocks} which together represent a secure public ledger.
+ * <p>
+ * Only lightweight metadata for each {@code Block} is kept in memory. Full {@code Block}s are read on demand from the
+ * memory-mapped block store, and the most recently used ones are kept in a bounded cache.
  */
 public class BlockChain {
     private final static Log LOGGER = Log.forClass(BlockChain.class);
-    private final Map<ShaTwoFiftySix, BlockWrapper> blocks = new LinkedHashMap<>();
+    private final static String BLOCK_STORE_NAME = "blocks";
+    private final static String UNDO_STORE_NAME = "undo";
+    private final static String UTXO_DIRECTORY_NAME = "utxo";
+    private final static String SNAPSHOT_DIRECTORY_NAME = "snapshots";
+    public final static int DEFAULT_BLOCK_CACHE_SIZE = 256;
+    public final static int DEFAULT_UNDO_CACHE_SIZE = 1024;
+
+    // A block's timestamp must be at least the median of the timestamps of this many of its ancestors
+    final static int MEDIAN_TIME_BLOCKS = 11;
+    // A block's timestamp may be at most this far ahead of the local clock
+    final static long MAX_FUTURE_BLOCK_MILLIS = 2 * 60 * 60 * 1000;
+    // The target changes by at most this factor at each retarget
+    final static int MAX_RETARGET_FACTOR = 4;
+
+    private final Map<ShaTwoFiftySix, BlockMetadata> blocks = new LinkedHashMap<>();
+    private final Map<ShaTwoFiftySix, Block> blockCache;
+    private final Map<ShaTwoFiftySix, BlockUndo> undoCache;
+    private final SegmentedStore blockStore;
+    private final SegmentedStore undoStore;
+    private final UtxoDatabase utxoDatabase;
+    private final UtxoSnapshots snapshots;
 
     private Block currentHead;
     private int headDepth;
+
+    // The unspent transactions of currentHead, or null if they have not been computed yet
+    private UnspentTransactions headUnspentTxs;
     public final Path blockStorePath;
 
     public BlockChain(Path blockStorePath) {
+        this(blockStorePath, DEFAULT_BLOCK_CACHE_SIZE);
+    }
+
+    /**
+     * @param blockStorePath The directory in which to store {@code Block}s
+     * @param blockCacheSize The maximum number of deserialized {@code Block}s to keep in memory
+     */
+    BlockChain(Path blockStorePath, int blockCacheSize) {
         this.blockStorePath = blockStorePath;
+        this.blockCache = new BoundedMap<>(blockCacheSize, true);
+        this.undoCache = new BoundedMap<>(DEFAULT_UNDO_CACHE_SIZE, true);
+        SegmentedStore blockStore = null;
+        SegmentedStore undoStore = null;
         try {
-            Files.createDirectories(blockStorePath);
-            for (Path blockPath : Files.newDirectoryStream(blockStorePath)) {
-                Path filenamePath = blockPath.getFileName();
-                if (filenamePath == null) {
-                    continue;
-                }
-                String filename = filenamePath.toString();
-                ShaTwoFiftySix hash = ByteUtil.hexStringToByteArray(filename)
-                        .flatMap(ShaTwoFiftySix::create)
-                        .orElseThrow(() -> new DeserializationException("Invalid block filename: " + filename));
-                try (InputStream inputStream = new FileInputStream(blockPath.toFile())) {
-                    BlockWrapper wrapper = BlockWrapper.deserialize(new DataInputStream(inputStream));
-                    if (!wrapper.block.checkHash()) {
-                        LOGGER.severe("Loaded block has invalid hash: " + filename);
-                        continue;
-                    }
-                    blocks.put(hash, wrapper);
-                    updateHead(wrapper);
-                }
+            if (hasLegacyBlocks(blockStorePath)) {
+                throw new IOException(blockStorePath + " holds blocks in the legacy one-file-per-block layout, "
+                        + "whose headers have no timestamp or target and can no longer be read");
             }
-        } catch (DeserializationException | IOException e) {
-            LOGGER.severe("Unable to create blockchain directory: " + e.getMessage());
+            blockStore = new SegmentedStore(blockStorePath, BLOCK_STORE_NAME);
+            loadBlocks(blockStore);
+            undoStore = new SegmentedStore(blockStorePath, UNDO_STORE_NAME);
+        } catch (IOException e) {
+            LOGGER.severe("Unable to load blockchain: " + e.getMessage());
         }
+        this.blockStore = blockStore;
+        this.undoStore = undoStore;
+
+        UtxoDatabase utxoDatabase = null;
+        try {
+            utxoDatabase = new UtxoDatabase(blockStorePath.resolve(UTXO_DIRECTORY_NAME));
+        } catch (IOException e) {
+            LOGGER.severe("Unable to open UTXO database, unspent transactions will be kept in memory: %s",
+                    e.getMessage());
+        }
+        this.utxoDatabase = utxoDatabase;
+
+        UtxoSnapshots snapshots = null;
+        try {
+            snapshots = new UtxoSnapshots(blockStorePath.resolve(SNAPSHOT_DIRECTORY_NAME));
+        } catch (IOException e) {
+            LOGGER.severe("Unable to open UTXO snapshots: %s", e.getMessage());
+        }
+        this.snapshots = snapshots;
     }
 
     /**
@@ -60,6 +108,66 @@ public class BlockChain {
         }
     }
 
+    /**
+     * Loads the metadata of every stored {@code Block}. Reading, deserializing and re-hashing the blocks is spread
+     * across the common {@code ForkJoinPool}; the loaded blocks are then linked in a single deterministic pass, in
+     * order of depth and then of insertion, so that the resulting head does not depend on scheduling.
+     */
+    private void loadBlocks(SegmentedStore store) throws IOException {
+        long start = System.nanoTime();
+        List<ShaTwoFiftySix> hashes = store.keys();
+        List<LoadedBlock> loaded;
+        try {
+            loaded = hashes.parallelStream()
+                    .map(hash -> loadBlock(store, hash))
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        List<LoadedBlock> valid = loaded.stream()
+                .filter(Objects::nonNull)
+                .sorted(Comparator.comparingInt(l -> l.wrapper.depth))
+                .collect(Collectors.toList());
+        long bytes = 0;
+        for (LoadedBlock l : valid) {
+            Block block = l.wrapper.block;
+            bytes += l.location.length;
+            if (block.isGenesisBlock() ? l.wrapper.depth != 0 : !blocks.containsKey(block.previousBlockHash)) {
+                LOGGER.severe("Loaded block %s is not linked to the chain", block.getShaTwoFiftySix());
+                continue;
+            }
+            blocks.put(block.getShaTwoFiftySix(),
+                    new BlockMetadata(block.previousBlockHash, l.wrapper.depth, l.location));
+            updateHead(l.wrapper);
+        }
+
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        LOGGER.info("Loaded %d blocks (%d bytes) in %.3f s: %.0f blocks/s, %.2f MB/s",
+                blocks.size(), bytes, seconds, blocks.size() / seconds, bytes / seconds / (1 << 20));
+    }
+
+    /**
+     * @return The block stored with key {@code hash}, or {@code null} if it is invalid
+     */
+    private static LoadedBlock loadBlock(SegmentedStore store, ShaTwoFiftySix hash) {
+        try {
+            SegmentedStore.Location location = store.locationOf(hash)
+                    .orElseThrow(() -> new IOException("Block missing from block store: " + hash));
+            BlockWrapper wrapper = BlockWrapper.DESERIALIZER.deserialize(store.read(location));
+            if (!wrapper.block.checkHash() || !wrapper.block.getShaTwoFiftySix().equals(hash)) {
+                LOGGER.severe("Loaded block has invalid hash: %s", hash);
+                return null;
+            }
+            return new LoadedBlock(wrapper, location);
+        } catch (DeserializationException e) {
+            LOGGER.severe("Unable to load block %s: %s", hash, e.getMessage());
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     private void updateHead(BlockWrapper wrapper) {
         if (wrapper.depth > headDepth || currentHead == null) {
             currentHead = wrapper.block;
@@ -72,15 +180,48 @@ public class BlockChain {
      * @return The block corresponding to {@code hash} if it exists, or {@code Optional.empty} otherwise
      */
     public Optional<Block> getBlockWithHash(ShaTwoFiftySix hash) {
-        return getBlockWrapperWithHash(hash).map(wrapper -> wrapper.block);
-    }
-
-    private Optional<BlockWrapper> getBlockWrapperWithHash(ShaTwoFiftySix hash) {
-        return Optional.ofNullable(blocks.get(hash));
+        BlockMetadata metadata = blocks.get(hash);
+        if (metadata == null) {
+            return Optional.empty();
+        }
+        Block cached = blockCache.get(hash);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        try {
+            byte[] record = blockStore.read(metadata.location);
+            Block block = BlockWrapper.DESERIALIZER.deserialize(record).block;
+            if (!block.getShaTwoFiftySix().equals(hash)) {
+                LOGGER.severe("Stored block does not match its hash: %s", hash);
+                return Optional.empty();
+            }
+            blockCache.put(hash, block);
+            return Optional.of(block);
+        } catch (DeserializationException | IOException e) {
+            LOGGER.severe("Unable to read block %s: %s", hash, e.getMessage());
+            return Optional.empty();
+        }
     }
 
-    private Path pathForHash(ShaTwoFiftySix hash) {
-        return Paths.get(blockStorePath.toString(), hash.toString());
+    /**
+     * @return Whether {@code blockStorePath} holds blocks in the legacy one-file-per-block layout, where each block
+     * is stored in a file named by its hex hash. Those blocks predate the timestamp and target in block headers, so
+     * they cannot be read, nor converted, since that would change every hash in the chain.
+     */
+    public static boolean hasLegacyBlocks(Path blockStorePath) throws IOException {
+        if (!Files.isDirectory(blockStorePath)) {
+            return false;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(blockStorePath)) {
+            for (Path blockPath : stream) {
+                String filename = String.valueOf(blockPath.getFileName());
+                if (filename.length() == 2 * ShaTwoFiftySix.HASH_SIZE_IN_BYTES
+                        && ByteUtil.hexStringToByteArray(filename).isPresent()) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     /**
@@ -93,22 +234,16 @@ public class BlockChain {
      */
     public boolean insertBlock(Block b) {
         try {
-            Optional<BlockWrapper> optPrevBlock = getBlockWrapperWithHash(b.previousBlockHash);
+            Optional<BlockMetadata> optPrevBlock = Optional.ofNullable(blocks.get(b.previousBlockHash));
             if (optPrevBlock.isPresent()) {
-                BlockWrapper prevBlock = optPrevBlock.get();
-                BlockWrapper newBlock = new BlockWrapper(b, prevBlock.depth + 1);
-                blocks.put(b.getShaTwoFiftySix(), newBlock);
-                newBlock.writeToDisk(pathForHash(b.getShaTwoFiftySix()).toFile());
-                updateHead(newBlock);
+                BlockMetadata prevBlock = optPrevBlock.get();
+                writeBlock(new BlockWrapper(b, prevBlock.depth + 1));
                 return true;
             } else if (b.previousBlockHash.equals(ShaTwoFiftySix.zero())) { // genesis block
                 if (!blocks.isEmpty()) {
                     return false;
                 }
-                BlockWrapper newBlock = new BlockWrapper(b, 0);
-                blocks.put(b.getShaTwoFiftySix(), newBlock);
-                newBlock.writeToDisk(pathForHash(b.getShaTwoFiftySix()).toFile());
-                updateHead(newBlock);
+                writeBlock(new BlockWrapper(b, 0));
                 return true;
             }
         } catch (IOException e) {
@@ -117,6 +252,30 @@ public class BlockChain {
         return false;
     }
 
+    private void writeBlock(BlockWrapper wrapper) throws IOException {
+        if (blockStore == null) {
+            throw new IOException("Block store is unavailable");
+        }
+        blockStore.append(wrapper.block.getShaTwoFiftySix(), ByteUtil.asByteArray(wrapper::serialize));
+        ShaTwoFiftySix hash = wrapper.block.getShaTwoFiftySix();
+        SegmentedStore.Location location = blockStore.locationOf(hash)
+                .orElseThrow(() -> new IOException("Block was not written to the block store: " + hash));
+        blocks.put(hash, new BlockMetadata(wrapper.block.previousBlockHash, wrapper.depth, location));
+        blockCache.put(hash, wrapper.block);
+
+        Block previousHead = currentHead;
+        updateHead(wrapper);
+        if (headUnspentTxs != null && currentHead != previousHead
+                && !moveUnspentTransactions(headUnspentTxs, previousHead.getShaTwoFiftySix(), hash, true)) {
+            discardHeadUnspentTransactions();
+        }
+        int snapshotInterval = Config.utxoSnapshotInterval();
+        if (headUnspentTxs != null && snapshots != null && currentHead != previousHead
+                && snapshotInterval > 0 && headDepth % snapshotInterval == 0) {
+            snapshots.writeInBackground(currentHead.getShaTwoFiftySix(), headDepth, headUnspentTxs.copy());
+        }
+    }
+
     /**
      * Returns the current head {@code Block} of {@code this}. The head {@code Block} is the most recent node in the
      * longest chain of {@code Block}s.
@@ -148,9 +307,8 @@ public class BlockChain {
             if (!optCurrent.isPresent()) {
                 return result;
             }
-            Block current = optCurrent.get();
-            result.add(current);
-            hash = current.previousBlockHash;
+            result.add(optCurrent.get());
+            hash = blocks.get(hash).previousBlockHash;
             --numAncest;
         }
         return result;
@@ -169,6 +327,40 @@ public class BlockChain {
         return getAncestorsStartingAt(hash, Integer.MAX_VALUE);
     }
 
+    /**
+     * Finds the blocks that move the ledger from the {@code Block} with hash {@code from} to the {@code Block} with
+     * hash {@code to}, such as an old head and a new one.
+     *
+     * @return The blocks after the closest common ancestor on the branch of {@code from}, from youngest to oldest,
+     * which are disconnected, and those on the branch of {@code to}, from oldest to youngest, which are connected.
+     * {@code Optional.empty()} if either block, or a block between them, is unavailable.
+     */
+    public Optional<Pair<List<Block>, List<Block>>> getPath(ShaTwoFiftySix from, ShaTwoFiftySix to) {
+        List<ShaTwoFiftySix> toDisconnect = new ArrayList<>();
+        List<ShaTwoFiftySix> toConnect = new ArrayList<>();
+        if (!findPath(from, to, toDisconnect, toConnect)) {
+            return Optional.empty();
+        }
+        Collections.reverse(toConnect);
+        List<Block> disconnected = new ArrayList<>();
+        List<Block> connected = new ArrayList<>();
+        for (ShaTwoFiftySix hash : toDisconnect) {
+            Optional<Block> optBlock = getBlockWithHash(hash);
+            if (!optBlock.isPresent()) {
+                return Optional.empty();
+            }
+            disconnected.add(optBlock.get());
+        }
+        for (ShaTwoFiftySix hash : toConnect) {
+            Optional<Block> optBlock = getBlockWithHash(hash);
+            if (!optBlock.isPresent()) {
+                return Optional.empty();
+            }
+            connected.add(optBlock.get());
+        }
+        return Optional.of(new Pair<>(disconnected, connected));
+    }
+
     /**
      * Gets a set of {@code UnspentTransactions} with respect to a {@code Block} in {@code this BlockChain}.
      *
@@ -176,26 +368,15 @@ public class BlockChain {
      * @return The set of unspent transactions with respect to {@code Block}
      */
     public UnspentTransactions getUnspentTransactionsAt(Block block) {
-        List<Block> ancestors = getAncestorsStartingAt(block.getShaTwoFiftySix());
-
-        UnspentTransactions unspentTxs = UnspentTransactions.empty();
-
-        for (int i = ancestors.size() - 1; i >= 0; --i) {
-            Block b = ancestors.get(i);
-            for (Transaction tx : b) {
-                for (int j = 0; j < tx.numInputs; ++j) {
-                    TxIn inRef = tx.getInput(j);
-                    unspentTxs.remove(inRef.previousTxn, inRef.txIdx);
-                }
-                for (int j = 0; j < tx.numOutputs; ++j) {
-                    TxOut out = tx.getOutput(j);
-                    unspentTxs.put(tx.getShaTwoFiftySix(), j, out);
-                }
-            }
-            unspentTxs.put(b.getShaTwoFiftySix(), 0, b.reward);
+        ShaTwoFiftySix hash = block.getShaTwoFiftySix();
+        if (!blocks.containsKey(hash)) {
+            return UnspentTransactions.empty();
         }
-
-        return unspentTxs;
+        UnspentTransactions unspentTxs = headUnspentTransactions().copy();
+        if (moveUnspentTransactions(unspentTxs, currentHead.getShaTwoFiftySix(), hash, false)) {
+            return unspentTxs;
+        }
+        return replayUnspentTransactions(UnspentTransactions.empty(), hash);
     }
 
     /**
@@ -205,20 +386,331 @@ public class BlockChain {
      * @return The {@code UnspentTransactions} of {@code block}, or {@code Optional.empty()} if verification failed
      */
     public Optional<UnspentTransactions> verifyNonGenesisBlock(Block block) throws IOException {
+        if (!blocks.containsKey(block.previousBlockHash)) {
+            return Optional.empty();
+        }
+        Optional<Target> expectedTarget = nextTarget(block.previousBlockHash);
+        if (!expectedTarget.isPresent() || !expectedTarget.get().equals(block.target)) {
+            LOGGER.warning("Block %s has the wrong target", block.getShaTwoFiftySix());
+            return Optional.empty();
+        }
+        if (block.timestamp < medianTimestamp(block.previousBlockHash)
+                || block.timestamp > System.currentTimeMillis() + MAX_FUTURE_BLOCK_MILLIS) {
+            LOGGER.warning("Block %s has an invalid timestamp", block.getShaTwoFiftySix());
+            return Optional.empty();
+        }
+        if (block.previousBlockHash.equals(currentHead.getShaTwoFiftySix())) {
+            // verifyNonGenesis does not modify the unspent transactions it is given
+            return block.verifyNonGenesis(headUnspentTransactions());
+        }
         Optional<Block> optParent = getBlockWithHash(block.previousBlockHash);
         if (optParent.isPresent()) {
-            Block parent = optParent.get();
-            return block.verifyNonGenesis(getUnspentTransactionsAt(parent));
+            return block.verifyNonGenesis(getUnspentTransactionsAt(optParent.get()));
         }
         return Optional.empty();
     }
 
+    /**
+     * Computes the target of a child of the block with hash {@code parentHash}. Every
+     * {@code Config.retargetInterval()} blocks, the target is scaled by the time taken by the last
+     * {@code Config.retargetInterval()} blocks over the time they should have taken, so that blocks keep coming at
+     * {@code Config.targetBlockMillis()} intervals as hash power changes. The scale is bounded by
+     * {@code MAX_RETARGET_FACTOR} either way. Otherwise, the target is that of the parent.
+     *
+     * @return The target, or {@code Optional.empty()} if the parent or its ancestors are unavailable
+     */
+    public Optional<Target> nextTarget(ShaTwoFiftySix parentHash) {
+        BlockMetadata metadata = blocks.get(parentHash);
+        Optional<Block> optParent = getBlockWithHash(parentHash);
+        if (metadata == null || !optParent.isPresent()) {
+            return Optional.empty();
+        }
+        Block parent = optParent.get();
+        int interval = Config.retargetInterval();
+        if (interval < 2 || (metadata.depth + 1) % interval != 0) {
+            return Optional.of(parent.target);
+        }
+
+        // The first block of the window, found through the in-memory metadata
+        ShaTwoFiftySix firstHash = parentHash;
+        for (int i = 0; i < interval - 1; i++) {
+            firstHash = blocks.get(firstHash).previousBlockHash;
+        }
+        Optional<Block> optFirst = getBlockWithHash(firstHash);
+        if (!optFirst.isPresent()) {
+            return Optional.empty();
+        }
+        long expected = (interval - 1) * Config.targetBlockMillis();
+        long actual = parent.timestamp - optFirst.get().timestamp;
+        actual = Math.max(expected / MAX_RETARGET_FACTOR, Math.min(expected * MAX_RETARGET_FACTOR, actual));
+        Target target = parent.target.scale(Math.max(actual, 1), Math.max(expected, 1));
+        LOGGER.info("Retargeting at depth %d: the last %d blocks took %d ms instead of %d ms", metadata.depth + 1,
+                interval, actual, expected);
+        return Optional.of(target);
+    }
+
+    /**
+     * @return The earliest timestamp that a child of the block with hash {@code parentHash} may have
+     */
+    long medianTimestamp(ShaTwoFiftySix parentHash) {
+        long[] timestamps = getAncestorsStartingAt(parentHash, MEDIAN_TIME_BLOCKS).stream()
+                .mapToLong(b -> b.timestamp)
+                .sorted()
+                .toArray();
+        return timestamps.length == 0 ? 0 : timestamps[timestamps.length / 2];
+    }
+
+    /**
+     * @return An empty template for a block on top of the current head, which must exist
+     */
+    public BlockTemplateBuilder newTemplate(ECDSAPublicKey rewardKey) throws IOException {
+        ShaTwoFiftySix head = currentHead.getShaTwoFiftySix();
+        Target target = nextTarget(head).orElseThrow(() -> new IOException("Unable to compute the next target"));
+        return new BlockTemplateBuilder(head, target, medianTimestamp(head), rewardKey);
+    }
+
+    /**
+     * @return The unspent transactions of the current head, or an empty set if {@code this} is empty
+     */
+    public UnspentTransactions getHeadUnspentTransactions() {
+        if (currentHead == null) {
+            return UnspentTransactions.empty();
+        }
+        return headUnspentTransactions().copy();
+    }
+
+    /**
+     * @return The unspent transactions of the current head. These must not be modified.
+     */
+    private UnspentTransactions headUnspentTransactions() {
+        if (headUnspentTxs == null) {
+            headUnspentTxs = loadHeadUnspentTransactions();
+        }
+        return headUnspentTxs;
+    }
+
+    /**
+     * Brings the UTXO database up to date with the current head. This only touches the blocks between the
+     * database's tip and the head, unless the tip is unknown, in which case the database is rebuilt.
+     *
+     * @return The unspent transactions of the current head
+     */
+    private UnspentTransactions loadHeadUnspentTransactions() {
+        ShaTwoFiftySix head = currentHead.getShaTwoFiftySix();
+        if (utxoDatabase == null) {
+            return rebuildUnspentTransactions(head);
+        }
+        UnspentTransactions unspentTxs = utxoDatabase.unspentTransactions();
+        ShaTwoFiftySix tip = utxoDatabase.tip();
+        if (blocks.containsKey(tip) && moveUnspentTransactions(unspentTxs, tip, head, true)) {
+            return unspentTxs;
+        }
+        utxoDatabase.abort();
+        UnspentTransactions rebuilt = rebuildUnspentTransactions(head);
+        try {
+            utxoDatabase.clear();
+            for (Map.Entry<TxIn, TxOut> entry : rebuilt) {
+                unspentTxs.put(entry.getKey().previousTxn, entry.getKey().txIdx, entry.getValue());
+            }
+            utxoDatabase.commit(head);
+            return unspentTxs;
+        } catch (IOException e) {
+            LOGGER.severe("Unable to rebuild the UTXO database: %s", e.getMessage());
+            utxoDatabase.abort();
+            return rebuilt;
+        }
+    }
+
+    /**
+     * Computes the unspent transactions of the block with hash {@code hash} from the newest usable snapshot,
+     * replaying only the blocks above it. Without a usable snapshot, the whole chain is replayed.
+     */
+    private UnspentTransactions rebuildUnspentTransactions(ShaTwoFiftySix hash) {
+        Optional<UtxoSnapshots.Snapshot> optSnapshot = snapshots == null ? Optional.empty()
+                : snapshots.readNewest(blocks::containsKey);
+        if (optSnapshot.isPresent()) {
+            UtxoSnapshots.Snapshot snapshot = optSnapshot.get();
+            if (moveUnspentTransactions(snapshot.unspentTxs, snapshot.hash, hash, true)) {
+                LOGGER.info("Loaded unspent transactions from the snapshot at depth %d", snapshot.depth);
+                return snapshot.unspentTxs;
+            }
+            LOGGER.warning("Unable to use the snapshot at depth %d, replaying the chain", snapshot.depth);
+        }
+        LOGGER.info("Replaying %d blocks to compute unspent transactions", blocks.get(hash).depth + 1);
+        return replayUnspentTransactions(UnspentTransactions.empty(), hash);
+    }
+
+    private void discardHeadUnspentTransactions() {
+        if (utxoDatabase != null) {
+            utxoDatabase.abort();
+        }
+        headUnspentTxs = null;
+    }
+
+    /**
+     * Commits the changes to {@code unspentTxs} to the UTXO database, if they are the database's unspent
+     * transactions.
+     *
+     * @return Whether the commit succeeded
+     */
+    private boolean commitUnspentTransactions(UnspentTransactions unspentTxs, ShaTwoFiftySix tip) {
+        if (utxoDatabase == null || unspentTxs != utxoDatabase.unspentTransactions()) {
+            return true;
+        }
+        try {
+            utxoDatabase.commit(tip);
+            return true;
+        } catch (IOException e) {
+            LOGGER.severe("Unable to commit unspent transactions of block %s: %s", tip, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Updates {@code unspentTxs} in place from the unspent transactions of the block with hash {@code from} to
+     * those of the block with hash {@code to}, by disconnecting blocks back to their closest common ancestor and
+     * then connecting blocks up to {@code to}. The cost is proportional to the number of blocks between
+     * {@code from} and {@code to}, not to the height of the chain.
+     *
+     * @param persist Whether to write the undo records of connected blocks to the undo store, and to commit the
+     *                changes made by each block if {@code unspentTxs} are those of the UTXO database
+     * @return Whether the update succeeded. If it did not, {@code unspentTxs} may have been partially updated
+     * and should be discarded.
+     */
+    private boolean moveUnspentTransactions(UnspentTransactions unspentTxs, ShaTwoFiftySix from, ShaTwoFiftySix to,
+                                            boolean persist) {
+        List<ShaTwoFiftySix> toDisconnect = new ArrayList<>();
+        List<ShaTwoFiftySix> toConnect = new ArrayList<>();
+        if (!findPath(from, to, toDisconnect, toConnect)) {
+            return false;
+        }
+        List<BlockUndo> undos = new ArrayList<>();
+        for (ShaTwoFiftySix hash : toDisconnect) {
+            Optional<BlockUndo> optUndo = getUndo(hash);
+            if (!optUndo.isPresent() || !optUndo.get().canDisconnect()) {
+                return false;
+            }
+            undos.add(optUndo.get());
+        }
+        for (int i = 0; i < toDisconnect.size(); ++i) {
+            Optional<Block> optBlock = getBlockWithHash(toDisconnect.get(i));
+            if (!optBlock.isPresent() || !undos.get(i).disconnect(unspentTxs, optBlock.get())) {
+                LOGGER.warning("Unable to disconnect block %s", toDisconnect.get(i));
+                return false;
+            }
+            if (persist && !commitUnspentTransactions(unspentTxs, optBlock.get().previousBlockHash)) {
+                return false;
+            }
+        }
+        for (int i = toConnect.size() - 1; i >= 0; --i) {
+            ShaTwoFiftySix hash = toConnect.get(i);
+            Optional<Block> optBlock = getBlockWithHash(hash);
+            if (!optBlock.isPresent()) {
+                return false;
+            }
+            BlockUndo undo = BlockUndo.connect(unspentTxs, optBlock.get());
+            undoCache.put(hash, undo);
+            if (persist && undo.canDisconnect()) {
+                writeUndo(hash, undo);
+            }
+            if (persist && !commitUnspentTransactions(unspentTxs, hash)) {
+                return false;
+            }
+        }
+        if (!toDisconnect.isEmpty()) {
+            LOGGER.info("Switched branches: disconnected %d blocks and connected %d blocks",
+                    toDisconnect.size(), toConnect.size());
+        }
+        return true;
+    }
+
+    /**
+     * @return The undo record of the block with hash {@code hash}, from memory or from the undo store
+     */
+    private Optional<BlockUndo> getUndo(ShaTwoFiftySix hash) {
+        BlockUndo cached = undoCache.get(hash);
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        if (undoStore == null) {
+            return Optional.empty();
+        }
+        try {
+            Optional<byte[]> optRecord = undoStore.read(hash);
+            if (!optRecord.isPresent()) {
+                return Optional.empty();
+            }
+            BlockUndo undo = BlockUndo.DESERIALIZER.deserialize(optRecord.get());
+            undoCache.put(hash, undo);
+            return Optional.of(undo);
+        } catch (DeserializationException | IOException e) {
+            LOGGER.severe("Unable to read undo record %s: %s", hash, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    private void writeUndo(ShaTwoFiftySix hash, BlockUndo undo) {
+        if (undoStore == null || undoStore.contains(hash)) {
+            return;
+        }
+        try {
+            undoStore.append(hash, ByteUtil.asByteArray(undo::serialize));
+        } catch (IOException e) {
+            LOGGER.severe("Unable to write undo record %s: %s", hash, e.getMessage());
+        }
+    }
+
+    /**
+     * Finds the blocks between the blocks with hashes {@code from} and {@code to} and their closest common
+     * ancestor.
+     *
+     * @param toDisconnect Filled with the blocks from {@code from} back to the common ancestor (exclusive)
+     * @param toConnect    Filled with the blocks from {@code to} back to the common ancestor (exclusive)
+     * @return Whether a common ancestor was found
+     */
+    private boolean findPath(ShaTwoFiftySix from, ShaTwoFiftySix to,
+                             List<ShaTwoFiftySix> toDisconnect, List<ShaTwoFiftySix> toConnect) {
+        BlockMetadata fromMetadata = blocks.get(from);
+        BlockMetadata toMetadata = blocks.get(to);
+        while (!from.equals(to)) {
+            if (fromMetadata == null || toMetadata == null) {
+                return false;
+            }
+            if (fromMetadata.depth >= toMetadata.depth) {
+                toDisconnect.add(from);
+                from = fromMetadata.previousBlockHash;
+                fromMetadata = blocks.get(from);
+            } else {
+                toConnect.add(to);
+                to = toMetadata.previousBlockHash;
+                toMetadata = blocks.get(to);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes the unspent transactions of the block with hash {@code hash} by replaying every ancestor from
+     * genesis.
+     *
+     * @param unspentTxs An empty set of unspent transactions to replay into
+     */
+    private UnspentTransactions replayUnspentTransactions(UnspentTransactions unspentTxs, ShaTwoFiftySix hash) {
+        List<Block> ancestors = getAncestorsStartingAt(hash);
+
+        for (int i = ancestors.size() - 1; i >= 0; --i) {
+            Block b = ancestors.get(i);
+            undoCache.put(b.getShaTwoFiftySix(), BlockUndo.connect(unspentTxs, b));
+        }
+        return unspentTxs;
+    }
+
     /**
      * @param hash The SHA-256 hash of the {@code Block}
      * @return Whether there is a {@code Block} with hash {@code hash} in this {@code BlockChain}
      */
     public boolean containsBlockWithHash(ShaTwoFiftySix hash) {
-        return getBlockWithHash(hash).isPresent();
+        return blocks.containsKey(hash);
     }
 
     /**
@@ -229,7 +721,37 @@ public class BlockChain {
         return containsBlockWithHash(b.getShaTwoFiftySix());
     }
 
+    /**
+     * What is kept in memory for every {@code Block} in the chain
+     */
+    private static final class BlockMetadata {
+        private final ShaTwoFiftySix previousBlockHash;
+        private final int depth;
+        private final SegmentedStore.Location location;
+
+        private BlockMetadata(ShaTwoFiftySix previousBlockHash, int depth, SegmentedStore.Location location) {
+            this.previousBlockHash = previousBlockHash;
+            this.depth = depth;
+            this.location = location;
+        }
+    }
+
+    private static final class LoadedBlock {
+        private final BlockWrapper wrapper;
+        private final SegmentedStore.Location location;
+
+        private LoadedBlock(BlockWrapper wrapper, SegmentedStore.Location location) {
+            this.wrapper = wrapper;
+            this.location = location;
+        }
+    }
+
+    /**
+     * The serialized form of a {@code Block} in the block store
+     */
     private static final class BlockWrapper implements CanBeSerialized {
+        private static final Deserializer<BlockWrapper> DESERIALIZER = new BlockWrapperDeserializer();
+
         private final Block block;
         private final int depth;
 
@@ -243,11 +765,14 @@ public class BlockChain {
             outputStream.writeInt(depth);
         }
 
-        private static BlockWrapper deserialize(DataInputStream input)
-                throws DeserializationException, IOException {
-            Block block = Block.DESERIALIZER.deserialize(input);
-            int depth = input.readInt();
-            return new BlockWrapper(block, depth);
+        private static final class BlockWrapperDeserializer implements Deserializer<BlockWrapper> {
+            @Override
+            public BlockWrapper deserialize(DataInputStream input)
+                    throws DeserializationException, IOException {
+                Block block = Block.DESERIALIZER.deserialize(input);
+                int depth = input.readInt();
+                return new BlockWrapper(block, depth);
+            }
         }
 
         @Override
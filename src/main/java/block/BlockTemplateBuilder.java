@@ -0,0 +1,89 @@
+package block;
+
+import crypto.ECDSAPublicKey;
+import transaction.Transaction;
+import utils.ByteUtil;
+import utils.Config;
+import utils.ShaTwoFiftySix;
+import utils.Target;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fills a block template with pending transactions, in the order they are added, up to the maximum number of
+ * transactions and bytes of a block. A transaction that does not fit is rejected rather than skipped past, since
+ * later transactions may spend its outputs.
+ * <p>
+ * Templates are created by {@code BlockChain.newTemplate}, which knows the target and earliest timestamp of the
+ * next block.
+ */
+public final class BlockTemplateBuilder {
+    private final ShaTwoFiftySix previousBlockHash;
+    private final Target target;
+    private final long minTimestamp;
+    private final ECDSAPublicKey rewardKey;
+    private final int maxTransactions;
+    private final int maxBytes;
+    private final List<Transaction> transactions = new ArrayList<>();
+    private int bytes;
+
+    BlockTemplateBuilder(ShaTwoFiftySix previousBlockHash,
+                         Target target,
+                         long minTimestamp,
+                         ECDSAPublicKey rewardKey) throws IOException {
+        this(previousBlockHash, target, minTimestamp, rewardKey, Config.maxTemplateTransactions(),
+                Config.maxTemplateBytes());
+    }
+
+    BlockTemplateBuilder(ShaTwoFiftySix previousBlockHash,
+                         Target target,
+                         long minTimestamp,
+                         ECDSAPublicKey rewardKey,
+                         int maxTransactions,
+                         int maxBytes) throws IOException {
+        this.previousBlockHash = previousBlockHash;
+        this.target = target;
+        this.minTimestamp = minTimestamp;
+        this.rewardKey = rewardKey;
+        this.maxTransactions = maxTransactions;
+        this.maxBytes = maxBytes;
+        this.bytes = ByteUtil.asByteArray(build()::serialize).length;
+    }
+
+    /**
+     * @return Whether {@code transaction} was added, which is the case if the template still has room for it
+     */
+    public boolean add(Transaction transaction) throws IOException {
+        int size = ByteUtil.asByteArray(transaction::serialize).length;
+        if (transactions.size() >= maxTransactions || bytes + size > maxBytes) {
+            return false;
+        }
+        transactions.add(transaction);
+        bytes += size;
+        return true;
+    }
+
+    /**
+     * @return The number of transactions in the template
+     */
+    public int size() {
+        return transactions.size();
+    }
+
+    /**
+     * @return The size of the serialized template, in bytes
+     */
+    public int bytes() {
+        return bytes;
+    }
+
+    /**
+     * @return A new block holding the transactions added so far, created now
+     */
+    public Block build() {
+        long timestamp = Math.max(System.currentTimeMillis(), minTimestamp);
+        return Block.block(previousBlockHash, timestamp, target, transactions, rewardKey);
+    }
+}
@@ -0,0 +1,118 @@
+package block;
+
+import transaction.Transaction;
+import transaction.TxIn;
+import transaction.TxOut;
+import utils.CanBeSerialized;
+import utils.DeserializationException;
+import utils.Deserializer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The undo record of a {@code Block}: the outputs spent by its transactions, in the order of their inputs. Together
+ * with the {@code Block} itself, this is enough to disconnect the {@code Block} from a set of
+ * {@code UnspentTransactions} using {@link Transaction#rollback}.
+ */
+final class BlockUndo implements CanBeSerialized {
+    static final Deserializer<BlockUndo> DESERIALIZER = new BlockUndoDeserializer();
+
+    private final List<TxOut> spentOutputs;
+
+    // Whether connecting the block removed absent outputs or overwrote existing ones, which rollback cannot undo
+    private final boolean irregular;
+
+    private BlockUndo(List<TxOut> spentOutputs, boolean irregular) {
+        this.spentOutputs = spentOutputs;
+        this.irregular = irregular;
+    }
+
+    /**
+     * Applies the transactions and reward of {@code block} to {@code unspentTxs}, in the same way as replaying
+     * the block from genesis would.
+     *
+     * @param unspentTxs The unspent transactions of {@code block}'s parent, which are updated in place
+     * @param block      The {@code Block} to connect
+     * @return The undo record of {@code block}
+     */
+    static BlockUndo connect(UnspentTransactions unspentTxs, Block block) {
+        List<TxOut> spentOutputs = new ArrayList<>();
+        boolean irregular = false;
+        for (Transaction tx : block) {
+            for (int j = 0; j < tx.numInputs; ++j) {
+                TxIn inRef = tx.getInput(j);
+                TxOut removed = unspentTxs.remove(inRef.previousTxn, inRef.txIdx);
+                if (removed == null) {
+                    irregular = true;
+                } else {
+                    spentOutputs.add(removed);
+                }
+            }
+            for (int j = 0; j < tx.numOutputs; ++j) {
+                irregular |= unspentTxs.put(tx.getShaTwoFiftySix(), j, tx.getOutput(j)) != null;
+            }
+        }
+        irregular |= unspentTxs.put(block.getShaTwoFiftySix(), 0, block.reward) != null;
+        return new BlockUndo(spentOutputs, irregular);
+    }
+
+    /**
+     * @return Whether {@link #disconnect} can be used. This is the case for every block that has been verified.
+     */
+    boolean canDisconnect() {
+        return !irregular;
+    }
+
+    /**
+     * Disconnects {@code block}, by rolling back its reward and then each of its transactions in reverse order.
+     *
+     * @param unspentTxs The unspent transactions of {@code block}, which are updated in place to those of its
+     *                   parent
+     * @param block      The {@code Block} that {@code this} is the undo record of
+     * @return Whether {@code block} was disconnected. If not, {@code unspentTxs} may have been partially updated and
+     * should be discarded.
+     */
+    boolean disconnect(UnspentTransactions unspentTxs, Block block) {
+        if (irregular) {
+            return false;
+        }
+        Map<TxIn, TxOut> spent = new HashMap<>();
+        Iterator<TxOut> outputs = spentOutputs.iterator();
+        for (Transaction tx : block) {
+            for (int j = 0; j < tx.numInputs; ++j) {
+                if (!outputs.hasNext()) {
+                    return false;
+                }
+                spent.put(tx.getInput(j), outputs.next());
+            }
+        }
+        if (outputs.hasNext() || unspentTxs.remove(block.getShaTwoFiftySix(), 0) == null) {
+            return false;
+        }
+        for (int i = block.transactions.length - 1; i >= 0; --i) {
+            boolean rolledBack = block.transactions[i].rollback(unspentTxs,
+                    (hash, index) -> Optional.ofNullable(spent.get(new TxIn(hash, index))));
+            if (!rolledBack) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void serialize(DataOutputStream outputStream) throws IOException {
+        CanBeSerialized.serializeList(outputStream, spentOutputs);
+    }
+
+    private static final class BlockUndoDeserializer implements Deserializer<BlockUndo> {
+        @Override
+        public BlockUndo deserialize(DataInputStream inputStream) throws DeserializationException, IOException {
+            List<TxOut> spentOutputs = Deserializer.deserializeList(inputStream, TxOut.DESERIALIZER,
+                    Integer.MAX_VALUE);
+            return new BlockUndo(spentOutputs, false);
+        }
+    }
+}
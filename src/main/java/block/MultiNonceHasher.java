@@ -0,0 +1,168 @@
+package block;
+
+/**
+ * A {@code NonceKernel} that hashes {@code LANES} nonces at once, which differ only in their last byte. The states of
+ * all lanes are kept as structures of arrays, one array of lanes per state word, and every step of SHA-256 is a
+ * loop over the lanes, so that the JIT compiler can compile it to SIMD instructions. The shared part of the tail, up
+ * to the block holding the last byte of the nonce, is compressed once for all lanes by a {@code NonceHasher}.
+ * <p>
+ * Instances are not thread-safe.
+ */
+final class MultiNonceHasher implements NonceKernel {
+    static final int LANES = 8;
+
+    private final NonceHasher shared;
+    // The position of the last byte of the nonce in the tail
+    private final int lastByte;
+    private final int laneBlock;
+    private final int laneWord;
+    private final int laneShift;
+    private final int tailBlocks;
+    // The lane of the current nonce; the tail always holds the nonce of lane 0
+    private int currentLane;
+    private long hashes;
+
+    // Scratch space: the message schedule, the state of each lane, and the working variables
+    private final int[][] w = new int[64][LANES];
+    private final int[][] state = new int[8][LANES];
+    private final int[][] work = new int[8][LANES];
+
+    MultiNonceHasher(byte[] prefix, byte[] nonce) {
+        shared = new NonceHasher(prefix, nonce);
+        lastByte = shared.nonceOffset + shared.nonceLength - 1;
+        laneBlock = lastByte / NonceHasher.BLOCK_SIZE;
+        laneWord = lastByte % NonceHasher.BLOCK_SIZE / 4;
+        laneShift = 8 * (3 - lastByte % 4);
+        tailBlocks = shared.tail.length / NonceHasher.BLOCK_SIZE;
+        // Lane i tries the nonce whose last byte is the base plus i
+        shared.tail[lastByte] &= ~(LANES - 1);
+    }
+
+    @Override
+    public boolean search(int[] target, int count) {
+        currentLane = 0;
+        for (int tried = 0; tried < count; tried += LANES) {
+            shared.add(LANES);
+            hashLanes();
+            hashes += LANES;
+            for (int lane = 0; lane < LANES; lane++) {
+                if (meetsTarget(lane, target)) {
+                    currentLane = lane;
+                    hashes -= LANES - 1 - lane;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long hashes() {
+        return hashes;
+    }
+
+    @Override
+    public void copyNonce(byte[] out) {
+        shared.copyNonce(out);
+        // The last byte of lane 0 is a multiple of LANES, so adding the lane never carries
+        out[shared.nonceLength - 1] += currentLane;
+    }
+
+    private boolean meetsTarget(int lane, int[] target) {
+        for (int i = 0; i < 8; i++) {
+            if (state[i][lane] != target[i]) {
+                return Integer.compareUnsigned(state[i][lane], target[i]) < 0;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Computes the final state of every lane into {@code state}
+     */
+    private void hashLanes() {
+        int[] midstate = shared.stateBefore(laneBlock);
+        for (int i = 0; i < 8; i++) {
+            int[] lanes = state[i];
+            for (int lane = 0; lane < LANES; lane++) {
+                lanes[lane] = midstate[i];
+            }
+        }
+        byte[] tail = shared.tail;
+        for (int block = laneBlock; block < tailBlocks; block++) {
+            int offset = block * NonceHasher.BLOCK_SIZE;
+            for (int t = 0; t < 16; t++) {
+                int j = offset + 4 * t;
+                int word = tail[j] << 24 | (tail[j + 1] & 0xff) << 16 | (tail[j + 2] & 0xff) << 8
+                        | (tail[j + 3] & 0xff);
+                int[] lanes = w[t];
+                for (int lane = 0; lane < LANES; lane++) {
+                    lanes[lane] = word;
+                }
+            }
+            if (block == laneBlock) {
+                int[] lanes = w[laneWord];
+                for (int lane = 0; lane < LANES; lane++) {
+                    lanes[lane] += lane << laneShift;
+                }
+            }
+            compressLanes();
+        }
+    }
+
+    /**
+     * Compresses the message schedule {@code w[0..15]} of every lane into {@code state}
+     */
+    private void compressLanes() {
+        for (int t = 16; t < 64; t++) {
+            int[] w2 = w[t - 2], w7 = w[t - 7], w15 = w[t - 15], w16 = w[t - 16], out = w[t];
+            for (int lane = 0; lane < LANES; lane++) {
+                int x = w2[lane];
+                int y = w15[lane];
+                int s1 = (x >>> 17 | x << 15) ^ (x >>> 19 | x << 13) ^ (x >>> 10);
+                int s0 = (y >>> 7 | y << 25) ^ (y >>> 18 | y << 14) ^ (y >>> 3);
+                out[lane] = s1 + w7[lane] + s0 + w16[lane];
+            }
+        }
+
+        for (int i = 0; i < 8; i++) {
+            System.arraycopy(state[i], 0, work[i], 0, LANES);
+        }
+        // Rather than moving every working variable down each round, the arrays are renamed
+        int[] a = work[0], b = work[1], c = work[2], d = work[3], e = work[4], f = work[5], g = work[6],
+                h = work[7];
+        for (int t = 0; t < 64; t++) {
+            int k = NonceHasher.K[t];
+            int[] wt = w[t];
+            for (int lane = 0; lane < LANES; lane++) {
+                int ea = e[lane];
+                int aa = a[lane];
+                int s1 = (ea >>> 6 | ea << 26) ^ (ea >>> 11 | ea << 21) ^ (ea >>> 25 | ea << 7);
+                int ch = (ea & f[lane]) ^ (~ea & g[lane]);
+                int t1 = h[lane] + s1 + ch + k + wt[lane];
+                int s0 = (aa >>> 2 | aa << 30) ^ (aa >>> 13 | aa << 19) ^ (aa >>> 22 | aa << 10);
+                int maj = (aa & b[lane]) ^ (aa & c[lane]) ^ (b[lane] & c[lane]);
+                d[lane] += t1;
+                h[lane] = t1 + s0 + maj;
+            }
+            int[] newA = h;
+            int[] newE = d;
+            h = g;
+            g = f;
+            f = e;
+            e = newE;
+            d = c;
+            c = b;
+            b = a;
+            a = newA;
+        }
+        // After 64 rounds, a multiple of 8, the renamed arrays are back in their places
+        for (int i = 0; i < 8; i++) {
+            int[] lanes = state[i];
+            int[] worked = work[i];
+            for (int lane = 0; lane < LANES; lane++) {
+                lanes[lane] += worked[lane];
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package block;
+
+/**
+ * Computes SHA-256 hashes of a fixed prefix followed by a nonce that is incremented between hashes, as done when
+ * mining. The state after the whole 64-byte blocks of the prefix (the midstate) is computed once, as is the state
+ * after each trailing block that precedes the bytes changed by an increment, so each hash usually only compresses
+ * the last block. Nothing is allocated per hash, and leading zeros are counted directly on the state words.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public final class NonceHasher implements NonceKernel {
+    static final int BLOCK_SIZE = 64;
+    static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+    private static final int[] INITIAL_STATE = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    // The end of the prefix, the nonce and the padding, as whole blocks
+    final byte[] tail;
+    final int nonceOffset;
+    final int nonceLength;
+
+    // states[i] is the state before compressing block i of the tail, so states[0] is the midstate
+    private final int[][] states;
+    private int validStates;
+    private long hashes;
+
+    private final int[] w = new int[64];
+
+    /**
+     * @param prefix The bytes preceding the nonce
+     * @param nonce  The initial nonce, which is copied
+     */
+    public NonceHasher(byte[] prefix, byte[] nonce) {
+        int prefixBlocks = prefix.length / BLOCK_SIZE;
+        int remainder = prefix.length - prefixBlocks * BLOCK_SIZE;
+        long messageBits = 8L * (prefix.length + nonce.length);
+
+        // At least one byte of padding and eight bytes of length follow the message
+        int tailLength = remainder + nonce.length + 1 + Long.BYTES;
+        tail = new byte[(tailLength + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE];
+        System.arraycopy(prefix, prefixBlocks * BLOCK_SIZE, tail, 0, remainder);
+        nonceOffset = remainder;
+        nonceLength = nonce.length;
+        System.arraycopy(nonce, 0, tail, nonceOffset, nonceLength);
+        tail[nonceOffset + nonceLength] = (byte) 0x80;
+        for (int i = 0; i < Long.BYTES; i++) {
+            tail[tail.length - 1 - i] = (byte) (messageBits >>> (8 * i));
+        }
+
+        states = new int[tail.length / BLOCK_SIZE + 1][8];
+        System.arraycopy(INITIAL_STATE, 0, states[0], 0, 8);
+        for (int i = 0; i < prefixBlocks; i++) {
+            compress(states[0], prefix, i * BLOCK_SIZE, states[0]);
+        }
+        validStates = 1;
+    }
+
+    /**
+     * Adds one to the nonce, treating it as a big-endian number
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Adds {@code amount}, which must be at most 255, to the nonce
+     */
+    void add(int amount) {
+        int i = nonceOffset + nonceLength - 1;
+        int sum = (tail[i] & 0xff) + amount;
+        tail[i] = (byte) sum;
+        if (sum > 0xff) {
+            i--;
+            while (i >= nonceOffset && ++tail[i] == 0) {
+                i--;
+            }
+        }
+        // Every block from the one holding the highest changed byte onwards must be compressed again
+        validStates = Math.min(validStates, Math.max(i, nonceOffset) / BLOCK_SIZE + 1);
+    }
+
+    @Override
+    public boolean search(int[] target, int count) {
+        for (int i = 0; i < count; i++) {
+            increment();
+            hashes++;
+            if (meetsTarget(target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long hashes() {
+        return hashes;
+    }
+
+    /**
+     * @return Whether the hash of the prefix and the current nonce starts with at least {@code zeroBytes} zero
+     * bytes
+     */
+    public boolean hasLeadingZeroBytes(int zeroBytes) {
+        int[] state = finalState();
+        for (int i = 0; i < zeroBytes; i++) {
+            if ((state[i >>> 2] >>> (24 - 8 * (i & 3)) & 0xff) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param target The target as big-endian words, see {@code Target.toWords()}
+     * @return Whether the hash of the prefix and the current nonce is at most {@code target}
+     */
+    public boolean meetsTarget(int[] target) {
+        int[] state = finalState();
+        for (int i = 0; i < 8; i++) {
+            if (state[i] != target[i]) {
+                return Integer.compareUnsigned(state[i], target[i]) < 0;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the hash of the prefix and the current nonce to {@code out}
+     */
+    public void digest(byte[] out, int offset) {
+        int[] state = finalState();
+        for (int i = 0; i < 8; i++) {
+            out[offset + 4 * i] = (byte) (state[i] >>> 24);
+            out[offset + 4 * i + 1] = (byte) (state[i] >>> 16);
+            out[offset + 4 * i + 2] = (byte) (state[i] >>> 8);
+            out[offset + 4 * i + 3] = (byte) state[i];
+        }
+    }
+
+    @Override
+    public void copyNonce(byte[] out) {
+        System.arraycopy(tail, nonceOffset, out, 0, nonceLength);
+    }
+
+    private int[] finalState() {
+        return stateBefore(states.length - 1);
+    }
+
+    /**
+     * @return The state before compressing block {@code block} of the tail, or the final state if {@code block} is
+     * the number of tail blocks. It must not be modified.
+     */
+    int[] stateBefore(int block) {
+        for (; validStates <= block; validStates++) {
+            compress(states[validStates - 1], tail, (validStates - 1) * BLOCK_SIZE, states[validStates]);
+        }
+        return states[block];
+    }
+
+    /**
+     * Compresses the 64-byte block of {@code data} at {@code offset} into {@code in}, writing the result to
+     * {@code out}, which may be {@code in}
+     */
+    private void compress(int[] in, byte[] data, int offset, int[] out) {
+        int[] w = this.w;
+        for (int t = 0; t < 16; t++) {
+            int j = offset + 4 * t;
+            w[t] = data[j] << 24 | (data[j + 1] & 0xff) << 16 | (data[j + 2] & 0xff) << 8 | (data[j + 3] & 0xff);
+        }
+        for (int t = 16; t < 64; t++) {
+            int w2 = w[t - 2];
+            int w15 = w[t - 15];
+            int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+            int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+            w[t] = s1 + w[t - 7] + s0 + w[t - 16];
+        }
+
+        int a = in[0], b = in[1], c = in[2], d = in[3], e = in[4], f = in[5], g = in[6], h = in[7];
+        for (int t = 0; t < 64; t++) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ (~e & g);
+            int t1 = h + s1 + ch + K[t] + w[t];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int t2 = s0 + maj;
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        out[0] = in[0] + a;
+        out[1] = in[1] + b;
+        out[2] = in[2] + c;
+        out[3] = in[3] + d;
+        out[4] = in[4] + e;
+        out[5] = in[5] + f;
+        out[6] = in[6] + g;
+        out[7] = in[7] + h;
+    }
+}
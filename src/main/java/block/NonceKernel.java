@@ -0,0 +1,39 @@
+package block;
+
+import utils.Config;
+
+/**
+ * Searches for a nonce that makes the SHA-256 hash of a fixed prefix followed by the nonce meet a target. Each
+ * kernel tries nonces in increasing order from the nonce it was created with, changing only its last bytes.
+ * <p>
+ * Instances are not thread-safe.
+ */
+public interface NonceKernel {
+    /**
+     * Tries about {@code count} further nonces, stopping at the first one that meets {@code target}
+     *
+     * @param target The target as big-endian words, see {@code Target.toWords()}
+     * @return Whether a nonce meeting {@code target} was found, in which case it is the current nonce
+     */
+    boolean search(int[] target, int count);
+
+    /**
+     * @return The number of nonces tried so far
+     */
+    long hashes();
+
+    /**
+     * Copies the current nonce to {@code out}
+     */
+    void copyNonce(byte[] out);
+
+    /**
+     * @return The kernel selected by {@code Config.multiBufferMining()}
+     */
+    static NonceKernel create(byte[] prefix, byte[] nonce) {
+        if (Config.multiBufferMining()) {
+            return new MultiNonceHasher(prefix, nonce);
+        }
+        return new NonceHasher(prefix, nonce);
+    }
+}
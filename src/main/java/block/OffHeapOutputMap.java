@@ -0,0 +1,288 @@
+package block;
+
+import crypto.Crypto;
+import crypto.ECDSAPublicKey;
+import org.bouncycastle.math.ec.ECPoint;
+import transaction.TxIn;
+import transaction.TxOut;
+import utils.ShaTwoFiftySix;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * An {@code OutputMap} that keeps its entries outside of the Java heap, as fixed-width records in an
+ * open-addressing hash table with linear probing. Each record holds the 36-byte outpoint, the 8-byte value and the
+ * 64-byte owner public key, so an entry costs a little over 100 bytes and creates no garbage-collected objects
+ * until it is read.
+ * <p>
+ * The table is split into fixed-size direct buffers, so it is not limited by the 2GB maximum size of a single
+ * buffer. Unlike {@code PersistentOutputMap}, {@link #copy()} copies every record; this storage is intended for
+ * large sets that are rarely copied.
+ */
+final class OffHeapOutputMap implements OutputMap {
+    private static final byte EMPTY = 0;
+    private static final byte OCCUPIED = 1;
+    private static final byte DELETED = 2;
+
+    private static final int STATE_OFFSET = 0;
+    private static final int INDEX_OFFSET = 1;
+    private static final int HASH_OFFSET = 5;
+    private static final int VALUE_OFFSET = HASH_OFFSET + ShaTwoFiftySix.HASH_SIZE_IN_BYTES;
+    private static final int KEY_OFFSET = VALUE_OFFSET + Long.BYTES;
+    private static final int PUBLIC_KEY_SIZE = 2 * Crypto.ECDSA_ORDER_IN_BYTES;
+    private static final int RECORD_SIZE = KEY_OFFSET + PUBLIC_KEY_SIZE;
+
+    private static final int SLOTS_PER_CHUNK_BITS = 14;
+    private static final int SLOTS_PER_CHUNK = 1 << SLOTS_PER_CHUNK_BITS;
+    private static final int MIN_CAPACITY = 64;
+    private static final double MAX_LOAD_FACTOR = 0.7;
+
+    private ByteBuffer[] chunks;
+    private int capacity; // A power of two
+    private int size;
+    private int used; // Occupied and deleted slots
+
+    OffHeapOutputMap() {
+        this(MIN_CAPACITY);
+    }
+
+    private OffHeapOutputMap(int capacity) {
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        this.capacity = capacity;
+        int slotsPerChunk = Math.min(capacity, SLOTS_PER_CHUNK);
+        chunks = new ByteBuffer[capacity / slotsPerChunk];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = ByteBuffer.allocateDirect(slotsPerChunk * RECORD_SIZE);
+        }
+        size = 0;
+        used = 0;
+    }
+
+    private ByteBuffer chunk(int slot) {
+        return chunks[slot >>> SLOTS_PER_CHUNK_BITS];
+    }
+
+    private static int offset(int slot) {
+        return (slot & (SLOTS_PER_CHUNK - 1)) * RECORD_SIZE;
+    }
+
+    private static int slotHash(byte[] hash, int index) {
+        // The outpoint hash is already uniformly distributed; mix in the index so outputs of one transaction spread
+        long h = ByteBuffer.wrap(hash).getLong() ^ (index * 0x9E3779B97F4A7C15L);
+        h ^= h >>> 32;
+        return (int) h;
+    }
+
+    /**
+     * @return The slot holding {@code key}, or -1 if it is absent
+     */
+    private int find(byte[] hash, int index) {
+        int mask = capacity - 1;
+        for (int slot = slotHash(hash, index) & mask; ; slot = (slot + 1) & mask) {
+            ByteBuffer chunk = chunk(slot);
+            int offset = offset(slot);
+            byte state = chunk.get(offset + STATE_OFFSET);
+            if (state == EMPTY) {
+                return -1;
+            } else if (state == OCCUPIED && matches(chunk, offset, hash, index)) {
+                return slot;
+            }
+        }
+    }
+
+    private static boolean matches(ByteBuffer chunk, int offset, byte[] hash, int index) {
+        if (chunk.getInt(offset + INDEX_OFFSET) != index) {
+            return false;
+        }
+        for (int i = 0; i < hash.length; i++) {
+            if (chunk.get(offset + HASH_OFFSET + i) != hash[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public TxOut get(TxIn key) {
+        int slot = find(key.previousTxn.copyOfHash(), key.txIdx);
+        return slot < 0 ? null : readOutput(slot);
+    }
+
+    @Override
+    public TxOut put(TxIn key, TxOut out) {
+        byte[] hash = key.previousTxn.copyOfHash();
+        int existing = find(hash, key.txIdx);
+        TxOut previous = null;
+        int slot;
+        if (existing >= 0) {
+            previous = readOutput(existing);
+            slot = existing;
+        } else {
+            if (used + 1 > capacity * MAX_LOAD_FACTOR) {
+                resize();
+            }
+            slot = freeSlot(hash, key.txIdx);
+            if (chunk(slot).get(offset(slot) + STATE_OFFSET) == EMPTY) {
+                used++;
+            }
+            size++;
+        }
+        writeRecord(slot, hash, key.txIdx, out);
+        return previous;
+    }
+
+    private int freeSlot(byte[] hash, int index) {
+        int mask = capacity - 1;
+        for (int slot = slotHash(hash, index) & mask; ; slot = (slot + 1) & mask) {
+            if (chunk(slot).get(offset(slot) + STATE_OFFSET) != OCCUPIED) {
+                return slot;
+            }
+        }
+    }
+
+    @Override
+    public TxOut remove(TxIn key) {
+        int slot = find(key.previousTxn.copyOfHash(), key.txIdx);
+        if (slot < 0) {
+            return null;
+        }
+        TxOut previous = readOutput(slot);
+        chunk(slot).put(offset(slot) + STATE_OFFSET, DELETED);
+        size--;
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Rehashes every record into a new table. The table grows if it is more than half full of live records;
+     * otherwise this only clears out deleted slots.
+     */
+    private void resize() {
+        ByteBuffer[] oldChunks = chunks;
+        int oldCapacity = capacity;
+        allocate(size >= oldCapacity / 2 ? oldCapacity * 2 : oldCapacity);
+        byte[] record = new byte[RECORD_SIZE];
+        byte[] hash = new byte[ShaTwoFiftySix.HASH_SIZE_IN_BYTES];
+        for (int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+            ByteBuffer oldChunk = oldChunks[oldSlot >>> SLOTS_PER_CHUNK_BITS];
+            int oldOffset = offset(oldSlot);
+            if (oldChunk.get(oldOffset + STATE_OFFSET) != OCCUPIED) {
+                continue;
+            }
+            ByteBuffer view = oldChunk.duplicate();
+            view.position(oldOffset);
+            view.get(record);
+            System.arraycopy(record, HASH_OFFSET, hash, 0, hash.length);
+            int index = ByteBuffer.wrap(record).getInt(INDEX_OFFSET);
+
+            int slot = freeSlot(hash, index);
+            ByteBuffer target = chunk(slot).duplicate();
+            target.position(offset(slot));
+            target.put(record);
+            used++;
+            size++;
+        }
+    }
+
+    private void writeRecord(int slot, byte[] hash, int index, TxOut out) {
+        ByteBuffer chunk = chunk(slot).duplicate();
+        chunk.position(offset(slot));
+        chunk.put(OCCUPIED);
+        chunk.putInt(index);
+        chunk.put(hash);
+        chunk.putLong(out.value);
+        ECPoint point = out.ownerPubKey.point.normalize();
+        putUnsigned(chunk, point.getAffineXCoord().toBigInteger());
+        putUnsigned(chunk, point.getAffineYCoord().toBigInteger());
+    }
+
+    private static void putUnsigned(ByteBuffer buffer, BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        int length = Crypto.ECDSA_ORDER_IN_BYTES;
+        int start = Math.max(0, bytes.length - length);
+        for (int i = bytes.length - start; i < length; i++) {
+            buffer.put((byte) 0);
+        }
+        buffer.put(bytes, start, bytes.length - start);
+    }
+
+    private TxIn readKey(int slot) {
+        ByteBuffer chunk = chunk(slot).duplicate();
+        chunk.position(offset(slot) + HASH_OFFSET);
+        byte[] hash = new byte[ShaTwoFiftySix.HASH_SIZE_IN_BYTES];
+        chunk.get(hash);
+        ShaTwoFiftySix sha = ShaTwoFiftySix.create(hash)
+                .orElseThrow(() -> new IllegalStateException("Invalid stored hash"));
+        return new TxIn(sha, chunk.getInt(offset(slot) + INDEX_OFFSET));
+    }
+
+    private TxOut readOutput(int slot) {
+        ByteBuffer chunk = chunk(slot).duplicate();
+        int offset = offset(slot);
+        long value = chunk.getLong(offset + VALUE_OFFSET);
+        byte[] coordinate = new byte[Crypto.ECDSA_ORDER_IN_BYTES];
+        chunk.position(offset + KEY_OFFSET);
+        chunk.get(coordinate);
+        BigInteger x = new BigInteger(1, coordinate);
+        chunk.get(coordinate);
+        BigInteger y = new BigInteger(1, coordinate);
+        return new TxOut(value, new ECDSAPublicKey(x, y));
+    }
+
+    @Override
+    public OutputMap copy() {
+        OffHeapOutputMap copy = new OffHeapOutputMap(capacity);
+        for (int i = 0; i < chunks.length; i++) {
+            ByteBuffer source = chunks[i].duplicate();
+            source.clear();
+            copy.chunks[i].put(source);
+            copy.chunks[i].clear();
+        }
+        copy.size = size;
+        copy.used = used;
+        return copy;
+    }
+
+    @Override
+    public Iterator<Map.Entry<TxIn, TxOut>> iterator() {
+        return new Iterator<Map.Entry<TxIn, TxOut>>() {
+            private int slot = nextOccupied(0);
+
+            private int nextOccupied(int from) {
+                for (int s = from; s < capacity; s++) {
+                    if (chunk(s).get(offset(s) + STATE_OFFSET) == OCCUPIED) {
+                        return s;
+                    }
+                }
+                return capacity;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return slot < capacity;
+            }
+
+            @Override
+            public Map.Entry<TxIn, TxOut> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<TxIn, TxOut> entry = new AbstractMap.SimpleImmutableEntry<>(readKey(slot), readOutput(slot));
+                slot = nextOccupied(slot + 1);
+                return entry;
+            }
+        };
+    }
+}
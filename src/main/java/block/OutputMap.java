@@ -0,0 +1,60 @@
+package block;
+
+import crypto.ECDSAPublicKey;
+import transaction.TxIn;
+import transaction.TxOut;
+
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The storage behind an {@code UnspentTransactions}: a mutable map from outpoints to unspent outputs.
+ */
+interface OutputMap extends Iterable<Map.Entry<TxIn, TxOut>> {
+
+    /**
+     * @return The output at {@code key}, or {@code null} if there is none
+     */
+    TxOut get(TxIn key);
+
+    /**
+     * @return The output previously at {@code key}, or {@code null} if there was none
+     */
+    TxOut put(TxIn key, TxOut out);
+
+    /**
+     * @return The output previously at {@code key}, or {@code null} if there was none
+     */
+    TxOut remove(TxIn key);
+
+    int size();
+
+    /**
+     * @return An independent copy of this map, with the same kind of storage
+     */
+    OutputMap copy();
+
+    default Stream<Map.Entry<TxIn, TxOut>> stream() {
+        return StreamSupport.stream(
+                Spliterators.spliterator(iterator(), size(), Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * @return The entries whose outputs are owned by {@code owner}. This scans every entry unless
+     * {@link #indexesOwners()}.
+     */
+    default Stream<Map.Entry<TxIn, TxOut>> ownedBy(ECDSAPublicKey owner) {
+        return stream().filter(entry -> entry.getValue().ownerPubKey.equals(owner));
+    }
+
+    /**
+     * @return Whether this storage keeps its own index of outputs by owner, so that {@link #ownedBy} does not scan
+     * every entry
+     */
+    default boolean indexesOwners() {
+        return false;
+    }
+}
@@ -0,0 +1,106 @@
+package block;
+
+import crypto.ECDSAPublicKey;
+import transaction.TxIn;
+import transaction.TxOut;
+import utils.PersistentHashMap;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * An {@code OutputMap} made of a base map, which is only read, and the changes made on top of it: the outputs
+ * added, and the outputs of the base that were removed. The changes are held in {@code PersistentHashMap}s, so
+ * {@link #copy()} takes constant time whatever the storage of the base, and a change costs the same as a change to
+ * a {@code PersistentOutputMap}.
+ * <p>
+ * The base must not be modified while the overlay is in use.
+ */
+final class OverlayOutputMap implements OutputMap {
+    private final OutputMap base;
+    private PersistentHashMap<TxIn, TxOut> added;
+    // Keys of the base that are hidden, because they were removed or replaced
+    private PersistentHashMap<TxIn, Boolean> hidden;
+
+    OverlayOutputMap(OutputMap base) {
+        this(base, PersistentHashMap.empty(), PersistentHashMap.empty());
+    }
+
+    private OverlayOutputMap(OutputMap base,
+                             PersistentHashMap<TxIn, TxOut> added,
+                             PersistentHashMap<TxIn, Boolean> hidden) {
+        this.base = base;
+        this.added = added;
+        this.hidden = hidden;
+    }
+
+    @Override
+    public TxOut get(TxIn key) {
+        TxOut out = added.get(key);
+        if (out != null || hidden.containsKey(key)) {
+            return out;
+        }
+        return base.get(key);
+    }
+
+    @Override
+    public TxOut put(TxIn key, TxOut out) {
+        TxOut previous = get(key);
+        if (!hidden.containsKey(key) && base.get(key) != null) {
+            hidden = hidden.put(key, Boolean.TRUE);
+        }
+        added = added.put(key, out);
+        return previous;
+    }
+
+    @Override
+    public TxOut remove(TxIn key) {
+        TxOut previous = added.get(key);
+        if (previous != null) {
+            added = added.remove(key);
+            return previous;
+        }
+        if (hidden.containsKey(key)) {
+            return null;
+        }
+        previous = base.get(key);
+        if (previous != null) {
+            hidden = hidden.put(key, Boolean.TRUE);
+        }
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return base.size() - hidden.size() + added.size();
+    }
+
+    @Override
+    public OutputMap copy() {
+        return new OverlayOutputMap(base, added, hidden);
+    }
+
+    @Override
+    public Iterator<Map.Entry<TxIn, TxOut>> iterator() {
+        return stream().iterator();
+    }
+
+    @Override
+    public Stream<Map.Entry<TxIn, TxOut>> stream() {
+        PersistentHashMap<TxIn, Boolean> hidden = this.hidden;
+        return Stream.concat(base.stream().filter(entry -> !hidden.containsKey(entry.getKey())), added.stream());
+    }
+
+    @Override
+    public Stream<Map.Entry<TxIn, TxOut>> ownedBy(ECDSAPublicKey owner) {
+        PersistentHashMap<TxIn, Boolean> hidden = this.hidden;
+        return Stream.concat(base.ownedBy(owner).filter(entry -> !hidden.containsKey(entry.getKey())),
+                added.stream().filter(entry -> entry.getValue().ownerPubKey.equals(owner)));
+    }
+
+    @Override
+    public boolean indexesOwners() {
+        return base.indexesOwners();
+    }
+}
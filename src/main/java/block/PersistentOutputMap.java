@@ -0,0 +1,64 @@
+package block;
+
+import transaction.TxIn;
+import transaction.TxOut;
+import utils.PersistentHashMap;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * An {@code OutputMap} holding a version of a {@code PersistentHashMap}, so that {@link #copy()} takes constant
+ * time.
+ */
+final class PersistentOutputMap implements OutputMap {
+    private PersistentHashMap<TxIn, TxOut> map;
+
+    PersistentOutputMap() {
+        this(PersistentHashMap.empty());
+    }
+
+    private PersistentOutputMap(PersistentHashMap<TxIn, TxOut> map) {
+        this.map = map;
+    }
+
+    @Override
+    public TxOut get(TxIn key) {
+        return map.get(key);
+    }
+
+    @Override
+    public TxOut put(TxIn key, TxOut out) {
+        TxOut previous = map.get(key);
+        map = map.put(key, out);
+        return previous;
+    }
+
+    @Override
+    public TxOut remove(TxIn key) {
+        TxOut previous = map.get(key);
+        map = map.remove(key);
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public OutputMap copy() {
+        return new PersistentOutputMap(map);
+    }
+
+    @Override
+    public Iterator<Map.Entry<TxIn, TxOut>> iterator() {
+        return map.iterator();
+    }
+
+    @Override
+    public Stream<Map.Entry<TxIn, TxOut>> stream() {
+        return map.stream();
+    }
+}
@@ -0,0 +1,378 @@
+package block;
+
+import utils.Config;
+import utils.Log;
+import utils.ShaTwoFiftySix;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An append-only store of records keyed by SHA-256 hash.
+ * <p>
+ * Records are appended to a sequence of segment files ({@code <name>-00000.seg}, {@code <name>-00001.seg}, ...),
+ * each of which is rolled over once it exceeds a maximum size. A compact, fixed-width index file
+ * ({@code <name>.idx}) maps each key to the (segment, offset, length) of its record, so that opening a store
+ * only requires reading the index, not every record.
+ * <p>
+ * Every segment record also carries its key, so a missing or damaged index can be rebuilt by scanning the
+ * segments, and records that were appended but not yet indexed when the process died are recovered on open.
+ */
+final class SegmentedStore {
+    private final static Log LOGGER = Log.forClass(SegmentedStore.class);
+
+    private final static int INDEX_MAGIC = 0x53454749; // "SEGI"
+    private final static int INDEX_VERSION = 1;
+    private final static int INDEX_HEADER_SIZE = 8;
+    private final static int INDEX_ENTRY_SIZE = ShaTwoFiftySix.HASH_SIZE_IN_BYTES + 4 + 8 + 4;
+    private final static int RECORD_HEADER_SIZE = ShaTwoFiftySix.HASH_SIZE_IN_BYTES + 4;
+
+    private final Path directory;
+    private final String name;
+    private final int maxSegmentSize;
+
+    // Locations of all records, in the order they were appended
+    private final Map<ShaTwoFiftySix, Location> index = new LinkedHashMap<>();
+
+    // Read-only mappings of sealed segments that have been read from
+    private final Map<Integer, MappedByteBuffer> mappedSegments = new ConcurrentHashMap<>();
+
+    // Volatile so that concurrent readers see when a segment is sealed
+    private volatile int activeSegment;
+    private long activeSegmentSize;
+
+    SegmentedStore(Path directory, String name) throws IOException {
+        this(directory, name, Config.segmentSize());
+    }
+
+    /**
+     * @param maxSegmentSize The size past which a new segment is started. A segment only exceeds it if it holds a
+     *                       single record larger than that, and never exceeds {@code Integer.MAX_VALUE} bytes.
+     */
+    SegmentedStore(Path directory, String name, int maxSegmentSize) throws IOException {
+        if (maxSegmentSize <= RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Invalid segment size " + maxSegmentSize);
+        }
+        this.directory = directory;
+        this.name = name;
+        this.maxSegmentSize = maxSegmentSize;
+        Files.createDirectories(directory);
+        open();
+    }
+
+    /**
+     * @return Whether this store contains no records
+     */
+    boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    /**
+     * @return The number of records in this store
+     */
+    int size() {
+        return index.size();
+    }
+
+    boolean contains(ShaTwoFiftySix key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * @return The keys of all records in this store, in the order they were appended
+     */
+    List<ShaTwoFiftySix> keys() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    /**
+     * @return The location of the record with key {@code key}, if present
+     */
+    Optional<Location> locationOf(ShaTwoFiftySix key) {
+        return Optional.ofNullable(index.get(key));
+    }
+
+    /**
+     * Appends a record to the end of the active segment and indexes it. Does nothing if a record with key
+     * {@code key} is already present.
+     *
+     * @param key    The key of the record
+     * @param record The contents of the record
+     * @throws IOException
+     */
+    void append(ShaTwoFiftySix key, byte[] record) throws IOException {
+        if (index.containsKey(key)) {
+            return;
+        }
+        if ((long) RECORD_HEADER_SIZE + record.length > Integer.MAX_VALUE) {
+            throw new IOException("Record too large: " + record.length + " bytes");
+        }
+        if (activeSegmentSize > 0 && activeSegmentSize + RECORD_HEADER_SIZE + record.length > maxSegmentSize) {
+            activeSegment++;
+            activeSegmentSize = 0;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + record.length);
+        buffer.put(key.copyOfHash());
+        buffer.putInt(record.length);
+        buffer.put(record);
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(segmentPath(activeSegment),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            writeFully(channel, buffer);
+            channel.force(false);
+        }
+
+        Location location = new Location(activeSegment, activeSegmentSize + RECORD_HEADER_SIZE, record.length);
+        activeSegmentSize += RECORD_HEADER_SIZE + record.length;
+        appendIndexEntry(key, location);
+        index.put(key, location);
+    }
+
+    /**
+     * @param key The key of the record to read
+     * @return The contents of the record with key {@code key}, if present
+     * @throws IOException
+     */
+    Optional<byte[]> read(ShaTwoFiftySix key) throws IOException {
+        Location location = index.get(key);
+        if (location == null) {
+            return Optional.empty();
+        }
+        return Optional.of(read(location));
+    }
+
+    /**
+     * Reads a record. Sealed segments no longer change, so they are mapped once and read through the mapping; the
+     * active segment, which is still being appended to, is read directly from its file.
+     *
+     * @param location The location of the record, as returned by {@link #locationOf}
+     * @return The contents of the record
+     * @throws IOException
+     */
+    byte[] read(Location location) throws IOException {
+        byte[] record = new byte[location.length];
+        if (location.segment >= activeSegment) {
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            try (FileChannel channel = FileChannel.open(segmentPath(location.segment), StandardOpenOption.READ)) {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, location.offset + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of segment " + location.segment);
+                    }
+                }
+            }
+            return record;
+        }
+        ByteBuffer view = mappedSegment(location.segment).duplicate();
+        if (view.capacity() < location.end()) {
+            throw new IOException("Unexpected end of segment " + location.segment);
+        }
+        view.position((int) location.offset);
+        view.get(record);
+        return record;
+    }
+
+    private MappedByteBuffer mappedSegment(int segment) throws IOException {
+        MappedByteBuffer mapped = mappedSegments.get(segment);
+        if (mapped == null) {
+            try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+                // append never lets a segment grow this large
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Segment " + segment + " is too large to map");
+                }
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            // Concurrent readers may both map the segment; only one mapping is kept
+            MappedByteBuffer existing = mappedSegments.putIfAbsent(segment, mapped);
+            if (existing != null) {
+                mapped = existing;
+            }
+        }
+        return mapped;
+    }
+
+    Path segmentPath(int segment) {
+        return directory.resolve(String.format("%s-%05d.seg", name, segment));
+    }
+
+    private Path indexPath() {
+        return directory.resolve(name + ".idx");
+    }
+
+    private void open() throws IOException {
+        if (!readIndex()) {
+            index.clear();
+            Files.deleteIfExists(indexPath());
+        }
+
+        // Find the last segment, and index any complete records that were appended but never indexed
+        activeSegment = 0;
+        while (Files.exists(segmentPath(activeSegment + 1))) {
+            activeSegment++;
+        }
+        int firstUnindexed = 0;
+        long firstUnindexedOffset = 0;
+        for (Location location : index.values()) {
+            if (location.segment > firstUnindexed
+                    || (location.segment == firstUnindexed && location.end() > firstUnindexedOffset)) {
+                firstUnindexed = location.segment;
+                firstUnindexedOffset = location.end();
+            }
+        }
+        int recovered = 0;
+        for (int segment = firstUnindexed; segment <= activeSegment; segment++) {
+            long offset = segment == firstUnindexed ? firstUnindexedOffset : 0;
+            recovered += recoverSegment(segment, offset);
+        }
+        if (recovered > 0) {
+            LOGGER.info("Recovered %d unindexed records in %s", recovered, directory);
+        }
+        Path active = segmentPath(activeSegment);
+        activeSegmentSize = Files.exists(active) ? Files.size(active) : 0;
+    }
+
+    /**
+     * Reads the index file into {@code index}, dropping any trailing entries that are incomplete or do not refer
+     * to a complete record.
+     *
+     * @return Whether the index file was usable
+     */
+    private boolean readIndex() throws IOException {
+        Path path = indexPath();
+        if (!Files.exists(path)) {
+            return false;
+        }
+        long size = Files.size(path);
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path)))) {
+            if (size < INDEX_HEADER_SIZE || input.readInt() != INDEX_MAGIC || input.readInt() != INDEX_VERSION) {
+                LOGGER.warning("Ignoring unrecognized index file %s", path);
+                return false;
+            }
+            long numEntries = (size - INDEX_HEADER_SIZE) / INDEX_ENTRY_SIZE;
+            Map<Integer, Long> segmentSizes = new HashMap<>();
+            for (long i = 0; i < numEntries; i++) {
+                ShaTwoFiftySix key = ShaTwoFiftySix.deserialize(input);
+                Location location = new Location(input.readInt(), input.readLong(), input.readInt());
+                if (!segmentSizes.containsKey(location.segment)) {
+                    Path segmentPath = segmentPath(location.segment);
+                    segmentSizes.put(location.segment,
+                            Files.exists(segmentPath) ? Files.size(segmentPath) : -1L);
+                }
+                if (location.segment < 0 || location.offset < RECORD_HEADER_SIZE || location.length < 0
+                        || location.end() > segmentSizes.get(location.segment)) {
+                    LOGGER.warning("Truncating index %s at invalid entry %d", path, i);
+                    truncate(path, INDEX_HEADER_SIZE + i * INDEX_ENTRY_SIZE);
+                    return true;
+                }
+                index.put(key, location);
+            }
+            if (size != INDEX_HEADER_SIZE + numEntries * INDEX_ENTRY_SIZE) {
+                truncate(path, INDEX_HEADER_SIZE + numEntries * INDEX_ENTRY_SIZE);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Indexes the complete records of {@code segment} starting at {@code offset}, and truncates any incomplete
+     * record at the end of the segment.
+     *
+     * @return The number of recovered records
+     */
+    private int recoverSegment(int segment, long offset) throws IOException {
+        Path path = segmentPath(segment);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        long length = Files.size(path);
+        int recovered = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            while (offset + RECORD_HEADER_SIZE <= length) {
+                header.clear();
+                while (header.hasRemaining()) {
+                    channel.read(header, offset + header.position());
+                }
+                header.flip();
+                byte[] hash = new byte[ShaTwoFiftySix.HASH_SIZE_IN_BYTES];
+                header.get(hash);
+                int recordLength = header.getInt();
+                if (recordLength < 0 || offset + RECORD_HEADER_SIZE + recordLength > length) {
+                    break;
+                }
+                Optional<ShaTwoFiftySix> optKey = ShaTwoFiftySix.create(hash);
+                if (optKey.isPresent() && !index.containsKey(optKey.get())) {
+                    Location location = new Location(segment, offset + RECORD_HEADER_SIZE, recordLength);
+                    appendIndexEntry(optKey.get(), location);
+                    index.put(optKey.get(), location);
+                    recovered++;
+                }
+                offset += RECORD_HEADER_SIZE + recordLength;
+            }
+        }
+        if (offset < length) {
+            LOGGER.warning("Truncating incomplete record at the end of %s", path);
+            truncate(path, offset);
+        }
+        return recovered;
+    }
+
+    private void appendIndexEntry(ShaTwoFiftySix key, Location location) throws IOException {
+        Path path = indexPath();
+        boolean isNew = !Files.exists(path);
+        ByteBuffer buffer = ByteBuffer.allocate((isNew ? INDEX_HEADER_SIZE : 0) + INDEX_ENTRY_SIZE);
+        if (isNew) {
+            buffer.putInt(INDEX_MAGIC);
+            buffer.putInt(INDEX_VERSION);
+        }
+        buffer.put(key.copyOfHash());
+        buffer.putInt(location.segment);
+        buffer.putLong(location.offset);
+        buffer.putInt(location.length);
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            writeFully(channel, buffer);
+            channel.force(false);
+        }
+    }
+
+    private static void truncate(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * The position of a record's contents within the segment files
+     */
+    static final class Location {
+        final int segment;
+        final long offset;
+        final int length;
+
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        private long end() {
+            return offset + length;
+        }
+    }
+}
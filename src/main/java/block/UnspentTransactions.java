@@ -6,43 +6,91 @@ import transaction.TxIn;
 import transaction.TxOut;
 import utils.Longs;
 import utils.Pair;
+import utils.PersistentHashMap;
 import utils.ShaTwoFiftySix;
 
 import java.io.IOException;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 
 /**
  * A map from (SHA-256, index) pairs to unspent transaction outputs.
+ * <p>
+ * By default the entries are held in a {@code PersistentHashMap}, so {@link #copy()} takes constant time and a
+ * copy that is modified and then discarded (e.g. after a failed verification) costs only the entries that were
+ * changed. {@link #offHeap()} instead stores entries as packed records outside of the Java heap, which suits very
+ * large sets that are rarely copied.
+ * <p>
+ * Outputs are also indexed by their owner's public key, so that balances and the outputs a key can spend are found
+ * without scanning the whole map. The index is persistent as well, and is shared by copies. Storage that keeps its
+ * own index of owners, such as the UTXO database, is queried instead, so no index of it is held in memory.
  */
 public class UnspentTransactions implements Iterable<Map.Entry<TxIn, TxOut>> {
-    private final Map<TxIn, TxOut> map;
+    private final OutputMap map;
 
-    private UnspentTransactions(Map<TxIn, TxOut> map) {
+    // Null until it is first needed, for storage that is not empty to begin with or that should stay off-heap, and
+    // always null for storage that indexes owners itself
+    private PersistentHashMap<ECDSAPublicKey, OwnedOutputs> owners;
+
+    private UnspentTransactions(OutputMap map, PersistentHashMap<ECDSAPublicKey, OwnedOutputs> owners) {
         this.map = map;
+        this.owners = owners;
     }
 
     /**
      * @return A newly-created empty unspent transactions map
      */
     public static UnspentTransactions empty() {
-        return new UnspentTransactions(new HashMap<>());
+        return new UnspentTransactions(new PersistentOutputMap(), PersistentHashMap.empty());
+    }
+
+    /**
+     * @return A newly-created empty unspent transactions map whose entries are stored off-heap. The owner index is
+     * only built if it is queried.
+     */
+    public static UnspentTransactions offHeap() {
+        return new UnspentTransactions(new OffHeapOutputMap(), null);
+    }
+
+    /**
+     * @return An unspent transactions map whose entries are stored in {@code map}
+     */
+    static UnspentTransactions backedBy(OutputMap map) {
+        return new UnspentTransactions(map, null);
     }
 
     /**
-     * @return A copy of this map
+     * @return A copy of this map, with the same kind of storage
      */
     public UnspentTransactions copy() {
-        return new UnspentTransactions(new HashMap<>(map));
+        return new UnspentTransactions(map.copy(), owners);
+    }
+
+    /**
+     * @return A view of this map whose changes are kept apart from it, so that this map is never modified through
+     * the view. Copying the view, and changing it, take time independent of the size of this map, even for
+     * off-heap storage. This map must not be modified while the view is in use.
+     */
+    public UnspentTransactions overlay() {
+        return new UnspentTransactions(new OverlayOutputMap(map), owners);
     }
 
     public boolean contains(ShaTwoFiftySix hash, int index) {
-        return map.containsKey(new TxIn(hash, index));
+        return map.get(new TxIn(hash, index)) != null;
     }
 
     public TxOut put(ShaTwoFiftySix hash, int index, TxOut out) {
-        return map.put(new TxIn(hash, index), out);
+        TxIn key = new TxIn(hash, index);
+        TxOut previous = map.put(key, out);
+        if (owners != null) {
+            if (previous != null) {
+                unindex(key, previous);
+            }
+            index(key, out);
+        }
+        return previous;
     }
 
     public TxOut get(ShaTwoFiftySix hash, int index) {
@@ -50,7 +98,43 @@ public class UnspentTransactions implements Iterable<Map.Entry<TxIn, TxOut>> {
     }
 
     public TxOut remove(ShaTwoFiftySix hash, int index) {
-        return map.remove(new TxIn(hash, index));
+        TxIn key = new TxIn(hash, index);
+        TxOut previous = map.remove(key);
+        if (owners != null && previous != null) {
+            unindex(key, previous);
+        }
+        return previous;
+    }
+
+    private void index(TxIn key, TxOut out) {
+        OwnedOutputs owned = owners.get(out.ownerPubKey);
+        owners = owners.put(out.ownerPubKey, (owned == null ? OwnedOutputs.NONE : owned).with(key, out));
+    }
+
+    private void unindex(TxIn key, TxOut out) {
+        OwnedOutputs owned = owners.get(out.ownerPubKey).without(key, out);
+        owners = owned.outputs.isEmpty() ? owners.remove(out.ownerPubKey) : owners.put(out.ownerPubKey, owned);
+    }
+
+    private PersistentHashMap<ECDSAPublicKey, OwnedOutputs> owners() {
+        if (owners == null) {
+            owners = PersistentHashMap.empty();
+            for (Map.Entry<TxIn, TxOut> entry : map) {
+                index(entry.getKey(), entry.getValue());
+            }
+        }
+        return owners;
+    }
+
+    /**
+     * @return The entries whose outputs are owned by {@code key}
+     */
+    private Stream<Map.Entry<TxIn, TxOut>> ownedBy(ECDSAPublicKey key) {
+        if (map.indexesOwners()) {
+            return map.ownedBy(key);
+        }
+        OwnedOutputs owned = owners().get(key);
+        return owned == null ? Stream.empty() : owned.outputs.stream();
     }
 
     public int size() {
@@ -65,17 +149,43 @@ public class UnspentTransactions implements Iterable<Map.Entry<TxIn, TxOut>> {
             return false;
         }
         UnspentTransactions other = (UnspentTransactions) o;
-        return map.equals(other.map);
+        if (size() != other.size()) {
+            return false;
+        }
+        for (Map.Entry<TxIn, TxOut> entry : map) {
+            if (!entry.getValue().equals(other.map.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
     public int hashCode() {
-        return map.hashCode();
+        int hashCode = 0;
+        for (Map.Entry<TxIn, TxOut> entry : map) {
+            hashCode += entry.hashCode();
+        }
+        return hashCode;
     }
 
     @Override
     public Iterator<Map.Entry<TxIn, TxOut>> iterator() {
-        return map.entrySet().iterator();
+        return map.iterator();
+    }
+
+    /**
+     * @param key is a public key
+     * @return the number of coins tied to this public key.
+     */
+    public long getAmount(ECDSAPublicKey key) {
+        if (key == null) {
+            return 0;
+        } else if (map.indexesOwners()) {
+            return map.ownedBy(key).mapToLong(entry -> entry.getValue().value).sum();
+        }
+        OwnedOutputs owned = owners().get(key);
+        return owned == null ? 0 : owned.balance;
     }
 
     /**
@@ -84,10 +194,9 @@ public class UnspentTransactions implements Iterable<Map.Entry<TxIn, TxOut>> {
      * @return the number of coins tied to these public keys.
      */
     public long getAmounts(ECDSAPublicKey[] keys) {
-        return map.values().parallelStream()
-                .filter(out -> Arrays.stream(keys)
-                        .anyMatch(out.ownerPubKey::equals))
-                .mapToLong(out -> out.value)
+        return Arrays.stream(keys)
+                .distinct()
+                .mapToLong(this::getAmount)
                 .sum();
     }
 
@@ -96,9 +205,9 @@ public class UnspentTransactions implements Iterable<Map.Entry<TxIn, TxOut>> {
      * @return a list of `UnspentOutputs` owned by these `keys` that can be used to build a `Transaction`
      */
     private List<UnspentOutput> getUnspentOutputs(List<ECDSAPublicKey> keys) {
-        return map.entrySet().stream()
-                .filter(entry -> keys.stream()
-                        .anyMatch(entry.getValue().ownerPubKey::equals))
+        return keys.stream()
+                .distinct()
+                .flatMap(this::ownedBy)
                 .map(entry -> new UnspentOutput(
                         entry.getValue().ownerPubKey,
                         entry.getKey().previousTxn,
@@ -155,6 +264,29 @@ public class UnspentTransactions implements Iterable<Map.Entry<TxIn, TxOut>> {
         return Optional.of(new Pair<>(keysUsed, txb.build()));
     }
 
+    /**
+     * The outputs owned by one public key, and their total value
+     */
+    private static final class OwnedOutputs {
+        private static final OwnedOutputs NONE = new OwnedOutputs(PersistentHashMap.empty(), 0);
+
+        private final PersistentHashMap<TxIn, TxOut> outputs;
+        private final long balance;
+
+        private OwnedOutputs(PersistentHashMap<TxIn, TxOut> outputs, long balance) {
+            this.outputs = outputs;
+            this.balance = balance;
+        }
+
+        private OwnedOutputs with(TxIn key, TxOut out) {
+            return new OwnedOutputs(outputs.put(key, out), balance + out.value);
+        }
+
+        private OwnedOutputs without(TxIn key, TxOut out) {
+            return new OwnedOutputs(outputs.remove(key), balance - out.value);
+        }
+    }
+
     private static class UnspentOutput {
         private final ECDSAPublicKey ownerKey;
         private final ShaTwoFiftySix txHash;
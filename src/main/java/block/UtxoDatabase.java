@@ -0,0 +1,1038 @@
+package block;
+
+import crypto.Crypto;
+import crypto.ECDSAPublicKey;
+import transaction.TxIn;
+import transaction.TxOut;
+import utils.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+
+/**
+ * A crash-safe, disk-backed set of unspent transaction outputs, stored as a small log-structured merge tree.
+ * <p>
+ * Changes are applied to an in-memory table, which acts as a bounded write-back cache. The changes made by each
+ * block are appended to a write-ahead log as one checksummed batch, which is synced before {@link #commit}
+ * returns. Once the in-memory table grows past its limit it is written out as an immutable segment of sorted,
+ * fixed-width records, which are memory-mapped and binary searched. Segments are merged when there are too many.
+ * <p>
+ * The tree has two sections, each with its own in-memory table and segments: the outputs by outpoint, and an index
+ * of the outpoints and values of the outputs of each owner, sorted by owner and then outpoint. Both are changed by
+ * the same batches, so the balance and outputs of a key are read from a range of the index rather than by scanning
+ * the set or holding an index of it in memory.
+ * <p>
+ * A manifest names the live segments, the current log and the block that the committed state corresponds to. It
+ * is only ever replaced by an atomic rename, so after a crash the database is in the state of the last committed
+ * batch. Opening the database reads the manifest and replays the current log, which is bounded by the size of the
+ * in-memory table, so it does not depend on the size of the set.
+ */
+final class UtxoDatabase {
+    private final static Log LOGGER = Log.forClass(UtxoDatabase.class);
+
+    final static int DEFAULT_MEMTABLE_LIMIT = 1 << 16;
+    final static int MAX_SEGMENTS = 8;
+
+    private final static int MANIFEST_MAGIC = 0x5554584f; // "UTXO"
+    private final static int VERSION = 2;
+    private final static String MANIFEST_NAME = "MANIFEST";
+
+    private final static int KEY_SIZE = ShaTwoFiftySix.HASH_SIZE_IN_BYTES + 4;
+    private final static int VALUE_SIZE = 64 + 8; // A serialized TxOut
+    private final static int OWNER_SIZE = 2 * Crypto.ECDSA_ORDER_IN_BYTES; // A serialized ECDSAPublicKey
+    private final static int SEGMENT_HEADER_SIZE = 16;
+    private final static int BATCH_HEADER_SIZE = 4 + 8;
+
+    private final static Section OUTPUTS = new Section(0x55545853, KEY_SIZE, VALUE_SIZE); // "UTXS"
+    // Keyed by owner and then outpoint, with the value of the output
+    private final static Section OWNERS = new Section(0x5554584b, OWNER_SIZE + KEY_SIZE, 8); // "UTXK"
+
+    // Marks a removed entry, which shadows the entry in older segments
+    private final static TxOut DELETED = new TxOut(0, null);
+
+    private final Path directory;
+    private final int memtableLimit;
+    private final View live;
+    private final UnspentTransactions liveUnspentTxs;
+
+    // The committed state
+    private ShaTwoFiftySix tip = ShaTwoFiftySix.zero();
+    private PersistentHashMap<TxIn, TxOut> committedMemtable = PersistentHashMap.empty();
+    private PersistentHashMap<ECDSAPublicKey, PersistentHashMap<TxIn, TxOut>> committedOwnerMemtable =
+            PersistentHashMap.empty();
+    private long committedSize;
+    private long walNumber;
+    private long nextFileNumber;
+    private FileChannel wal;
+
+    // Keys changed since the last commit
+    private final Set<TxIn> touched = new LinkedHashSet<>();
+    private final Set<Pair<ECDSAPublicKey, TxIn>> touchedOwners = new LinkedHashSet<>();
+
+    UtxoDatabase(Path directory) throws IOException {
+        this(directory, DEFAULT_MEMTABLE_LIMIT);
+    }
+
+    UtxoDatabase(Path directory, int memtableLimit) throws IOException {
+        this.directory = directory;
+        this.memtableLimit = memtableLimit;
+        this.live = new View(this, PersistentHashMap.empty(), PersistentHashMap.empty(), Collections.emptyList(),
+                Collections.emptyList(), 0);
+        this.liveUnspentTxs = UnspentTransactions.backedBy(live);
+        Files.createDirectories(directory);
+        open();
+    }
+
+    /**
+     * @return The hash of the block whose unspent transactions were last committed, or zero if there is none
+     */
+    ShaTwoFiftySix tip() {
+        return tip;
+    }
+
+    /**
+     * @return The unspent transactions in this database. Changes to them are persisted by {@link #commit}, and
+     * copies of them are detached from the database.
+     */
+    UnspentTransactions unspentTransactions() {
+        return liveUnspentTxs;
+    }
+
+    /**
+     * Durably records all changes made since the last commit as the unspent transactions of the block with hash
+     * {@code tip}.
+     */
+    void commit(ShaTwoFiftySix tip) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(bytes);
+        tip.writeTo(payload);
+        payload.writeLong(live.size);
+        payload.writeInt(touched.size());
+        for (TxIn key : touched) {
+            TxOut value = live.memtable.get(key);
+            key.serialize(payload);
+            payload.writeBoolean(value != DELETED);
+            if (value != DELETED) {
+                value.serialize(payload);
+            }
+        }
+        payload.writeInt(touchedOwners.size());
+        for (Pair<ECDSAPublicKey, TxIn> ownerKey : touchedOwners) {
+            TxOut value = live.ownerMemtable.get(ownerKey.getLeft()).get(ownerKey.getRight());
+            ownerKey.getLeft().serialize(payload);
+            ownerKey.getRight().serialize(payload);
+            payload.writeBoolean(value != DELETED);
+            if (value != DELETED) {
+                payload.writeLong(value.value);
+            }
+        }
+        writeBatch(bytes.toByteArray());
+
+        this.tip = tip;
+        committedMemtable = live.memtable;
+        committedOwnerMemtable = live.ownerMemtable;
+        committedSize = live.size;
+        touched.clear();
+        touchedOwners.clear();
+
+        if (live.memtable.size() > memtableLimit) {
+            flush();
+        }
+    }
+
+    /**
+     * Discards all changes made since the last commit.
+     */
+    void abort() {
+        live.memtable = committedMemtable;
+        live.ownerMemtable = committedOwnerMemtable;
+        live.size = committedSize;
+        touched.clear();
+        touchedOwners.clear();
+    }
+
+    /**
+     * Removes every entry, and commits the result with a zero tip.
+     */
+    void clear() throws IOException {
+        List<Segment> oldSegments = new ArrayList<>(live.segments);
+        oldSegments.addAll(live.ownerSegments);
+        long oldWal = walNumber;
+        live.memtable = PersistentHashMap.empty();
+        live.ownerMemtable = PersistentHashMap.empty();
+        live.segments = Collections.emptyList();
+        live.ownerSegments = Collections.emptyList();
+        live.size = 0;
+        touched.clear();
+        touchedOwners.clear();
+        tip = ShaTwoFiftySix.zero();
+        committedMemtable = live.memtable;
+        committedOwnerMemtable = live.ownerMemtable;
+        committedSize = 0;
+        startNewWal();
+        deleteFiles(oldSegments, oldWal);
+    }
+
+    private void open() throws IOException {
+        Path manifestPath = directory.resolve(MANIFEST_NAME);
+        if (!Files.exists(manifestPath) || !readManifest(manifestPath)) {
+            tip = ShaTwoFiftySix.zero();
+            live.segments = Collections.emptyList();
+            live.ownerSegments = Collections.emptyList();
+            live.size = 0;
+            walNumber = -1;
+            nextFileNumber = 0;
+            deleteUnreferencedFiles();
+            walNumber = nextFileNumber++;
+            writeManifest();
+        } else {
+            deleteUnreferencedFiles();
+        }
+        Path walPath = walPath(walNumber);
+        wal = FileChannel.open(walPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long validLength = replayWal(walPath);
+        if (validLength < wal.size()) {
+            LOGGER.warning("Truncating incomplete batch at the end of %s", walPath);
+            wal.truncate(validLength);
+            wal.force(true);
+        }
+        wal.position(validLength);
+        committedMemtable = live.memtable;
+        committedOwnerMemtable = live.ownerMemtable;
+        committedSize = live.size;
+    }
+
+    /**
+     * @return Whether the manifest was valid
+     */
+    private boolean readManifest(Path manifestPath) throws IOException {
+        byte[] contents = Files.readAllBytes(manifestPath);
+        if (contents.length < 8) {
+            LOGGER.severe("Ignoring truncated UTXO manifest %s", manifestPath);
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(contents, 0, contents.length - 8);
+        ByteBuffer buffer = ByteBuffer.wrap(contents);
+        if (buffer.getLong(contents.length - 8) != crc.getValue()) {
+            LOGGER.severe("Ignoring corrupt UTXO manifest %s", manifestPath);
+            return false;
+        }
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(contents))) {
+            if (input.readInt() != MANIFEST_MAGIC || input.readInt() != VERSION) {
+                LOGGER.severe("Ignoring unrecognized UTXO manifest %s", manifestPath);
+                return false;
+            }
+            tip = ShaTwoFiftySix.deserialize(input);
+            live.size = input.readLong();
+            walNumber = input.readLong();
+            nextFileNumber = input.readLong();
+            live.segments = readSegmentList(input, OUTPUTS);
+            live.ownerSegments = readSegmentList(input, OWNERS);
+        } catch (IOException e) {
+            LOGGER.severe("Unable to open UTXO database: %s", e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    private List<Segment> readSegmentList(DataInputStream input, Section section) throws IOException {
+        int numSegments = input.readInt();
+        List<Segment> segments = new ArrayList<>();
+        for (int i = 0; i < numSegments; i++) {
+            segments.add(Segment.open(segmentPath(input.readLong()), section));
+        }
+        return Collections.unmodifiableList(segments);
+    }
+
+    /**
+     * Deletes segments and logs that are not named by the manifest, e.g. those left behind by a crash during a
+     * flush or compaction.
+     */
+    private void deleteUnreferencedFiles() throws IOException {
+        Set<String> referenced = new HashSet<>();
+        for (Segment segment : live.segments) {
+            referenced.add(segmentPath(segment.number).getFileName().toString());
+        }
+        for (Segment segment : live.ownerSegments) {
+            referenced.add(segmentPath(segment.number).getFileName().toString());
+        }
+        if (walNumber >= 0) {
+            referenced.add(walPath(walNumber).getFileName().toString());
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.{seg,wal}")) {
+            for (Path path : stream) {
+                if (!referenced.contains(path.getFileName().toString())) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(MANIFEST_MAGIC);
+        output.writeInt(VERSION);
+        tip.writeTo(output);
+        output.writeLong(committedSize);
+        output.writeLong(walNumber);
+        output.writeLong(nextFileNumber);
+        for (List<Segment> segments : Arrays.asList(live.segments, live.ownerSegments)) {
+            output.writeInt(segments.size());
+            for (Segment segment : segments) {
+                output.writeLong(segment.number);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        output.writeLong(crc.getValue());
+
+        Path temporary = directory.resolve(MANIFEST_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, ByteBuffer.wrap(bytes.toByteArray()));
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(MANIFEST_NAME), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+    }
+
+    /**
+     * Applies every complete batch in the log to the in-memory table.
+     *
+     * @return The length of the valid prefix of the log
+     */
+    private long replayWal(Path walPath) throws IOException {
+        long position = 0;
+        long length = Files.size(walPath);
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(walPath)))) {
+            while (position + BATCH_HEADER_SIZE <= length) {
+                int payloadLength = input.readInt();
+                long checksum = input.readLong();
+                if (payloadLength < 0 || position + BATCH_HEADER_SIZE + payloadLength > length) {
+                    break;
+                }
+                byte[] payload = new byte[payloadLength];
+                IOUtils.fill(input, payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (crc.getValue() != checksum || !applyBatch(payload)) {
+                    break;
+                }
+                position += BATCH_HEADER_SIZE + payloadLength;
+            }
+        }
+        return position;
+    }
+
+    private boolean applyBatch(byte[] payload) throws IOException {
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload))) {
+            ShaTwoFiftySix batchTip = ShaTwoFiftySix.deserialize(input);
+            long size = input.readLong();
+            int numChanges = input.readInt();
+            PersistentHashMap<TxIn, TxOut> memtable = live.memtable;
+            for (int i = 0; i < numChanges; i++) {
+                TxIn key = TxIn.DESERIALIZER.deserialize(input);
+                TxOut value = input.readBoolean() ? TxOut.DESERIALIZER.deserialize(input) : DELETED;
+                memtable = memtable.put(key, value);
+            }
+            int numOwnerChanges = input.readInt();
+            PersistentHashMap<ECDSAPublicKey, PersistentHashMap<TxIn, TxOut>> ownerMemtable = live.ownerMemtable;
+            for (int i = 0; i < numOwnerChanges; i++) {
+                ECDSAPublicKey owner = ECDSAPublicKey.DESERIALIZER.deserialize(input);
+                TxIn key = TxIn.DESERIALIZER.deserialize(input);
+                TxOut value = input.readBoolean() ? new TxOut(input.readLong(), owner) : DELETED;
+                ownerMemtable = putOwned(ownerMemtable, owner, key, value);
+            }
+            tip = batchTip;
+            live.memtable = memtable;
+            live.ownerMemtable = ownerMemtable;
+            live.size = size;
+            return true;
+        } catch (DeserializationException | EOFException e) {
+            LOGGER.severe("Invalid batch in UTXO log: %s", e.getMessage());
+            return false;
+        }
+    }
+
+    private void writeBatch(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(BATCH_HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putLong(crc.getValue());
+        buffer.put(payload);
+        buffer.flip();
+        writeFully(wal, buffer);
+        wal.force(false);
+    }
+
+    /**
+     * Writes the in-memory tables to new segments and starts a new log, merging segments if there are too many.
+     */
+    private void flush() throws IOException {
+        List<Segment> oldSegments = live.segments;
+        List<Segment> oldOwnerSegments = live.ownerSegments;
+        long oldWal = walNumber;
+
+        // Removals only need to be kept while there are older segments for them to shadow
+        List<byte[]> records = new ArrayList<>(live.memtable.size());
+        for (Map.Entry<TxIn, TxOut> entry : live.memtable) {
+            if (entry.getValue() != DELETED || !oldSegments.isEmpty()) {
+                records.add(encodeRecord(entry.getKey(), entry.getValue()));
+            }
+        }
+        records.sort(OUTPUTS::compare);
+        List<byte[]> ownerRecords = new ArrayList<>();
+        for (Map.Entry<ECDSAPublicKey, PersistentHashMap<TxIn, TxOut>> owned : live.ownerMemtable) {
+            for (Map.Entry<TxIn, TxOut> entry : owned.getValue()) {
+                if (entry.getValue() != DELETED || !oldOwnerSegments.isEmpty()) {
+                    ownerRecords.add(encodeOwnerRecord(owned.getKey(), entry.getKey(), entry.getValue()));
+                }
+            }
+        }
+        ownerRecords.sort(OWNERS::compare);
+
+        live.segments = prepend(writeSegment(OUTPUTS, records.iterator()), oldSegments);
+        live.ownerSegments = prepend(writeSegment(OWNERS, ownerRecords.iterator()), oldOwnerSegments);
+        live.memtable = PersistentHashMap.empty();
+        live.ownerMemtable = PersistentHashMap.empty();
+        committedMemtable = live.memtable;
+        committedOwnerMemtable = live.ownerMemtable;
+        startNewWal();
+        deleteFiles(Collections.emptyList(), oldWal);
+
+        if (live.segments.size() > MAX_SEGMENTS) {
+            compact();
+        }
+    }
+
+    private static List<Segment> prepend(Segment segment, List<Segment> segments) {
+        List<Segment> result = new ArrayList<>();
+        result.add(segment);
+        result.addAll(segments);
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Merges every segment of each section into one, dropping removed and shadowed entries.
+     */
+    private void compact() throws IOException {
+        List<Segment> oldSegments = new ArrayList<>(live.segments);
+        oldSegments.addAll(live.ownerSegments);
+        long start = System.nanoTime();
+        live.segments = Collections.singletonList(merge(OUTPUTS, live.segments));
+        live.ownerSegments = Collections.singletonList(merge(OWNERS, live.ownerSegments));
+        writeManifest();
+        deleteFiles(oldSegments, -1);
+        LOGGER.info("Compacted %d UTXO segments into %d entries in %d ms",
+                oldSegments.size(), live.segments.get(0).count, (System.nanoTime() - start) / 1000000);
+    }
+
+    private Segment merge(Section section, List<Segment> segments) throws IOException {
+        return writeSegment(section, new MergingIterator(section, segments, new byte[0]));
+    }
+
+    /**
+     * Writes {@code records}, which are sorted, to a new segment as they are read, and fills in their count once
+     * they are all written
+     */
+    private Segment writeSegment(Section section, Iterator<byte[]> records) throws IOException {
+        long number = nextFileNumber++;
+        Path path = segmentPath(number);
+        try (FileOutputStream file = new FileOutputStream(path.toFile());
+             DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file))) {
+            output.writeInt(section.magic);
+            output.writeInt(VERSION);
+            output.writeLong(0);
+            long count = 0;
+            while (records.hasNext()) {
+                output.write(records.next());
+                count++;
+            }
+            output.flush();
+            ByteBuffer countBuffer = ByteBuffer.allocate(8).putLong(0, count);
+            while (countBuffer.hasRemaining()) {
+                file.getChannel().write(countBuffer, 8 + countBuffer.position());
+            }
+            file.getFD().sync();
+        }
+        return Segment.open(path, section);
+    }
+
+    private void startNewWal() throws IOException {
+        walNumber = nextFileNumber++;
+        FileChannel newWal = FileChannel.open(walPath(walNumber), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        newWal.force(true);
+        writeManifest();
+        if (wal != null) {
+            wal.close();
+        }
+        wal = newWal;
+    }
+
+    /**
+     * Deletes files that are no longer named by the manifest. Segments stay readable by existing copies of the
+     * unspent transactions, since they are memory-mapped.
+     */
+    private void deleteFiles(List<Segment> segments, long walNumber) {
+        try {
+            for (Segment segment : segments) {
+                Files.deleteIfExists(segmentPath(segment.number));
+            }
+            if (walNumber >= 0) {
+                Files.deleteIfExists(walPath(walNumber));
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Unable to delete old UTXO files: %s", e.getMessage());
+        }
+    }
+
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported on every platform
+        }
+    }
+
+    private Path segmentPath(long number) {
+        return directory.resolve(String.format("%06d.seg", number));
+    }
+
+    private Path walPath(long number) {
+        return directory.resolve(String.format("%06d.wal", number));
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static PersistentHashMap<ECDSAPublicKey, PersistentHashMap<TxIn, TxOut>> putOwned(
+            PersistentHashMap<ECDSAPublicKey, PersistentHashMap<TxIn, TxOut>> ownerMemtable,
+            ECDSAPublicKey owner, TxIn key, TxOut value) {
+        PersistentHashMap<TxIn, TxOut> owned = ownerMemtable.get(owner);
+        return ownerMemtable.put(owner, (owned == null ? PersistentHashMap.<TxIn, TxOut>empty() : owned)
+                .put(key, value));
+    }
+
+    private static byte[] encodeKey(TxIn key) {
+        ByteBuffer buffer = ByteBuffer.allocate(KEY_SIZE);
+        buffer.put(key.previousTxn.copyOfHash());
+        buffer.putInt(key.txIdx);
+        return buffer.array();
+    }
+
+    private static byte[] encodeOwner(ECDSAPublicKey owner) {
+        try {
+            return ByteUtil.asByteArray(owner::serialize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] encodeRecord(TxIn key, TxOut value) {
+        ByteBuffer buffer = ByteBuffer.allocate(OUTPUTS.recordSize);
+        buffer.put(encodeKey(key));
+        if (value == DELETED) {
+            buffer.put((byte) 0);
+        } else {
+            buffer.put((byte) 1);
+            try {
+                buffer.put(ByteUtil.asByteArray(value::serialize));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return The outpoint and output of a record of the outputs section that is not a removal
+     */
+    private static Map.Entry<TxIn, TxOut> decodeRecord(byte[] record) {
+        TxIn key = decodeKey(ByteBuffer.wrap(record, 0, KEY_SIZE));
+        try {
+            TxOut value = TxOut.DESERIALIZER.deserialize(Arrays.copyOfRange(record, KEY_SIZE + 1, record.length));
+            return new AbstractMap.SimpleImmutableEntry<>(key, value);
+        } catch (DeserializationException | IOException e) {
+            throw new IllegalStateException("Corrupt UTXO record", e);
+        }
+    }
+
+    private static byte[] encodeOwnerRecord(ECDSAPublicKey owner, TxIn key, TxOut value) {
+        ByteBuffer buffer = ByteBuffer.allocate(OWNERS.recordSize);
+        buffer.put(encodeOwner(owner));
+        buffer.put(encodeKey(key));
+        if (value == DELETED) {
+            buffer.put((byte) 0);
+        } else {
+            buffer.put((byte) 1);
+            buffer.putLong(value.value);
+        }
+        return buffer.array();
+    }
+
+    private static TxIn decodeKey(ByteBuffer buffer) {
+        byte[] hash = new byte[ShaTwoFiftySix.HASH_SIZE_IN_BYTES];
+        buffer.get(hash);
+        ShaTwoFiftySix sha = ShaTwoFiftySix.create(hash)
+                .orElseThrow(() -> new IllegalStateException("Corrupt UTXO segment"));
+        return new TxIn(sha, buffer.getInt());
+    }
+
+    /**
+     * The layout of the records of one section of the tree. Each record is a fixed-width key, a flag that is zero
+     * if the entry was removed, and a fixed-width value.
+     */
+    private static final class Section {
+        private final int magic;
+        private final int keySize;
+        private final int recordSize;
+
+        private Section(int magic, int keySize, int valueSize) {
+            this.magic = magic;
+            this.keySize = keySize;
+            this.recordSize = keySize + 1 + valueSize;
+        }
+
+        private int compare(byte[] a, byte[] b) {
+            return comparePrefix(a, b, keySize);
+        }
+    }
+
+    private static int comparePrefix(byte[] a, byte[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            int cmp = Integer.compare(a[i] & 0xff, b[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Records sorted by key
+     */
+    private interface SortedRecords {
+        int count();
+
+        byte[] record(int position);
+
+        /**
+         * @return The position of the first record whose key, cut to the length of {@code prefix}, is not less
+         * than {@code prefix}, or if {@code after}, greater than it
+         */
+        default int bound(byte[] prefix, boolean after) {
+            int low = 0;
+            int high = count();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                int cmp = comparePrefix(record(mid), prefix, prefix.length);
+                if (cmp < 0 || (after && cmp == 0)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /**
+     * Sorted records held in memory, such as those of an in-memory table
+     */
+    private static final class RecordList implements SortedRecords {
+        private final List<byte[]> records;
+
+        private RecordList(List<byte[]> records) {
+            this.records = records;
+        }
+
+        @Override
+        public int count() {
+            return records.size();
+        }
+
+        @Override
+        public byte[] record(int position) {
+            return records.get(position);
+        }
+    }
+
+    /**
+     * An immutable, memory-mapped file of records of one section, sorted by key
+     */
+    private static final class Segment implements SortedRecords {
+        private final long number;
+        private final Section section;
+        private final MappedByteBuffer buffer;
+        private final int count;
+
+        private Segment(long number, Section section, MappedByteBuffer buffer, int count) {
+            this.number = number;
+            this.section = section;
+            this.buffer = buffer;
+            this.count = count;
+        }
+
+        private static Segment open(Path path, Section section) throws IOException {
+            String filename = path.getFileName().toString();
+            long number = Long.parseLong(filename.substring(0, filename.indexOf('.')));
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.capacity() < SEGMENT_HEADER_SIZE || buffer.getInt(0) != section.magic
+                        || buffer.getInt(4) != VERSION) {
+                    throw new IOException("Invalid UTXO segment " + path);
+                }
+                long count = buffer.getLong(8);
+                if (count < 0 || SEGMENT_HEADER_SIZE + count * section.recordSize != buffer.capacity()) {
+                    throw new IOException("Truncated UTXO segment " + path);
+                }
+                return new Segment(number, section, buffer, (int) count);
+            }
+        }
+
+        private int offset(int position) {
+            return SEGMENT_HEADER_SIZE + position * section.recordSize;
+        }
+
+        private int compareKeyAt(int position, byte[] key) {
+            int offset = offset(position);
+            for (int i = 0; i < section.keySize; i++) {
+                int cmp = Integer.compare(buffer.get(offset + i) & 0xff, key[i] & 0xff);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return The position of the record with {@code key}, or -1 if there is none
+         */
+        private int find(byte[] key) {
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compareKeyAt(mid, key);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public int count() {
+            return count;
+        }
+
+        @Override
+        public byte[] record(int position) {
+            byte[] record = new byte[section.recordSize];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset(position));
+            view.get(record);
+            return record;
+        }
+
+        /**
+         * @return The output of the record at {@code position} of an outputs segment, or {@code DELETED}
+         */
+        private TxOut value(int position) {
+            if (buffer.get(offset(position) + KEY_SIZE) == 0) {
+                return DELETED;
+            }
+            byte[] value = new byte[VALUE_SIZE];
+            ByteBuffer view = buffer.duplicate();
+            view.position(offset(position) + KEY_SIZE + 1);
+            view.get(value);
+            try {
+                return TxOut.DESERIALIZER.deserialize(value);
+            } catch (DeserializationException | IOException e) {
+                throw new IllegalStateException("Corrupt UTXO segment " + number, e);
+            }
+        }
+    }
+
+    /**
+     * A position in a run of sorted records, used to merge them in key order
+     */
+    private static final class Cursor implements Comparable<Cursor> {
+        private final Section section;
+        private final SortedRecords records;
+        private final int age; // 0 for the newest records
+        private final int end;
+        private int position;
+        private byte[] record;
+
+        private Cursor(Section section, SortedRecords records, int age, int start, int end) {
+            this.section = section;
+            this.records = records;
+            this.age = age;
+            this.position = start;
+            this.end = end;
+            this.record = hasRecord() ? records.record(position) : null;
+        }
+
+        private boolean hasRecord() {
+            return position < end;
+        }
+
+        private void advance() {
+            position++;
+            record = hasRecord() ? records.record(position) : null;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            int cmp = section.compare(record, other.record);
+            return cmp != 0 ? cmp : Integer.compare(age, other.age);
+        }
+    }
+
+    /**
+     * Iterates in key order over the newest record of each key in runs of sorted records, ordered newest first,
+     * skipping removed entries. Only the records whose keys start with a given prefix are read, so each step costs
+     * a logarithm of the number of runs, and nothing is held but one record per run.
+     */
+    private static final class MergingIterator implements Iterator<byte[]> {
+        private final Section section;
+        private final PriorityQueue<Cursor> cursors = new PriorityQueue<>();
+        private byte[] next;
+
+        private MergingIterator(Section section, List<? extends SortedRecords> runs, byte[] prefix) {
+            this.section = section;
+            for (int age = 0; age < runs.size(); age++) {
+                SortedRecords run = runs.get(age);
+                Cursor cursor = new Cursor(section, run, age, run.bound(prefix, false), run.bound(prefix, true));
+                if (cursor.hasRecord()) {
+                    cursors.add(cursor);
+                }
+            }
+            next = advance();
+        }
+
+        private byte[] advance() {
+            while (!cursors.isEmpty()) {
+                Cursor cursor = cursors.poll();
+                byte[] record = cursor.record;
+                // Cursors with equal keys are ordered newest first, so the others hold shadowed records
+                while (!cursors.isEmpty() && section.compare(cursors.peek().record, record) == 0) {
+                    step(cursors.poll());
+                }
+                step(cursor);
+                if (record[section.keySize] != 0) {
+                    return record;
+                }
+            }
+            return null;
+        }
+
+        private void step(Cursor cursor) {
+            cursor.advance();
+            if (cursor.hasRecord()) {
+                cursors.add(cursor);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public byte[] next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            byte[] record = next;
+            next = advance();
+            return record;
+        }
+    }
+
+    /**
+     * A version of the database's contents: in-memory tables in front of lists of segments. The live view records
+     * which keys it changes so they can be committed; copies are detached and are only held in memory.
+     */
+    private static final class View implements OutputMap {
+        private final UtxoDatabase database; // null for detached copies
+        private PersistentHashMap<TxIn, TxOut> memtable;
+        // The changes to the owner index, by owner
+        private PersistentHashMap<ECDSAPublicKey, PersistentHashMap<TxIn, TxOut>> ownerMemtable;
+        private List<Segment> segments; // Newest first
+        private List<Segment> ownerSegments; // Newest first
+        private long size;
+
+        private View(UtxoDatabase database, PersistentHashMap<TxIn, TxOut> memtable,
+                     PersistentHashMap<ECDSAPublicKey, PersistentHashMap<TxIn, TxOut>> ownerMemtable,
+                     List<Segment> segments, List<Segment> ownerSegments, long size) {
+            this.database = database;
+            this.memtable = memtable;
+            this.ownerMemtable = ownerMemtable;
+            this.segments = segments;
+            this.ownerSegments = ownerSegments;
+            this.size = size;
+        }
+
+        /**
+         * @return The value for {@code key}, {@code DELETED}, or {@code null} if {@code key} was never present
+         */
+        private TxOut lookup(TxIn key) {
+            TxOut value = memtable.get(key);
+            if (value != null) {
+                return value;
+            }
+            byte[] encodedKey = null;
+            for (Segment segment : segments) {
+                if (encodedKey == null) {
+                    encodedKey = encodeKey(key);
+                }
+                int position = segment.find(encodedKey);
+                if (position >= 0) {
+                    return segment.value(position);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public TxOut get(TxIn key) {
+            TxOut value = lookup(key);
+            return value == DELETED ? null : value;
+        }
+
+        @Override
+        public TxOut put(TxIn key, TxOut out) {
+            TxOut previous = get(key);
+            memtable = memtable.put(key, out);
+            if (previous == null) {
+                size++;
+            } else {
+                putOwned(previous.ownerPubKey, key, DELETED);
+            }
+            putOwned(out.ownerPubKey, key, out);
+            if (database != null) {
+                database.touched.add(key);
+            }
+            return previous;
+        }
+
+        @Override
+        public TxOut remove(TxIn key) {
+            TxOut previous = get(key);
+            if (previous == null) {
+                return null;
+            }
+            memtable = memtable.put(key, DELETED);
+            size--;
+            putOwned(previous.ownerPubKey, key, DELETED);
+            if (database != null) {
+                database.touched.add(key);
+            }
+            return previous;
+        }
+
+        private void putOwned(ECDSAPublicKey owner, TxIn key, TxOut value) {
+            ownerMemtable = UtxoDatabase.putOwned(ownerMemtable, owner, key, value);
+            if (database != null) {
+                database.touchedOwners.add(new Pair<>(owner, key));
+            }
+        }
+
+        @Override
+        public int size() {
+            return (int) size;
+        }
+
+        @Override
+        public OutputMap copy() {
+            return new View(null, memtable, ownerMemtable, segments, ownerSegments, size);
+        }
+
+        /**
+         * Reads the range of the owner index that belongs to {@code owner}, merging its in-memory changes with the
+         * segments
+         */
+        @Override
+        public Stream<Map.Entry<TxIn, TxOut>> ownedBy(ECDSAPublicKey owner) {
+            byte[] prefix = encodeOwner(owner);
+            List<byte[]> changes = new ArrayList<>();
+            PersistentHashMap<TxIn, TxOut> owned = ownerMemtable.get(owner);
+            if (owned != null) {
+                for (Map.Entry<TxIn, TxOut> entry : owned) {
+                    changes.add(encodeOwnerRecord(owner, entry.getKey(), entry.getValue()));
+                }
+                changes.sort(OWNERS::compare);
+            }
+            List<SortedRecords> runs = new ArrayList<>();
+            runs.add(new RecordList(changes));
+            runs.addAll(ownerSegments);
+            Iterator<byte[]> records = new MergingIterator(OWNERS, runs, prefix);
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(records, Spliterator.ORDERED), false)
+                    .map(record -> {
+                        ByteBuffer buffer = ByteBuffer.wrap(record, OWNER_SIZE, KEY_SIZE + 1 + 8);
+                        TxIn key = decodeKey(buffer);
+                        buffer.get(); // The flag
+                        return new AbstractMap.SimpleImmutableEntry<>(key, new TxOut(buffer.getLong(), owner));
+                    });
+        }
+
+        @Override
+        public boolean indexesOwners() {
+            return true;
+        }
+
+        /**
+         * Merges the in-memory table, once sorted, with the segments in key order, reading the segments as the
+         * iteration goes. Only the in-memory table, whose size is bounded, is copied.
+         */
+        @Override
+        public Iterator<Map.Entry<TxIn, TxOut>> iterator() {
+            List<byte[]> changes = new ArrayList<>(memtable.size());
+            for (Map.Entry<TxIn, TxOut> entry : memtable) {
+                changes.add(encodeRecord(entry.getKey(), entry.getValue()));
+            }
+            changes.sort(OUTPUTS::compare);
+            List<SortedRecords> runs = new ArrayList<>();
+            runs.add(new RecordList(changes));
+            runs.addAll(segments);
+            Iterator<byte[]> records = new MergingIterator(OUTPUTS, runs, new byte[0]);
+            return new Iterator<Map.Entry<TxIn, TxOut>>() {
+                @Override
+                public boolean hasNext() {
+                    return records.hasNext();
+                }
+
+                @Override
+                public Map.Entry<TxIn, TxOut> next() {
+                    return decodeRecord(records.next());
+                }
+            };
+        }
+    }
+}
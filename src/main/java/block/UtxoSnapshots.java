@@ -0,0 +1,217 @@
+package block;
+
+import transaction.TxIn;
+import transaction.TxOut;
+import utils.DeserializationException;
+import utils.Log;
+import utils.ShaTwoFiftySix;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Checkpoints of the unspent transactions at some {@code Block}, each written to its own file. A snapshot holds the
+ * hash and depth of its {@code Block}, every unspent output, and a CRC32 of all of it, so that a torn or corrupted
+ * snapshot is detected and skipped when reading.
+ * <p>
+ * Snapshots are written by a single background thread from an O(1) copy of the unspent transactions, so the caller
+ * is never blocked by the write. Only the newest {@code RETAINED_SNAPSHOTS} snapshots are kept.
+ */
+final class UtxoSnapshots {
+    private final static Log LOGGER = Log.forClass(UtxoSnapshots.class);
+
+    final static int RETAINED_SNAPSHOTS = 2;
+
+    private final static int MAGIC = 0x55545850; // "UTXP"
+    private final static int VERSION = 1;
+    private final static String SUFFIX = ".snapshot";
+
+    private final Path directory;
+    private final ExecutorService writer;
+    private final AtomicBoolean writing = new AtomicBoolean();
+
+    UtxoSnapshots(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "UtxoSnapshotWriter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * A snapshot read from disk
+     */
+    static final class Snapshot {
+        final ShaTwoFiftySix hash;
+        final int depth;
+        final UnspentTransactions unspentTxs;
+
+        private Snapshot(ShaTwoFiftySix hash, int depth, UnspentTransactions unspentTxs) {
+            this.hash = hash;
+            this.depth = depth;
+            this.unspentTxs = unspentTxs;
+        }
+    }
+
+    /**
+     * Writes a snapshot in the background. If a previous snapshot is still being written, this one is skipped
+     * rather than queued, so slow disks cannot make copies of the unspent transactions pile up.
+     *
+     * @param unspentTxs A copy of the unspent transactions of the block with hash {@code hash}, which must not be
+     *                   modified afterwards
+     * @return The pending write, or {@code Optional.empty()} if it was skipped
+     */
+    Optional<Future<?>> writeInBackground(ShaTwoFiftySix hash, int depth, UnspentTransactions unspentTxs) {
+        if (!writing.compareAndSet(false, true)) {
+            LOGGER.info("Skipping UTXO snapshot at depth %d, since the previous one is still being written", depth);
+            return Optional.empty();
+        }
+        return Optional.of(writer.submit(() -> {
+            try {
+                write(hash, depth, unspentTxs);
+            } catch (IOException e) {
+                LOGGER.severe("Unable to write UTXO snapshot at depth %d: %s", depth, e.getMessage());
+            } finally {
+                writing.set(false);
+            }
+        }));
+    }
+
+    /**
+     * Writes a snapshot to a temporary file, and then moves it into place so that readers only see complete
+     * snapshots.
+     */
+    void write(ShaTwoFiftySix hash, int depth, UnspentTransactions unspentTxs) throws IOException {
+        long start = System.nanoTime();
+        Path path = snapshotPath(depth);
+        Path temporaryPath = directory.resolve(path.getFileName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporaryPath.toFile())) {
+            CRC32 crc = new CRC32();
+            DataOutputStream output = new DataOutputStream(
+                    new CheckedOutputStream(new BufferedOutputStream(file), crc));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            hash.writeTo(output);
+            output.writeInt(depth);
+            output.writeInt(unspentTxs.size());
+            for (Map.Entry<TxIn, TxOut> entry : unspentTxs) {
+                entry.getKey().serialize(output);
+                entry.getValue().serialize(output);
+            }
+            output.flush();
+            // Not part of the checksum
+            new DataOutputStream(file).writeLong(crc.getValue());
+            file.getFD().sync();
+        }
+        Files.move(temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Wrote UTXO snapshot of %d outputs at depth %d in %d ms", unspentTxs.size(), depth,
+                (System.nanoTime() - start) / 1_000_000);
+        deleteOldSnapshots();
+    }
+
+    /**
+     * @param usable Whether a snapshot of the block with a given hash can be used
+     * @return The deepest valid snapshot of a block accepted by {@code usable}
+     */
+    Optional<Snapshot> readNewest(Predicate<ShaTwoFiftySix> usable) {
+        for (Path path : snapshotsByDepth()) {
+            try {
+                Snapshot snapshot = read(path);
+                if (usable.test(snapshot.hash)) {
+                    return Optional.of(snapshot);
+                }
+            } catch (DeserializationException | IOException e) {
+                LOGGER.warning("Skipping invalid UTXO snapshot %s: %s", path, e.getMessage());
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static Snapshot read(Path path) throws DeserializationException, IOException {
+        // Check the whole file first, so that corrupted records are never parsed
+        verifyChecksum(path);
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new DeserializationException("Not a UTXO snapshot");
+            }
+            ShaTwoFiftySix hash = ShaTwoFiftySix.deserialize(input);
+            int depth = input.readInt();
+            int count = input.readInt();
+            if (depth < 0 || count < 0) {
+                throw new DeserializationException("Invalid UTXO snapshot header");
+            }
+            UnspentTransactions unspentTxs = UnspentTransactions.empty();
+            for (int i = 0; i < count; i++) {
+                TxIn key = TxIn.DESERIALIZER.deserialize(input);
+                unspentTxs.put(key.previousTxn, key.txIdx, TxOut.DESERIALIZER.deserialize(input));
+            }
+            return new Snapshot(hash, depth, unspentTxs);
+        } catch (EOFException e) {
+            throw new DeserializationException("Truncated UTXO snapshot");
+        }
+    }
+
+    private static void verifyChecksum(Path path) throws DeserializationException, IOException {
+        long length = Files.size(path) - Long.BYTES;
+        if (length < 0) {
+            throw new DeserializationException("Truncated UTXO snapshot");
+        }
+        try (InputStream file = new BufferedInputStream(Files.newInputStream(path))) {
+            CRC32 crc = new CRC32();
+            InputStream checked = new CheckedInputStream(file, crc);
+            byte[] buffer = new byte[8192];
+            for (long remaining = length; remaining > 0; ) {
+                int read = checked.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new DeserializationException("Truncated UTXO snapshot");
+                }
+                remaining -= read;
+            }
+            if (new DataInputStream(file).readLong() != crc.getValue()) {
+                throw new DeserializationException("Checksum mismatch");
+            }
+        }
+    }
+
+    private List<Path> snapshotsByDepth() {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().endsWith(SUFFIX))
+                    .sorted(Comparator.comparing(Path::getFileName).reversed())
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            LOGGER.warning("Unable to list UTXO snapshots: %s", e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    private void deleteOldSnapshots() {
+        List<Path> snapshots = snapshotsByDepth();
+        for (Path path : snapshots.subList(Math.min(RETAINED_SNAPSHOTS, snapshots.size()), snapshots.size())) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOGGER.warning("Unable to delete old UTXO snapshot %s: %s", path, e.getMessage());
+            }
+        }
+    }
+
+    private Path snapshotPath(int depth) {
+        // Zero-padded, so that names sort by depth
+        return directory.resolve(String.format("%010d%s", depth, SUFFIX));
+    }
+}
@@ -11,6 +11,8 @@ import org.bouncycastle.jce.interfaces.ECPrivateKey;
 import org.bouncycastle.jce.interfaces.ECPublicKey;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.jce.spec.ECNamedCurveParameterSpec;
+import org.bouncycastle.math.ec.ECAlgorithms;
+import org.bouncycastle.math.ec.ECPoint;
 import utils.Config;
 import utils.DeserializationException;
 import utils.ShaTwoFiftySix;
@@ -92,6 +94,80 @@ public final class Crypto {
         return signer.verifySignature(contentHash.copyOfHash(), signature.r, signature.s);
     }
 
+    /**
+     * Verifies many signatures at once, each as {@link #verify(ShaTwoFiftySix, ECDSASignature, ECDSAPublicKey)}
+     * would. The inverses of all the {@code s} values are computed with a single modular inversion, and each
+     * {@code u1 * G + u2 * Q} with one interleaved multiplication.
+     * <p>
+     * This is a reduced form of batch verification: only the inversion is shared. Each signature still costs its
+     * own point multiplication and is checked on its own. There is no combined check of the whole batch, and so no
+     * fallback to per-signature checks. A combined check needs the full {@code R} point of every signature, but an
+     * {@code (r, s)} signature only carries the x coordinate of {@code R}. The results are exact per signature either
+     * way.
+     *
+     * @return Whether the {@code i}^th signature is a valid signature of {@code contentHashes[i]} by {@code keys[i]},
+     * for each {@code i}
+     */
+    public static boolean[] verifyAll(ShaTwoFiftySix[] contentHashes, ECDSASignature[] signatures,
+                                      ECDSAPublicKey[] keys) {
+        int count = contentHashes.length;
+        if (signatures.length != count || keys.length != count) {
+            throw new IllegalArgumentException("Expected as many signatures and keys as hashes");
+        }
+        BigInteger n = PARAMETERS.getN();
+        boolean[] inRange = new boolean[count];
+        BigInteger[] sValues = new BigInteger[count];
+        for (int i = 0; i < count; i++) {
+            ECDSASignature signature = signatures[i];
+            inRange[i] = isInOrder(signature.r) && isInOrder(signature.s);
+            // Signatures out of range are rejected below, but must not break the shared inversion
+            sValues[i] = inRange[i] ? signature.s : BigInteger.ONE;
+        }
+        BigInteger[] inverses = batchInverse(sValues, n);
+
+        boolean[] valid = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            if (!inRange[i]) {
+                continue;
+            }
+            BigInteger r = signatures[i].r;
+            BigInteger e = new BigInteger(1, contentHashes[i].copyOfHash());
+            BigInteger u1 = e.multiply(inverses[i]).mod(n);
+            BigInteger u2 = r.multiply(inverses[i]).mod(n);
+            ECPoint point = ECAlgorithms.sumOfTwoMultiplies(PARAMETERS.getG(), u1, keys[i].point, u2).normalize();
+            valid[i] = !point.isInfinity() && point.getAffineXCoord().toBigInteger().mod(n).equals(r);
+        }
+        return valid;
+    }
+
+    private static boolean isInOrder(BigInteger value) {
+        return value.signum() > 0 && value.compareTo(PARAMETERS.getN()) < 0;
+    }
+
+    /**
+     * Montgomery's trick: inverts every element of {@code values}, none of which may be 0 modulo {@code modulus},
+     * with one modular inversion and {@code 3 * (values.length - 1)} multiplications
+     */
+    static BigInteger[] batchInverse(BigInteger[] values, BigInteger modulus) {
+        BigInteger[] inverses = new BigInteger[values.length];
+        if (values.length == 0) {
+            return inverses;
+        }
+        // prefixes[i] is the product of values[0..i]
+        BigInteger[] prefixes = new BigInteger[values.length];
+        prefixes[0] = values[0].mod(modulus);
+        for (int i = 1; i < values.length; i++) {
+            prefixes[i] = prefixes[i - 1].multiply(values[i]).mod(modulus);
+        }
+        BigInteger inverse = prefixes[values.length - 1].modInverse(modulus);
+        for (int i = values.length - 1; i > 0; i--) {
+            inverses[i] = inverse.multiply(prefixes[i - 1]).mod(modulus);
+            inverse = inverse.multiply(values[i]).mod(modulus);
+        }
+        inverses[0] = inverse;
+        return inverses;
+    }
+
     public static ECDSAPublicKey loadPublicKey(String filename)
             throws DeserializationException, IOException {
         InputStream inputStream = new FileInputStream(filename);
@@ -0,0 +1,24 @@
+package jcommander;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import edu.umd.cs.findbugs.annotations.SuppressWarnings;
+
+@SuppressWarnings(
+        value = "UWF_NULL_FIELD",
+        justification = "Field is written by JCommander, which is opaque to findbugs"
+)
+@Parameters(commandDescription = "Mine for a mining node, without running a node")
+public class CommandRemoteMiner {
+
+    @Parameter(
+            names = {"-a", "--address"},
+            required = true,
+            description = "The address of the mining node, as host:port")
+    public String nodeAddress = null;
+
+    @Parameter(
+            names = {"-m", "--multi-buffer"},
+            description = "Hash several nonces at once")
+    public boolean multiBuffer = false;
+}
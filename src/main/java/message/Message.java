@@ -20,6 +20,11 @@ public abstract class Message {
     public static final byte PING = 7;
     public static final byte PONG = 8;
     public static final byte BAD_REQUEST = 9;
+    public static final byte GET_WORK = 10;
+    public static final byte WORK = 11;
+    public static final byte SUBMIT_WORK = 12;
+    public static final byte GET_MINING_STATS = 13;
+    public static final byte MINING_STATS = 14;
 
     public final byte type;
     public final byte[] payload;
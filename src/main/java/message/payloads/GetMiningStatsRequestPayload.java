@@ -0,0 +1,20 @@
+package message.payloads;
+
+import message.Message;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A request for the mining statistics of a mining node
+ */
+public class GetMiningStatsRequestPayload extends MessagePayload {
+    @Override
+    public byte messageType() {
+        return Message.GET_MINING_STATS;
+    }
+
+    @Override
+    public void serialize(DataOutputStream outputStream) throws IOException {
+    }
+}
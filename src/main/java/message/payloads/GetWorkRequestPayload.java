@@ -0,0 +1,20 @@
+package message.payloads;
+
+import message.Message;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A request from a remote miner for a block template to mine
+ */
+public class GetWorkRequestPayload extends MessagePayload {
+    @Override
+    public byte messageType() {
+        return Message.GET_WORK;
+    }
+
+    @Override
+    public void serialize(DataOutputStream outputStream) throws IOException {
+    }
+}
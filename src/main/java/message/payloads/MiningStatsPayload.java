@@ -0,0 +1,138 @@
+package message.payloads;
+
+import message.Message;
+import utils.DeserializationException;
+import utils.Deserializer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The mining statistics of a mining node, counted since it started mining. All times are in nanoseconds.
+ * <p>
+ * {@code solutionTimes[0]} counts the blocks mined less than a millisecond after their template was set, and
+ * {@code solutionTimes[i]} for {@code i > 0} counts those mined between {@code 2^(i-1)} and {@code 2^i}
+ * milliseconds after. The last bucket also counts everything slower.
+ */
+public class MiningStatsPayload extends MessagePayload {
+    public final static Deserializer<MiningStatsPayload> DESERIALIZER = new MiningStatsDeserializer();
+
+    public final static int SOLUTION_TIME_BUCKETS = 24;
+
+    public final long elapsedNanos;
+    public final long[] workerHashes;
+    public final long blocksMined;
+    public final long staleSolutions;
+    public final long templateSwitches;
+    public final long staleWorkNanos;
+    // -1 if there is no template
+    public final long templateAgeNanos;
+    public final long[] solutionTimes;
+
+    public MiningStatsPayload(long elapsedNanos,
+                              long[] workerHashes,
+                              long blocksMined,
+                              long staleSolutions,
+                              long templateSwitches,
+                              long staleWorkNanos,
+                              long templateAgeNanos,
+                              long[] solutionTimes) {
+        if (solutionTimes.length != SOLUTION_TIME_BUCKETS) {
+            throw new IllegalArgumentException("Invalid number of solution time buckets");
+        }
+        this.elapsedNanos = elapsedNanos;
+        this.workerHashes = workerHashes;
+        this.blocksMined = blocksMined;
+        this.staleSolutions = staleSolutions;
+        this.templateSwitches = templateSwitches;
+        this.staleWorkNanos = staleWorkNanos;
+        this.templateAgeNanos = templateAgeNanos;
+        this.solutionTimes = solutionTimes;
+    }
+
+    /**
+     * @return The number of hashes computed by all workers
+     */
+    public long hashes() {
+        long hashes = 0;
+        for (long workerHash : workerHashes) {
+            hashes += workerHash;
+        }
+        return hashes;
+    }
+
+    /**
+     * @return The average number of hashes per second of all workers
+     */
+    public double hashesPerSecond() {
+        return perSecond(hashes(), elapsedNanos);
+    }
+
+    /**
+     * @return The average number of hashes per second of all workers since {@code earlier} was taken
+     */
+    public double hashesPerSecondSince(MiningStatsPayload earlier) {
+        return perSecond(hashes() - earlier.hashes(), elapsedNanos - earlier.elapsedNanos);
+    }
+
+    /**
+     * @return The average number of hashes per second of worker {@code worker}
+     */
+    public double workerHashesPerSecond(int worker) {
+        return perSecond(workerHashes[worker], elapsedNanos);
+    }
+
+    private static double perSecond(long count, long nanos) {
+        return nanos <= 0 ? 0 : count * 1e9 / nanos;
+    }
+
+    @Override
+    public byte messageType() {
+        return Message.MINING_STATS;
+    }
+
+    @Override
+    public void serialize(DataOutputStream outputStream) throws IOException {
+        outputStream.writeLong(elapsedNanos);
+        outputStream.writeInt(workerHashes.length);
+        for (long hashes : workerHashes) {
+            outputStream.writeLong(hashes);
+        }
+        outputStream.writeLong(blocksMined);
+        outputStream.writeLong(staleSolutions);
+        outputStream.writeLong(templateSwitches);
+        outputStream.writeLong(staleWorkNanos);
+        outputStream.writeLong(templateAgeNanos);
+        for (long count : solutionTimes) {
+            outputStream.writeLong(count);
+        }
+    }
+
+    private static final class MiningStatsDeserializer implements Deserializer<MiningStatsPayload> {
+        @Override
+        public MiningStatsPayload deserialize(DataInputStream inputStream)
+                throws DeserializationException, IOException {
+            long elapsedNanos = inputStream.readLong();
+            int numWorkers = inputStream.readInt();
+            if (numWorkers < 0 || numWorkers > Deserializer.DEFAULT_MAX_LIST_LENGTH) {
+                throw new DeserializationException("Invalid number of workers");
+            }
+            long[] workerHashes = new long[numWorkers];
+            for (int i = 0; i < numWorkers; i++) {
+                workerHashes[i] = inputStream.readLong();
+            }
+            long blocksMined = inputStream.readLong();
+            long staleSolutions = inputStream.readLong();
+            long templateSwitches = inputStream.readLong();
+            long staleWorkNanos = inputStream.readLong();
+            long templateAgeNanos = inputStream.readLong();
+            long[] solutionTimes = new long[SOLUTION_TIME_BUCKETS];
+            for (int i = 0; i < SOLUTION_TIME_BUCKETS; i++) {
+                solutionTimes[i] = inputStream.readLong();
+            }
+            return new MiningStatsPayload(elapsedNanos, workerHashes, blocksMined, staleSolutions,
+                    templateSwitches, staleWorkNanos, templateAgeNanos, solutionTimes);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package message.payloads;
+
+import block.Block;
+import message.Message;
+import utils.DeserializationException;
+import utils.Deserializer;
+import utils.IOUtils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A nonce found by a remote miner for the template with id {@code workId}
+ */
+public class SubmitWorkPayload extends MessagePayload {
+    public static final Deserializer<SubmitWorkPayload> DESERIALIZER = new SubmitWorkDeserializer();
+
+    public final long workId;
+    public final byte[] nonce;
+
+    public SubmitWorkPayload(long workId, byte[] nonce) {
+        if (nonce.length != Block.NONCE_SIZE_IN_BYTES) {
+            throw new IllegalArgumentException("Invalid nonce size");
+        }
+        this.workId = workId;
+        this.nonce = nonce.clone();
+    }
+
+    @Override
+    public byte messageType() {
+        return Message.SUBMIT_WORK;
+    }
+
+    @Override
+    public void serialize(DataOutputStream outputStream) throws IOException {
+        outputStream.writeLong(workId);
+        outputStream.write(nonce);
+    }
+
+    private static final class SubmitWorkDeserializer implements Deserializer<SubmitWorkPayload> {
+        @Override
+        public SubmitWorkPayload deserialize(DataInputStream inputStream)
+                throws DeserializationException, IOException {
+            long workId = inputStream.readLong();
+            byte[] nonce = new byte[Block.NONCE_SIZE_IN_BYTES];
+            IOUtils.fill(inputStream, nonce);
+            return new SubmitWorkPayload(workId, nonce);
+        }
+    }
+}
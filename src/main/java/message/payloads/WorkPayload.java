@@ -0,0 +1,50 @@
+package message.payloads;
+
+import block.Block;
+import message.Message;
+import utils.DeserializationException;
+import utils.Deserializer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A block template for a remote miner. The miner must only try nonces whose first four bytes are
+ * {@code extranonce}, so that no two miners search the same nonces, and the hash must meet the template's target.
+ */
+public class WorkPayload extends MessagePayload {
+    public static final Deserializer<WorkPayload> DESERIALIZER = new WorkDeserializer();
+
+    public final long workId;
+    public final int extranonce;
+    public final Block template;
+
+    public WorkPayload(long workId, int extranonce, Block template) {
+        this.workId = workId;
+        this.extranonce = extranonce;
+        this.template = template;
+    }
+
+    @Override
+    public byte messageType() {
+        return Message.WORK;
+    }
+
+    @Override
+    public void serialize(DataOutputStream outputStream) throws IOException {
+        outputStream.writeLong(workId);
+        outputStream.writeInt(extranonce);
+        template.serialize(outputStream);
+    }
+
+    private static final class WorkDeserializer implements Deserializer<WorkPayload> {
+        @Override
+        public WorkPayload deserialize(DataInputStream inputStream) throws DeserializationException, IOException {
+            long workId = inputStream.readLong();
+            int extranonce = inputStream.readInt();
+            Block template = Block.DESERIALIZER.deserialize(inputStream);
+            return new WorkPayload(workId, extranonce, template);
+        }
+    }
+}
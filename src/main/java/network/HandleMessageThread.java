@@ -127,6 +127,15 @@ public class HandleMessageThread extends Thread {
                         GetUTXWithKeysRequestPayload.DESERIALIZER.deserialize(message.payload);
                 handler.getUTXWithKeysMsgHandler(message, utxRequest);
                 break;
+            case Message.GET_WORK:
+                handler.getWorkMsgHandler(message);
+                break;
+            case Message.SUBMIT_WORK:
+                handler.submitWorkMsgHandler(SubmitWorkPayload.DESERIALIZER.deserialize(message.payload));
+                break;
+            case Message.GET_MINING_STATS:
+                handler.getMiningStatsMsgHandler(message);
+                break;
             case Message.PING:
                 int pingNumber = PingPayload.DESERIALIZER.deserialize(message.payload).pingNumber;
                 message.respond(new PongPayload(pingNumber).toMessage());
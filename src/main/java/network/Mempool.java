@@ -0,0 +1,149 @@
+package network;
+
+import block.Block;
+import transaction.Transaction;
+import transaction.TxIn;
+import utils.ShaTwoFiftySix;
+
+import java.util.*;
+
+/**
+ * The verified transactions that are not yet in a block of the main chain, indexed by hash and by the outputs they
+ * spend. Transactions are kept in the order they arrived, so a transaction always comes after those whose outputs
+ * it spends, and block templates can be filled in that order.
+ * <p>
+ * The pool checks only that no two of its transactions spend the same output; verifying each transaction against
+ * the unspent outputs is up to the caller.
+ */
+final class Mempool implements Iterable<Transaction> {
+    private final int maxTransactions;
+
+    private final Map<ShaTwoFiftySix, Transaction> transactions = new LinkedHashMap<>();
+    // The transaction in the pool that spends each output
+    private final Map<TxIn, ShaTwoFiftySix> spenders = new HashMap<>();
+
+    Mempool(int maxTransactions) {
+        this.maxTransactions = maxTransactions;
+    }
+
+    /**
+     * @return The number of transactions in the pool
+     */
+    int size() {
+        return transactions.size();
+    }
+
+    boolean isFull() {
+        return transactions.size() >= maxTransactions;
+    }
+
+    boolean contains(ShaTwoFiftySix hash) {
+        return transactions.containsKey(hash);
+    }
+
+    Optional<Transaction> get(ShaTwoFiftySix hash) {
+        return Optional.ofNullable(transactions.get(hash));
+    }
+
+    /**
+     * @return The hash of the transaction in the pool that spends {@code output}, if any
+     */
+    Optional<ShaTwoFiftySix> spender(TxIn output) {
+        return Optional.ofNullable(spenders.get(output));
+    }
+
+    /**
+     * Adds {@code transaction}, which must have been verified against the unspent outputs of the main chain and the
+     * pool
+     *
+     * @return Whether it was added, which is not the case if the pool is full, or already holds the transaction or
+     * another one spending the same output
+     */
+    boolean add(Transaction transaction) {
+        ShaTwoFiftySix hash = transaction.getShaTwoFiftySix();
+        if (isFull() || transactions.containsKey(hash)) {
+            return false;
+        }
+        for (int i = 0; i < transaction.numInputs; i++) {
+            if (spenders.containsKey(transaction.getInput(i))) {
+                return false;
+            }
+        }
+        transactions.put(hash, transaction);
+        for (int i = 0; i < transaction.numInputs; i++) {
+            spenders.put(transaction.getInput(i), hash);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the transaction with hash {@code hash}, and every transaction that spends its outputs, directly or not
+     *
+     * @return The removed transactions
+     */
+    List<Transaction> remove(ShaTwoFiftySix hash) {
+        List<Transaction> removed = new ArrayList<>();
+        Deque<ShaTwoFiftySix> toRemove = new ArrayDeque<>();
+        toRemove.add(hash);
+        while (!toRemove.isEmpty()) {
+            Transaction transaction = transactions.remove(toRemove.poll());
+            if (transaction == null) {
+                continue;
+            }
+            removed.add(transaction);
+            for (int i = 0; i < transaction.numInputs; i++) {
+                spenders.remove(transaction.getInput(i));
+            }
+            ShaTwoFiftySix spent = transaction.getShaTwoFiftySix();
+            for (int i = 0; i < transaction.numOutputs; i++) {
+                ShaTwoFiftySix child = spenders.get(new TxIn(spent, i));
+                if (child != null) {
+                    toRemove.add(child);
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes the transactions of {@code block}, which has been added to the main chain, and the transactions that
+     * conflict with them by spending the same outputs, along with everything that spends the outputs of those
+     *
+     * @return The transactions removed because they conflict with {@code block}
+     */
+    List<Transaction> removeConfirmed(Block block) {
+        List<Transaction> conflicts = new ArrayList<>();
+        for (Transaction confirmed : block) {
+            // The outputs of a confirmed transaction stay spendable by the pool, so only the transaction itself goes
+            Transaction pooled = transactions.remove(confirmed.getShaTwoFiftySix());
+            if (pooled != null) {
+                for (int i = 0; i < pooled.numInputs; i++) {
+                    spenders.remove(pooled.getInput(i));
+                }
+            }
+            for (int i = 0; i < confirmed.numInputs; i++) {
+                ShaTwoFiftySix spender = spenders.get(confirmed.getInput(i));
+                if (spender != null) {
+                    conflicts.addAll(remove(spender));
+                }
+            }
+        }
+        return conflicts;
+    }
+
+    /**
+     * Removes every transaction
+     */
+    void clear() {
+        transactions.clear();
+        spenders.clear();
+    }
+
+    /**
+     * @return The transactions in the order they were added
+     */
+    @Override
+    public Iterator<Transaction> iterator() {
+        return Collections.unmodifiableCollection(transactions.values()).iterator();
+    }
+}
@@ -1,18 +1,21 @@
 package network;
 
 import block.Block;
+import block.BlockTemplateBuilder;
 import block.UnspentTransactions;
 import crypto.ECDSAPublicKey;
 import message.IncomingMessage;
 import message.Message;
 import message.OutgoingMessage;
 import message.payloads.*;
+import transaction.SignatureCheck;
 import transaction.Transaction;
 import transaction.TxIn;
-import transaction.TxOut;
 import utils.ByteUtil;
+import utils.Config;
 import utils.Log;
 import utils.Pair;
+import utils.ShaTwoFiftySix;
 
 import java.io.IOException;
 import java.util.*;
@@ -24,14 +27,21 @@ import java.util.stream.Collectors;
  */
 public class MessageHandler {
     private final Log LOGGER;
-    private final String name;
 
     private final MiningBundle bundle;
     private final BlockingQueue<OutgoingMessage> broadcastQueue;
 
-    // list to add incoming transactions to
-    private final List<Transaction> unminedTransactions = new ArrayList<>();
-    private MinerThread minerThread;
+    // Verified transactions waiting to be mined. The unspent transactions of the bundle are a view of those of the
+    // head with the pending transactions applied, so admitting a transaction never copies the whole set.
+    private final Mempool mempool = new Mempool(Config.maxMempoolTransactions());
+    // The block being filled from the mempool, on top of the current head
+    private BlockTemplateBuilder template;
+    // Whether a transaction of the mempool did not fit in the template
+    private boolean templateFull;
+    // Transactions spending outputs that are not known yet
+    private final OrphanPool orphans = new OrphanPool(Config.maxOrphanTransactions(), Config.orphanExpiryMillis());
+    private final MiningService miningService;
+    private final WorkCoordinator workCoordinator;
     private LinkedList<Block> miningQueue = new LinkedList<>();
     private FixedSizeSet<IncomingMessage> recentTransactionsReceived = new FixedSizeSet<>();
     private FixedSizeSet<IncomingMessage> recentBlocksReceived = new FixedSizeSet<>();
@@ -43,10 +53,18 @@ public class MessageHandler {
                           MiningBundle miningBundle,
                           boolean isMining) {
         LOGGER = Log.forClass(MessageHandler.class, name);
-        this.name = name;
         this.bundle = miningBundle;
         this.broadcastQueue = broadcast;
         this.isMining = isMining;
+        bundle.setUnspentTransactions(bundle.getUnspentTransactions().overlay());
+        if (isMining) {
+            miningService = new MiningService(name, broadcast, Config.miningThreads());
+            miningService.start();
+            workCoordinator = new WorkCoordinator(name);
+        } else {
+            miningService = null;
+            workCoordinator = null;
+        }
     }
 
     /**
@@ -115,14 +133,61 @@ public class MessageHandler {
         message.respond(new BlocksPayload(ancestors).toMessage());
     }
 
-    private void startMiningThread() {
+    private void startMining() throws IOException {
         if (miningQueue.isEmpty()) return;
 
+        // Replaces whatever the mining workers are currently working on
         Block block = miningQueue.removeLast();
-        // If there is no current miner thread then start a new one.
-        if (minerThread == null || !minerThread.isAlive()) {
-            minerThread = new MinerThread(name, block, broadcastQueue);
-            minerThread.start();
+        miningService.setTemplate(block);
+        workCoordinator.setTemplate(block);
+    }
+
+    /**
+     * Responds to a remote miner with a `WORK` message for the current block template, or a `BAD_REQUEST` message
+     * if there is nothing to mine.
+     *
+     * @param message The `GET_WORK` message from the remote miner. Must have a non-null `responder`
+     * @throws IOException
+     */
+    public void getWorkMsgHandler(IncomingMessage message) throws IOException {
+        Optional<WorkPayload> work = isMining ? workCoordinator.getWork() : Optional.empty();
+        if (work.isPresent()) {
+            message.respond(work.get().toMessage());
+        } else {
+            message.respond(new BadRequestPayload().toMessage());
+        }
+    }
+
+    /**
+     * Responds with the mining statistics of this node, or a `BAD_REQUEST` message if it is not mining
+     *
+     * @param message The `GET_MINING_STATS` message. Must have a non-null `responder`
+     * @throws IOException
+     */
+    public void getMiningStatsMsgHandler(IncomingMessage message) throws IOException {
+        if (isMining) {
+            message.respond(miningService.stats().toMessage());
+        } else {
+            message.respond(new BadRequestPayload().toMessage());
+        }
+    }
+
+    /**
+     * Broadcasts the block mined by a remote miner, if its nonce is valid
+     *
+     * @param submission The nonce submitted by the remote miner
+     */
+    public void submitWorkMsgHandler(SubmitWorkPayload submission) throws InterruptedException, IOException {
+        if (!isMining) {
+            LOGGER.warning("Received submitted work, but this node is not mining");
+            return;
+        }
+        Optional<Block> block = workCoordinator.submit(submission);
+        if (block.isPresent()) {
+            LOGGER.info("[+] Remote miner mined block %s! Broadcasting to other nodes.",
+                    block.get().getShaTwoFiftySix());
+            miningService.clearTemplate();
+            broadcastQueue.put(new BlocksPayload(block.get()).toMessage());
         }
     }
 
@@ -136,14 +201,9 @@ public class MessageHandler {
      */
     public void getFundsMsgHandler(IncomingMessage message, GetFundsRequestPayload request)
             throws IOException {
+        UnspentTransactions unspentTransactions = bundle.getUnspentTransactions();
         Map<ECDSAPublicKey, Long> funds = request.requestedKeys.stream()
-                .collect(Collectors.toMap(key -> key, key -> 0L));
-        for (Map.Entry<TxIn, TxOut> entry : bundle.getUnspentTransactions()) {
-            ECDSAPublicKey key = entry.getValue().ownerPubKey;
-            if (funds.containsKey(key)) {
-                funds.put(key, funds.get(key) + entry.getValue().value);
-            }
-        }
+                .collect(Collectors.toMap(key -> key, unspentTransactions::getAmount));
         message.respond(new GetFundsResponsePayload(funds).toMessage());
     }
 
@@ -195,61 +255,236 @@ public class MessageHandler {
 
         LOGGER.info("Received valid block: hash=%s", block.getShaTwoFiftySix());
 
-        // interrupt the mining thread
+        // stop mining on top of the previous head
         if (isMining) {
-            if (minerThread != null && minerThread.isAlive()) {
-                LOGGER.info("[-] Received block. Stopping current mining thread.");
-                minerThread.stopMining();
+            if (miningService.isMining()) {
+                LOGGER.info("[-] Received block. Stopping current mining work.");
+                miningService.clearTemplate();
             }
+            workCoordinator.clear();
         }
 
         // Add block to chain
         LOGGER.info("[+] Adding completed block to block chain");
+        Block previousHead = bundle.getBlockChain().getCurrentHead();
         bundle.getBlockChain().insertBlock(block);
+        // Templates are rebuilt on the head, once the mempool is up to date
+        miningQueue.clear();
+        template = null;
         if (bundle.getBlockChain().getCurrentHead().equals(block)) {
-            bundle.setUnspentTransactions(verifiedUnspentTransactions.get());
+            List<Block> disconnected = Collections.emptyList();
+            List<Block> connected = Collections.singletonList(block);
+            if (!block.previousBlockHash.equals(previousHead.getShaTwoFiftySix())) {
+                LOGGER.info("[!] Switched to a different branch with head %s", block.getShaTwoFiftySix());
+                Optional<Pair<List<Block>, List<Block>>> path = bundle.getBlockChain()
+                        .getPath(previousHead.getShaTwoFiftySix(), block.getShaTwoFiftySix());
+                if (path.isPresent()) {
+                    disconnected = path.get().getLeft();
+                    connected = path.get().getRight();
+                } else {
+                    LOGGER.warning("Unable to find the blocks between the old and new heads");
+                }
+            }
+            int conflicts = 0;
+            for (Block confirmed : connected) {
+                conflicts += mempool.removeConfirmed(confirmed).size();
+            }
+            if (conflicts > 0) {
+                LOGGER.info("[-] Dropped %d pending transactions that conflict with the new blocks", conflicts);
+            }
+            // The transactions of the abandoned branch come first, since pending transactions may spend them
+            List<Transaction> reinjected = new ArrayList<>();
+            for (int i = disconnected.size() - 1; i >= 0; i--) {
+                Collections.addAll(reinjected, disconnected.get(i).transactions);
+            }
+            bundle.setUnspentTransactions(rebaseMempool(verifiedUnspentTransactions.get(), reinjected));
+
+            // Orphans may spend the outputs of the new blocks, or of the transactions restored from the old ones
+            List<Transaction> promoted = new ArrayList<>();
+            for (Transaction transaction : reinjected) {
+                if (mempool.contains(transaction.getShaTwoFiftySix())) {
+                    promoted.addAll(orphans.takeSpending(transaction.getShaTwoFiftySix(), transaction.numOutputs));
+                }
+            }
+            for (Block confirmed : connected) {
+                for (Transaction transaction : confirmed) {
+                    promoted.addAll(orphans.takeSpending(transaction.getShaTwoFiftySix(), transaction.numOutputs));
+                }
+                promoted.addAll(orphans.takeSpending(confirmed.getShaTwoFiftySix(), 1));
+            }
+            addTransactions(promoted);
         }
         if (isMining) {
-            unminedTransactions.clear();
-            startMiningThread();
+            updateTemplate(Optional.empty());
         }
     }
 
+    /**
+     * Rebuilds the mempool on top of {@code confirmed}, the unspent transactions of the new head, from
+     * {@code reinjected}, the transactions of blocks that were disconnected from the main chain, followed by the
+     * transactions already pending. The inputs and outputs of each reinjected transaction are verified again, since
+     * the new head may have spent their inputs, and then the signatures of all that still apply as one batch, as for a
+     * block. The pending transactions were verified when they arrived, so they are only
+     * rebased, which costs their inputs and outputs. Any transaction that no longer applies is dropped, along with
+     * those spending its outputs.
+     *
+     * @return A view of {@code confirmed} with every remaining pending transaction applied
+     */
+    private UnspentTransactions rebaseMempool(UnspentTransactions confirmed, List<Transaction> reinjected) {
+        List<Transaction> pendingTransactions = new ArrayList<>();
+        mempool.forEach(pendingTransactions::add);
+        mempool.clear();
+
+        UnspentTransactions base = confirmed.overlay();
+        UnspentTransactions pending = base;
+        int restored = 0;
+        List<SignatureCheck> signatureChecks = new ArrayList<>();
+        for (Transaction transaction : reinjected) {
+            UnspentTransactions copy = pending.copy();
+            List<SignatureCheck> checks = new ArrayList<>();
+            if (transaction.verifyWithoutSignatures(copy, checks) && mempool.add(transaction)) {
+                pending = copy;
+                signatureChecks.addAll(checks);
+                restored++;
+            }
+        }
+        if (!SignatureCheck.verifyAll(signatureChecks)) {
+            // Verify each transaction on its own to keep the valid ones, whose signatures are cached by now
+            mempool.clear();
+            pending = base;
+            restored = 0;
+            for (Transaction transaction : reinjected) {
+                UnspentTransactions copy = pending.copy();
+                if (transaction.verify(copy) && mempool.add(transaction)) {
+                    pending = copy;
+                    restored++;
+                }
+            }
+        }
+        for (Transaction transaction : pendingTransactions) {
+            UnspentTransactions copy = pending.copy();
+            if (transaction.apply(copy) && mempool.add(transaction)) {
+                pending = copy;
+            }
+        }
+        if (!reinjected.isEmpty()) {
+            LOGGER.info("[+] Restored %d of %d transactions from disconnected blocks", restored, reinjected.size());
+        }
+        int dropped = pendingTransactions.size() + restored - mempool.size();
+        if (dropped > 0) {
+            LOGGER.info("[-] Dropped %d pending transactions that are no longer valid", dropped);
+        }
+        return pending;
+    }
+
     private void addTransaction(Transaction transaction)
             throws IOException {
         if (bundle.getBlockChain().getCurrentHead() == null) {
             LOGGER.warning("Received transaction before genesis block received");
             return;
-        } else if (unminedTransactions.size() == Block.NUM_TRANSACTIONS_PER_BLOCK && isMining) {
-            LOGGER.warning("Dropping incoming transaction, resend when a new block has been mined");
-            return;
+        }
+        addTransactions(Collections.singletonList(transaction));
+    }
+
+    /**
+     * Adds each of {@code transactions} to the mempool or the orphan pool, and then the orphans that spend the
+     * outputs of every transaction added to the mempool, until no more orphans can be added
+     */
+    private void addTransactions(Collection<Transaction> transactions) throws IOException {
+        Deque<Transaction> toAdd = new ArrayDeque<>(transactions);
+        while (!toAdd.isEmpty()) {
+            Transaction transaction = toAdd.poll();
+            if (admitTransaction(transaction)) {
+                toAdd.addAll(orphans.takeSpending(transaction.getShaTwoFiftySix(), transaction.numOutputs));
+            }
+        }
+    }
+
+    /**
+     * Verifies {@code transaction} and adds it to the mempool or, if it spends unknown outputs, to the orphan pool
+     *
+     * @return Whether it was added to the mempool
+     */
+    private boolean admitTransaction(Transaction transaction) throws IOException {
+        ShaTwoFiftySix hash = transaction.getShaTwoFiftySix();
+        if (mempool.contains(hash) || orphans.contains(hash)) {
+            return false;
+        }
+        if (mempool.isFull()) {
+            LOGGER.warning("Dropping incoming transaction, the mempool is full");
+            return false;
+        }
+        List<TxIn> missing = missingInputs(transaction);
+        if (!missing.isEmpty()) {
+            if (orphans.add(transaction, missing, System.currentTimeMillis())) {
+                LOGGER.info("[!] Keeping transaction %s until the %d outputs it spends are known", hash,
+                        missing.size());
+            }
+            return false;
         }
 
         //verify transaction
         LOGGER.info("[!] Verifying transaction.");
         UnspentTransactions copy = bundle.getUnspentTransactions().copy();
         if (!transaction.verify(copy)) {
-            LOGGER.warning("The received transaction was not verified! Not adding to block.");
-            return;
+            LOGGER.warning("The received transaction was not verified! Not adding to mempool.");
+            return false;
         }
+        // Verifying against the outputs left by the mempool rules out conflicts with it
+        mempool.add(transaction);
         bundle.setUnspentTransactions(copy);
         LOGGER.info("[!] Transaction verified.");
         LOGGER.info(transaction.toString());
         if (isMining) {
-            unminedTransactions.add(transaction);
-        }
-        if (isMining && unminedTransactions.size() == Block.NUM_TRANSACTIONS_PER_BLOCK) {
-            // currentAddToBlock is full, so start mining it
-            LOGGER.info("[+] Starting mining thread");
-
-            Block blockToMine = Block.block(
-                    bundle.getBlockChain().getCurrentHead().getShaTwoFiftySix(),
-                    unminedTransactions,
-                    bundle.getKeyPair().publicKey
-            );
-            miningQueue.addFirst(blockToMine);
-            startMiningThread();
-            addTransaction(transaction);
+            updateTemplate(Optional.of(transaction));
+        }
+        return true;
+    }
+
+    /**
+     * @return The inputs of {@code transaction} that spend outputs that are neither unspent nor spent by the mempool,
+     * and so are not known yet
+     */
+    private List<TxIn> missingInputs(Transaction transaction) {
+        UnspentTransactions pending = bundle.getUnspentTransactions();
+        List<TxIn> missing = new ArrayList<>();
+        for (int i = 0; i < transaction.numInputs; i++) {
+            TxIn input = transaction.getInput(i);
+            if (!pending.contains(input.previousTxn, input.txIdx) && !mempool.spender(input).isPresent()) {
+                missing.add(input);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Adds {@code added}, which was just added to the mempool, to the template, or fills a new template from the
+     * whole mempool if there is none. Once enough transactions are pending, the template is mined, replacing any
+     * smaller template of the same head.
+     */
+    private void updateTemplate(Optional<Transaction> added) throws IOException {
+        if (template == null) {
+            template = bundle.getBlockChain().newTemplate(bundle.getKeyPair().publicKey);
+            templateFull = false;
+            for (Transaction transaction : mempool) {
+                // Later transactions may spend the outputs of one that does not fit, so stop at the first
+                if (!template.add(transaction)) {
+                    templateFull = true;
+                    break;
+                }
+            }
+        } else if (!added.isPresent() || templateFull) {
+            return;
+        } else if (!template.add(added.get())) {
+            // The transaction waits in the mempool for a later block, as do all that follow it
+            templateFull = true;
+            return;
+        }
+        if (template.size() >= Block.MIN_TRANSACTIONS_TO_MINE) {
+            LOGGER.info("[+] Mining template of %d transactions (%d bytes), %d pending", template.size(),
+                    template.bytes(), mempool.size());
+            miningQueue.addFirst(template.build());
+            startMining();
         }
     }
 }
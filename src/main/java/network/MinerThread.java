@@ -3,6 +3,7 @@ package network;
 import block.Block;
 import message.OutgoingMessage;
 import message.payloads.BlocksPayload;
+import utils.Config;
 import utils.Log;
 
 import java.io.IOException;
@@ -12,7 +13,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 /**
  * The MinerThread is run as a background thread by a Node and is responsible for mining.
  * This entails constantly looking for the correct nonce in order to generate a sufficiently small
- * hash value.
+ * hash value, using {@code Config.miningThreads()} worker threads.
  *
  * @version 1.0, Feb 22 2017
  */
@@ -37,7 +38,7 @@ public class MinerThread extends Thread {
     public void run() {
         LOGGER.info("[+] MiningThread started");
         try {
-            if (block.findValidNonce(stopMining)) {
+            if (block.findValidNonce(stopMining, Config.miningThreads())) {
                 LOGGER.info("[+] Successfully mined block! Broadcasting to other nodes.");
                 broadcastQueue.put(new BlocksPayload(block).toMessage());
             }
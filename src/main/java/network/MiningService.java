@@ -0,0 +1,245 @@
+package network;
+
+import block.Block;
+import block.NonceKernel;
+import message.OutgoingMessage;
+import message.payloads.BlocksPayload;
+import message.payloads.MiningStatsPayload;
+import utils.ByteUtil;
+import utils.Config;
+import utils.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A pool of long-lived mining threads that all work on the current block template. Setting a new template swaps it
+ * in atomically; each worker checks for a new template after every batch of {@code BATCH_SIZE} hashes, so stale
+ * work is dropped within one batch and no thread is started or stopped.
+ * <p>
+ * Workers search disjoint ranges of nonces, which start with the index of the worker. The first worker to find a
+ * valid nonce for the current template publishes the mined block to the broadcast queue, and the pool then idles
+ * until a new template is set.
+ * <p>
+ * Hash rates, solution times and stale work are counted in a {@code MiningStats}, which can be queried with
+ * {@code stats()} and is logged every {@code Config.miningStatsLogInterval()} seconds.
+ */
+public class MiningService {
+    private final Log LOGGER;
+
+    static final int BATCH_SIZE = 1 << 12;
+
+    private final BlockingQueue<OutgoingMessage> broadcastQueue;
+    private final AtomicReference<Work> current = new AtomicReference<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicLong generation = new AtomicLong();
+    private volatile boolean running = true;
+
+    private final MiningStats stats;
+    private final ScheduledExecutorService statsLogger;
+    private MiningStatsPayload lastLoggedStats;
+
+    public MiningService(String name, BlockingQueue<OutgoingMessage> broadcastQueue, int numWorkers) {
+        LOGGER = Log.forClass(MiningService.class, name);
+        this.broadcastQueue = broadcastQueue;
+        this.stats = new MiningStats(numWorkers);
+        this.statsLogger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, String.format("MiningStatsLogger(%s)", name));
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < numWorkers; i++) {
+            final int index = i;
+            Thread worker = new Thread(() -> work(index), String.format("MiningWorker(%s)-%d", name, i));
+            worker.setDaemon(true);
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * Starts the worker threads, which idle until a template is set
+     */
+    public void start() {
+        workers.forEach(Thread::start);
+        int interval = Config.miningStatsLogInterval();
+        if (interval > 0) {
+            lastLoggedStats = stats();
+            statsLogger.scheduleAtFixedRate(this::logStats, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops the worker threads, and waits for them to finish
+     */
+    public void shutdown() throws InterruptedException {
+        running = false;
+        statsLogger.shutdownNow();
+        synchronized (current) {
+            current.notifyAll();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    /**
+     * Makes the workers mine {@code block} instead of the current template. {@code block} must not be modified
+     * afterwards, except by this service when it sets a valid nonce.
+     */
+    public void setTemplate(Block block) throws IOException {
+        Work work = new Work(block, generation.incrementAndGet());
+        Work previous;
+        synchronized (current) {
+            previous = current.getAndSet(work);
+            current.notifyAll();
+        }
+        if (previous != null) {
+            stats.addTemplateSwitch();
+        }
+        LOGGER.info("[+] Mining template %d", work.generation);
+    }
+
+    /**
+     * Stops mining the current template, if any
+     */
+    public void clearTemplate() {
+        current.set(null);
+    }
+
+    /**
+     * @return Whether a template is being mined
+     */
+    public boolean isMining() {
+        return current.get() != null;
+    }
+
+    /**
+     * @return The number of times a template was replaced before it was mined
+     */
+    public long templateSwitches() {
+        return stats.templateSwitches();
+    }
+
+    /**
+     * @return The total time, over all workers, spent hashing a template after it had been replaced
+     */
+    public long staleWorkNanos() {
+        return stats.staleWorkNanos();
+    }
+
+    /**
+     * @return The number of hashes computed by all workers
+     */
+    public long hashes() {
+        return stats.hashes();
+    }
+
+    /**
+     * @return The number of blocks mined and published
+     */
+    public long blocksMined() {
+        return stats.blocksMined();
+    }
+
+    /**
+     * @return A snapshot of all the mining statistics
+     */
+    public MiningStatsPayload stats() {
+        Work work = current.get();
+        return stats.snapshot(work == null ? -1 : System.nanoTime() - work.createdNanos);
+    }
+
+    private void logStats() {
+        MiningStatsPayload latest = stats();
+        StringBuilder workerRates = new StringBuilder();
+        for (int i = 0; i < latest.workerHashes.length; i++) {
+            double rate = (latest.workerHashes[i] - lastLoggedStats.workerHashes[i]) * 1e9
+                    / Math.max(1, latest.elapsedNanos - lastLoggedStats.elapsedNanos);
+            workerRates.append(i == 0 ? "" : ", ").append(String.format("%.0f", rate));
+        }
+        LOGGER.info("Mining at %.0f H/s (workers: %s), %d blocks mined, %d stale solutions, "
+                        + "%d template switches, template age %d ms",
+                latest.hashesPerSecondSince(lastLoggedStats), workerRates, latest.blocksMined,
+                latest.staleSolutions, latest.templateSwitches,
+                TimeUnit.NANOSECONDS.toMillis(Math.max(0, latest.templateAgeNanos)));
+        lastLoggedStats = latest;
+    }
+
+    private Work awaitWork() throws InterruptedException {
+        synchronized (current) {
+            while (running && current.get() == null) {
+                current.wait();
+            }
+            return current.get();
+        }
+    }
+
+    private void work(int index) {
+        Work work = null;
+        NonceKernel kernel = null;
+        try {
+            while (running) {
+                Work latest = awaitWork();
+                if (latest == null) {
+                    return;
+                }
+                if (latest != work) {
+                    if (work != null) {
+                        stats.addStaleWork(Math.max(0, System.nanoTime() - latest.createdNanos));
+                    }
+                    work = latest;
+                    byte[] nonce = work.block.nonce.clone();
+                    ByteBuffer.wrap(nonce).putInt(index);
+                    kernel = NonceKernel.create(work.prefix, nonce);
+                }
+                long before = kernel.hashes();
+                boolean found = kernel.search(work.target, BATCH_SIZE);
+                stats.addHashes(index, kernel.hashes() - before);
+                if (found) {
+                    if (current.compareAndSet(work, null)) {
+                        publish(work, kernel);
+                    } else {
+                        stats.addStaleSolution();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            LOGGER.severe("Error while mining: %s", e.getMessage());
+        }
+    }
+
+    private void publish(Work work, NonceKernel kernel) throws InterruptedException, IOException {
+        byte[] nonce = new byte[Block.NONCE_SIZE_IN_BYTES];
+        kernel.copyNonce(nonce);
+        // The template is shared with other consumers, such as remote miners, so it is never changed
+        Block block = work.block.withNonce(nonce);
+        stats.addBlockMined(System.nanoTime() - work.createdNanos);
+        LOGGER.info("[+] Successfully mined block with template %d! Broadcasting to other nodes.", work.generation);
+        broadcastQueue.put(new BlocksPayload(block).toMessage());
+    }
+
+    private static final class Work {
+        private final Block block;
+        private final byte[] prefix;
+        private final int[] target;
+        private final long generation;
+        private final long createdNanos = System.nanoTime();
+
+        private Work(Block block, long generation) throws IOException {
+            this.block = block;
+            this.prefix = ByteUtil.asByteArray(block::serializeWithoutNonce);
+            this.target = block.target.toWords();
+            this.generation = generation;
+        }
+    }
+}
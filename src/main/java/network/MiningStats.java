@@ -0,0 +1,94 @@
+package network;
+
+import message.payloads.MiningStatsPayload;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters kept by a {@code MiningService}, updated by its workers without locking. See {@code MiningStatsPayload}
+ * for what each counter means.
+ */
+final class MiningStats {
+    private final long startNanos = System.nanoTime();
+    private final AtomicLongArray workerHashes;
+    private final AtomicLong blocksMined = new AtomicLong();
+    private final AtomicLong staleSolutions = new AtomicLong();
+    private final AtomicLong templateSwitches = new AtomicLong();
+    private final AtomicLong staleWorkNanos = new AtomicLong();
+    private final AtomicLongArray solutionTimes = new AtomicLongArray(MiningStatsPayload.SOLUTION_TIME_BUCKETS);
+
+    MiningStats(int numWorkers) {
+        workerHashes = new AtomicLongArray(numWorkers);
+    }
+
+    void addHashes(int worker, long hashes) {
+        workerHashes.addAndGet(worker, hashes);
+    }
+
+    /**
+     * Records a block mined {@code nanos} nanoseconds after its template was set
+     */
+    void addBlockMined(long nanos) {
+        blocksMined.incrementAndGet();
+        solutionTimes.incrementAndGet(solutionTimeBucket(nanos));
+    }
+
+    /**
+     * Records a valid nonce found for a template that had already been replaced, or mined by another worker
+     */
+    void addStaleSolution() {
+        staleSolutions.incrementAndGet();
+    }
+
+    void addTemplateSwitch() {
+        templateSwitches.incrementAndGet();
+    }
+
+    void addStaleWork(long nanos) {
+        staleWorkNanos.addAndGet(nanos);
+    }
+
+    long hashes() {
+        long hashes = 0;
+        for (int i = 0; i < workerHashes.length(); i++) {
+            hashes += workerHashes.get(i);
+        }
+        return hashes;
+    }
+
+    long blocksMined() {
+        return blocksMined.get();
+    }
+
+    long templateSwitches() {
+        return templateSwitches.get();
+    }
+
+    long staleWorkNanos() {
+        return staleWorkNanos.get();
+    }
+
+    /**
+     * @param templateAgeNanos The age of the current template, or -1 if there is none
+     */
+    MiningStatsPayload snapshot(long templateAgeNanos) {
+        long[] hashes = new long[workerHashes.length()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = workerHashes.get(i);
+        }
+        long[] times = new long[solutionTimes.length()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = solutionTimes.get(i);
+        }
+        return new MiningStatsPayload(System.nanoTime() - startNanos, hashes, blocksMined.get(),
+                staleSolutions.get(), templateSwitches.get(), staleWorkNanos.get(), templateAgeNanos, times);
+    }
+
+    static int solutionTimeBucket(long nanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(Math.max(0, nanos));
+        int bucket = Long.SIZE - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, MiningStatsPayload.SOLUTION_TIME_BUCKETS - 1);
+    }
+}
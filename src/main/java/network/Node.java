@@ -52,7 +52,7 @@ public class Node {
         this.name = name;
         this.serverSocket = serverSocket;
         BlockChain blockChain = new BlockChain(blockChainPath);
-        UnspentTransactions unspentTransactions = UnspentTransactions.empty();
+        UnspentTransactions unspentTransactions = blockChain.getHeadUnspentTransactions();
         miningBundle = new MiningBundle(blockChain, myKeyPair, privilegedKey, unspentTransactions);
     }
 
@@ -0,0 +1,141 @@
+package network;
+
+import transaction.Transaction;
+import transaction.TxIn;
+import utils.ShaTwoFiftySix;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Transactions that spend outputs this node has not seen yet, typically because they arrived before the transaction
+ * creating those outputs, indexed by the outputs they are missing. Orphans cannot be verified, so the pool is
+ * bounded: it holds at most {@code maxTransactions} orphans, evicting the oldest when full, and each orphan expires
+ * {@code expiryMillis} after it was added.
+ */
+final class OrphanPool {
+    private final int maxTransactions;
+    private final long expiryMillis;
+
+    // In the order they were added, so the oldest orphan comes first
+    private final Map<ShaTwoFiftySix, Orphan> orphans = new LinkedHashMap<>();
+    // The orphans missing each output
+    private final Map<TxIn, Set<ShaTwoFiftySix>> waiting = new HashMap<>();
+    private long nextSequence;
+
+    OrphanPool(int maxTransactions, long expiryMillis) {
+        this.maxTransactions = maxTransactions;
+        this.expiryMillis = expiryMillis;
+    }
+
+    /**
+     * @return The number of orphans in the pool
+     */
+    int size() {
+        return orphans.size();
+    }
+
+    boolean contains(ShaTwoFiftySix hash) {
+        return orphans.containsKey(hash);
+    }
+
+    /**
+     * Adds {@code transaction}, after removing the expired orphans and, if the pool is full, the oldest one
+     *
+     * @param missing   The outputs spent by {@code transaction} that are unknown
+     * @param nowMillis The current time
+     * @return Whether it was added, which is not the case if it is already in the pool or the pool holds nothing
+     */
+    boolean add(Transaction transaction, Collection<TxIn> missing, long nowMillis) {
+        ShaTwoFiftySix hash = transaction.getShaTwoFiftySix();
+        if (maxTransactions <= 0 || orphans.containsKey(hash)) {
+            return false;
+        }
+        removeExpired(nowMillis);
+        if (orphans.size() >= maxTransactions) {
+            remove(orphans.keySet().iterator().next());
+        }
+        Orphan orphan = new Orphan(transaction, new HashSet<>(missing), nowMillis, nextSequence++);
+        orphans.put(hash, orphan);
+        for (TxIn output : orphan.missing) {
+            waiting.computeIfAbsent(output, key -> new HashSet<>()).add(hash);
+        }
+        return true;
+    }
+
+    /**
+     * Removes and returns the orphans missing an output of the transaction with hash {@code hash}, which has become
+     * known, in the order they were added. They may still be missing other outputs.
+     *
+     * @param numOutputs The number of outputs of that transaction
+     */
+    List<Transaction> takeSpending(ShaTwoFiftySix hash, int numOutputs) {
+        Set<ShaTwoFiftySix> found = new HashSet<>();
+        for (int i = 0; i < numOutputs; i++) {
+            Set<ShaTwoFiftySix> spenders = waiting.get(new TxIn(hash, i));
+            if (spenders != null) {
+                found.addAll(spenders);
+            }
+        }
+        List<Orphan> taken = new ArrayList<>();
+        for (ShaTwoFiftySix orphanHash : found) {
+            taken.add(orphans.get(orphanHash));
+            remove(orphanHash);
+        }
+        taken.sort(Comparator.comparingLong(orphan -> orphan.sequence));
+        return taken.stream().map(orphan -> orphan.transaction).collect(Collectors.toList());
+    }
+
+    /**
+     * Removes the orphans that were added more than {@code expiryMillis} before {@code nowMillis}
+     *
+     * @return The number of orphans removed
+     */
+    int removeExpired(long nowMillis) {
+        int removed = 0;
+        Iterator<Orphan> iterator = orphans.values().iterator();
+        while (iterator.hasNext()) {
+            Orphan orphan = iterator.next();
+            if (nowMillis - orphan.addedMillis <= expiryMillis) {
+                // Later orphans were added later still
+                break;
+            }
+            iterator.remove();
+            unindex(orphan);
+            removed++;
+        }
+        return removed;
+    }
+
+    private void remove(ShaTwoFiftySix hash) {
+        Orphan orphan = orphans.remove(hash);
+        if (orphan != null) {
+            unindex(orphan);
+        }
+    }
+
+    private void unindex(Orphan orphan) {
+        ShaTwoFiftySix hash = orphan.transaction.getShaTwoFiftySix();
+        for (TxIn output : orphan.missing) {
+            Set<ShaTwoFiftySix> spenders = waiting.get(output);
+            spenders.remove(hash);
+            if (spenders.isEmpty()) {
+                waiting.remove(output);
+            }
+        }
+    }
+
+    private static final class Orphan {
+        private final Transaction transaction;
+        private final Set<TxIn> missing;
+        private final long addedMillis;
+        private final long sequence;
+
+        private Orphan(Transaction transaction, Set<TxIn> missing, long addedMillis, long sequence) {
+            this.transaction = transaction;
+            this.missing = missing;
+            this.addedMillis = addedMillis;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package network;
+
+import block.Block;
+import block.NonceKernel;
+import message.IncomingMessage;
+import message.Message;
+import message.payloads.GetWorkRequestPayload;
+import message.payloads.SubmitWorkPayload;
+import message.payloads.WorkPayload;
+import utils.ByteUtil;
+import utils.DeserializationException;
+import utils.Log;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+/**
+ * Mines for a mining node over a single connection, without keeping its own copy of the block chain. The miner
+ * repeatedly asks the node for work, searches the nonces of the work's extranonce for a bounded number of hashes,
+ * and submits any valid nonce it finds.
+ */
+public class RemoteMiner {
+    private final static Log LOGGER = Log.forClass(RemoteMiner.class);
+
+    // Hashes per piece of work, after which fresh work is requested so that the template stays current
+    static final long HASHES_PER_WORK = 1 << 22;
+    private static final long IDLE_MILLIS = 1000;
+    private static final int SEARCH_BATCH_SIZE = 1 << 16;
+
+    private final String host;
+    private final int port;
+
+    public RemoteMiner(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Mines until an error occurs or the thread is interrupted
+     */
+    public void run() throws DeserializationException, IOException, InterruptedException {
+        try (Connection connection = Connection.connect(new Socket(host, port), false)) {
+            LOGGER.info("[+] Connected to %s:%d", host, port);
+            while (!Thread.currentThread().isInterrupted()) {
+                connection.send(new GetWorkRequestPayload().toMessage());
+                IncomingMessage reply = connection.receive();
+                if (reply.type != Message.WORK) {
+                    // The node has nothing to mine yet
+                    Thread.sleep(IDLE_MILLIS);
+                    continue;
+                }
+                WorkPayload work = WorkPayload.DESERIALIZER.deserialize(reply.payload);
+                Optional<byte[]> nonce = search(work, HASHES_PER_WORK);
+                if (nonce.isPresent()) {
+                    LOGGER.info("[+] Found nonce for work %d. Submitting.", work.workId);
+                    connection.send(new SubmitWorkPayload(work.workId, nonce.get()).toMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param work      The work to search
+     * @param maxHashes The maximum number of nonces to try
+     * @return A nonce that makes the hash of the work's template meet its target, if one is found
+     */
+    static Optional<byte[]> search(WorkPayload work, long maxHashes) throws IOException {
+        byte[] prefix = ByteUtil.asByteArray(work.template::serializeWithoutNonce);
+        byte[] nonce = work.template.nonce.clone();
+        ByteBuffer.wrap(nonce).putInt(work.extranonce);
+        NonceKernel kernel = NonceKernel.create(prefix, nonce);
+        int[] target = work.template.target.toWords();
+        while (kernel.hashes() < maxHashes) {
+            if (kernel.search(target, (int) Math.min(SEARCH_BATCH_SIZE, maxHashes - kernel.hashes()))) {
+                byte[] found = new byte[Block.NONCE_SIZE_IN_BYTES];
+                kernel.copyNonce(found);
+                return Optional.of(found);
+            }
+        }
+        return Optional.empty();
+    }
+}
@@ -0,0 +1,84 @@
+package network;
+
+import block.Block;
+import message.payloads.SubmitWorkPayload;
+import message.payloads.WorkPayload;
+import utils.BoundedMap;
+import utils.Log;
+
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Hands out the current block template to remote miners, and checks the nonces they submit. Every piece of work
+ * gets its own extranonce, the first four bytes of the nonce, so remote miners never search the same nonces as each
+ * other or as the local {@code MiningService}, whose workers use extranonces below {@code REMOTE_EXTRANONCE_START}.
+ * <p>
+ * Solutions are accepted for the last few templates, since a template replaced by one with more transactions still
+ * extends the head. All templates are forgotten when the head changes.
+ */
+final class WorkCoordinator {
+    private final Log LOGGER;
+
+    static final int REMOTE_EXTRANONCE_START = 1 << 16;
+    private static final int MAX_TEMPLATES = 4;
+
+    private final Map<Long, Block> templates = new BoundedMap<>(MAX_TEMPLATES, false);
+    private long currentWorkId = -1;
+    private long nextWorkId = 0;
+    private int nextExtranonce = REMOTE_EXTRANONCE_START;
+
+    WorkCoordinator(String name) {
+        LOGGER = Log.forClass(WorkCoordinator.class, name);
+    }
+
+    /**
+     * Makes {@code block} the template handed out to remote miners
+     */
+    void setTemplate(Block block) {
+        currentWorkId = nextWorkId++;
+        templates.put(currentWorkId, block);
+    }
+
+    /**
+     * Forgets every template, because the head has changed
+     */
+    void clear() {
+        templates.clear();
+        currentWorkId = -1;
+    }
+
+    /**
+     * @return Work on the current template with a fresh extranonce, or {@code Optional.empty()} if there is no
+     * template
+     */
+    Optional<WorkPayload> getWork() {
+        Block template = templates.get(currentWorkId);
+        if (template == null) {
+            return Optional.empty();
+        }
+        int extranonce = nextExtranonce;
+        nextExtranonce = extranonce == Integer.MAX_VALUE ? REMOTE_EXTRANONCE_START : extranonce + 1;
+        return Optional.of(new WorkPayload(currentWorkId, extranonce, template));
+    }
+
+    /**
+     * @return The mined block, if {@code submission} is a valid nonce for one of the recent templates
+     */
+    Optional<Block> submit(SubmitWorkPayload submission) {
+        Block template = templates.get(submission.workId);
+        if (template == null) {
+            LOGGER.info("Rejecting work for unknown or stale template %d", submission.workId);
+            return Optional.empty();
+        }
+        // A copy, so that the template itself is never changed
+        Block block = template.withNonce(submission.nonce);
+        if (!block.checkHash()) {
+            LOGGER.info("Rejecting invalid work for template %d", submission.workId);
+            return Optional.empty();
+        }
+        templates.clear();
+        currentWorkId = -1;
+        return Optional.of(block);
+    }
+}
@@ -0,0 +1,13 @@
+package transaction;
+
+import utils.ShaTwoFiftySix;
+
+import java.util.Optional;
+
+/**
+ * An interface for looking up transaction outputs by the hash of their transaction and their index
+ */
+@FunctionalInterface
+public interface OutputLookup {
+    Optional<TxOut> lookup(ShaTwoFiftySix hash, int index);
+}
@@ -0,0 +1,132 @@
+package transaction;
+
+import utils.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@code SignatureCheck}s that succeeded recently, so that a transaction verified when it entered the mempool
+ * does not have its signatures verified again when it arrives in a block. Holds at most
+ * {@code Config.signatureCacheSize()} checks. Safe to use from several threads.
+ * <p>
+ * The checks are spread by hash over stripes, each an LRU map behind its own lock, so that threads verifying
+ * different batches rarely wait for each other. Each stripe gets an equal share of the size, and evicts its own
+ * least recently used check.
+ */
+final class SignatureCache {
+    static final int STRIPES = 16;
+
+    // Access ordered, so the least recently used check of each stripe comes first
+    private final List<Map<SignatureCheck, Boolean>> stripes = new ArrayList<>();
+
+    SignatureCache() {
+        this(STRIPES);
+    }
+
+    SignatureCache(int numStripes) {
+        for (int i = 0; i < numStripes; i++) {
+            stripes.add(new LinkedHashMap<>(16, 0.75f, true));
+        }
+    }
+
+    boolean contains(SignatureCheck check) {
+        return unknown(Collections.singletonList(check)).isEmpty();
+    }
+
+    /**
+     * Remembers {@code check}, which succeeded
+     */
+    void add(SignatureCheck check) {
+        addAll(Collections.singletonList(check));
+    }
+
+    /**
+     * @return The checks of {@code checks} that are not remembered, in order, taking the lock of each stripe at most
+     * once
+     */
+    List<SignatureCheck> unknown(List<SignatureCheck> checks) {
+        List<List<Integer>> grouped = groupByStripe(checks);
+        boolean[] known = new boolean[checks.size()];
+        for (int i = 0; i < stripes.size(); i++) {
+            if (grouped.get(i).isEmpty()) {
+                continue;
+            }
+            Map<SignatureCheck, Boolean> stripe = stripes.get(i);
+            synchronized (stripe) {
+                for (int index : grouped.get(i)) {
+                    known[index] = stripe.get(checks.get(index)) != null;
+                }
+            }
+        }
+        List<SignatureCheck> unknown = new ArrayList<>();
+        for (int index = 0; index < known.length; index++) {
+            if (!known[index]) {
+                unknown.add(checks.get(index));
+            }
+        }
+        return unknown;
+    }
+
+    /**
+     * Remembers {@code checks}, which all succeeded, taking the lock of each stripe at most once
+     */
+    void addAll(List<SignatureCheck> checks) {
+        List<List<Integer>> grouped = groupByStripe(checks);
+        int maxSize = Config.signatureCacheSize();
+        for (int i = 0; i < stripes.size(); i++) {
+            if (grouped.get(i).isEmpty()) {
+                continue;
+            }
+            // Spread the remainder over the first stripes, so that the capacities add up to maxSize
+            int capacity = maxSize <= 0 ? 0 : maxSize / stripes.size() + (i < maxSize % stripes.size() ? 1 : 0);
+            Map<SignatureCheck, Boolean> stripe = stripes.get(i);
+            synchronized (stripe) {
+                for (int index : grouped.get(i)) {
+                    stripe.put(checks.get(index), Boolean.TRUE);
+                }
+                Iterator<SignatureCheck> iterator = stripe.keySet().iterator();
+                while (stripe.size() > capacity) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Map<SignatureCheck, Boolean> stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+        return size;
+    }
+
+    void clear() {
+        for (Map<SignatureCheck, Boolean> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * @return For each stripe, the indexes in {@code checks} of the checks that belong to it
+     */
+    private List<List<Integer>> groupByStripe(List<SignatureCheck> checks) {
+        List<List<Integer>> grouped = new ArrayList<>();
+        for (int i = 0; i < stripes.size(); i++) {
+            grouped.add(new ArrayList<>());
+        }
+        for (int index = 0; index < checks.size(); index++) {
+            grouped.get(Math.floorMod(checks.get(index).hashCode(), stripes.size())).add(index);
+        }
+        return grouped;
+    }
+}
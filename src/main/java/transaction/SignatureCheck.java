@@ -0,0 +1,91 @@
+package transaction;
+
+import crypto.Crypto;
+import crypto.ECDSAPublicKey;
+import crypto.ECDSASignature;
+import utils.Log;
+import utils.ShaTwoFiftySix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.IntStream;
+
+/**
+ * The check of the signature of one input of a {@code Transaction} against the key of the output it spends. Once the
+ * spent outputs are known, a check depends on nothing else, so the checks of many transactions can be collected
+ * first and verified in parallel.
+ * <p>
+ * Successful checks are remembered in a {@code SignatureCache} shared by all callers. The hash of a transaction does
+ * not cover its signatures, so a check is identified by the signature itself rather than by the input index.
+ */
+public final class SignatureCheck {
+    private static final Log LOGGER = Log.forClass(SignatureCheck.class);
+    // Checks verified together on one thread, sharing one modular inversion
+    static final int BATCH_SIZE = 16;
+    static final SignatureCache CACHE = new SignatureCache();
+
+    public final ShaTwoFiftySix hash;
+    public final ECDSASignature signature;
+    public final ECDSAPublicKey key;
+
+    public SignatureCheck(ShaTwoFiftySix hash, ECDSASignature signature, ECDSAPublicKey key) {
+        this.hash = hash;
+        this.signature = signature;
+        this.key = key;
+    }
+
+    /**
+     * Verifies {@code checks} in batches of up to {@code BATCH_SIZE}, spread across the common {@code ForkJoinPool}
+     * if there are several. Checks remembered by the cache are skipped.
+     *
+     * @return Whether every check succeeded
+     */
+    public static boolean verifyAll(List<SignatureCheck> checks) {
+        List<SignatureCheck> unknown = CACHE.unknown(checks);
+        int numBatches = (unknown.size() + BATCH_SIZE - 1) / BATCH_SIZE;
+        IntStream batches = IntStream.range(0, numBatches);
+        if (numBatches > 1) {
+            batches = batches.parallel();
+        }
+        return batches.allMatch(batch -> verifyBatch(
+                unknown.subList(batch * BATCH_SIZE, Math.min(unknown.size(), (batch + 1) * BATCH_SIZE))));
+    }
+
+    private static boolean verifyBatch(List<SignatureCheck> batch) {
+        ShaTwoFiftySix[] hashes = new ShaTwoFiftySix[batch.size()];
+        ECDSASignature[] signatures = new ECDSASignature[batch.size()];
+        ECDSAPublicKey[] keys = new ECDSAPublicKey[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            SignatureCheck check = batch.get(i);
+            hashes[i] = check.hash;
+            signatures[i] = check.signature;
+            keys[i] = check.key;
+        }
+        boolean[] valid = Crypto.verifyAll(hashes, signatures, keys);
+        List<SignatureCheck> verified = new ArrayList<>(batch.size());
+        for (int i = 0; i < valid.length; i++) {
+            if (valid[i]) {
+                verified.add(batch.get(i));
+            } else {
+                LOGGER.warning("Invalid signature: %s,%s", keys[i], signatures[i]);
+            }
+        }
+        CACHE.addAll(verified);
+        return verified.size() == batch.size();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SignatureCheck)) {
+            return false;
+        }
+        SignatureCheck other = (SignatureCheck) o;
+        return hash.equals(other.hash) && signature.equals(other.signature) && key.equals(other.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(hash, signature, key);
+    }
+}
@@ -142,10 +142,27 @@ public final class Transaction extends HashCache implements CanBeSerialized {
      *                       that are spent by {@code this Transaction} will be removed. If verification fails, there
      *                       are no guarantees as to the state of this {@code Map}.
      * @return Whether this {@code Transaction} was successfully verified.
-     * @throws IOException
      */
-    public boolean verify(UnspentTransactions unspentOutputs)
-            throws IOException {
+    public boolean verify(UnspentTransactions unspentOutputs) {
+        List<SignatureCheck> signatureChecks = new ArrayList<>(txIn.length);
+        if (!verifyWithoutSignatures(unspentOutputs, signatureChecks)) {
+            return false;
+        }
+        return SignatureCheck.verifyAll(signatureChecks);
+    }
+
+    /**
+     * Verifies {@code this Transaction} with respect to {@code unspentOutputs}, except for its signatures, which are
+     * added to {@code signatureChecks} to be verified later, possibly along with those of other transactions.
+     *
+     * @param unspentOutputs  As for {@link #verify(UnspentTransactions)}
+     * @param signatureChecks Receives the check of the signature of each input, if every input is unspent
+     * @return Whether this {@code Transaction} is valid, assuming its signatures are
+     */
+    public boolean verifyWithoutSignatures(UnspentTransactions unspentOutputs, List<SignatureCheck> signatureChecks) {
+        if (signatures == null) {
+            throw new IllegalStateException("Cannot verify unsigned transaction");
+        }
         long inputSum = 0;
         long outputSum = 0;
         for (int i = 0; i < txIn.length; ++i) {
@@ -159,10 +176,7 @@ public final class Transaction extends HashCache implements CanBeSerialized {
                 return false;
             }
             inputSum += out.value;
-            if (!verifySignature(i, out.ownerPubKey)) {
-                LOGGER.warning("Invalid signature: " + out.ownerPubKey + "," + signatures[i]);
-                return false;
-            }
+            signatureChecks.add(new SignatureCheck(getShaTwoFiftySix(), signatures[i], out.ownerPubKey));
         }
         for (int j = 0; j < txOut.length; j++) {
             TxOut out = txOut[j];
@@ -177,6 +191,27 @@ public final class Transaction extends HashCache implements CanBeSerialized {
         return outputSum == inputSum;
     }
 
+    /**
+     * Applies {@code this Transaction}, which has already been verified against some unspent outputs, to
+     * {@code unspentOutputs}: its inputs are spent and its outputs are added. The signatures and amounts are not
+     * checked again, since they only depend on the outputs being spent, which are identified by their hashes.
+     *
+     * @param unspentOutputs The unspent outputs to update. If an input is missing, there are no guarantees as to the
+     *                       state of this {@code Map}.
+     * @return Whether every input was unspent
+     */
+    public boolean apply(UnspentTransactions unspentOutputs) {
+        for (TxIn in : txIn) {
+            if (unspentOutputs.remove(in.previousTxn, in.txIdx) == null) {
+                return false;
+            }
+        }
+        for (int j = 0; j < txOut.length; j++) {
+            unspentOutputs.put(getShaTwoFiftySix(), j, txOut[j]);
+        }
+        return true;
+    }
+
     /**
      * "Rollbacks" this transaction, by updating {@code unspentTransactions} to
      * reflect the state before this transaction was applied.
@@ -186,6 +221,19 @@ public final class Transaction extends HashCache implements CanBeSerialized {
      * @return whether the rollback was successful
      */
     public boolean rollback(UnspentTransactions unspentTransactions, TransactionLookup lookup) {
+        return rollback(unspentTransactions,
+                (hash, index) -> lookup.lookup(hash).map(tx -> tx.getOutput(index)));
+    }
+
+    /**
+     * "Rollbacks" this transaction, by updating {@code unspentTransactions} to
+     * reflect the state before this transaction was applied.
+     *
+     * @param unspentTransactions map of unspent transactions to update
+     * @param lookup              way to lookup the outputs spent by this transaction
+     * @return whether the rollback was successful
+     */
+    public boolean rollback(UnspentTransactions unspentTransactions, OutputLookup lookup) {
         ShaTwoFiftySix hash = getShaTwoFiftySix();
         for (int i = 0; i < txOut.length; i++) {
             if (!unspentTransactions.contains(hash, i)) {
@@ -198,13 +246,11 @@ public final class Transaction extends HashCache implements CanBeSerialized {
                 return false;
             }
 
-            Optional<Transaction> opt = lookup.lookup(input.previousTxn);
+            Optional<TxOut> opt = lookup.lookup(input.previousTxn, input.txIdx);
             if (!opt.isPresent()) {
                 return false;
             }
-
-            TxOut output = opt.get().getOutput(input.txIdx);
-            unspentTransactions.put(input.previousTxn, input.txIdx, output);
+            unspentTransactions.put(input.previousTxn, input.txIdx, opt.get());
         }
         return true;
     }
@@ -0,0 +1,25 @@
+package utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@code LinkedHashMap} that holds at most {@code maxSize} entries, removing the eldest when another is added.
+ * With {@code accessOrder}, the eldest entry is the least recently used one, which makes this an LRU cache;
+ * otherwise it is the least recently inserted one.
+ */
+public final class BoundedMap<K, V> extends LinkedHashMap<K, V> {
+    private static final long serialVersionUID = 1L;
+
+    private final int maxSize;
+
+    public BoundedMap(int maxSize, boolean accessOrder) {
+        super(16, 0.75f, accessOrder);
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > maxSize;
+    }
+}
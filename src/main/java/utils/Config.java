@@ -2,12 +2,27 @@ package utils;
 
 /**
  * Various system-wide constants and configurations. These "constants" should be
- * modified only in tests.
+ * modified only in tests, or by {@code Main} from the node properties before the node starts.
  */
 public final class Config {
 
     private static int PBKDF2_COST = 12;
     private static int HASH_GOAL = 2;
+    private static int RETARGET_INTERVAL = 100;
+    private static long TARGET_BLOCK_MILLIS = 60_000;
+    private static int UTXO_SNAPSHOT_INTERVAL = 1000;
+    private static int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static int MINING_THREADS = Runtime.getRuntime().availableProcessors();
+    private static int MINING_STATS_LOG_INTERVAL = 60;
+    private static boolean MULTI_BUFFER_MINING = false;
+    private static int MAX_BLOCK_TRANSACTIONS = 1000;
+    private static int MAX_BLOCK_BYTES = 1 << 20;
+    private static int MAX_TEMPLATE_TRANSACTIONS = MAX_BLOCK_TRANSACTIONS;
+    private static int MAX_TEMPLATE_BYTES = MAX_BLOCK_BYTES;
+    private static int MAX_MEMPOOL_TRANSACTIONS = 100_000;
+    private static int MAX_ORPHAN_TRANSACTIONS = 1000;
+    private static long ORPHAN_EXPIRY_MILLIS = 20 * 60_000;
+    private static int SIGNATURE_CACHE_SIZE = 100_000;
 
     // Disallow instances of this class
     private Config() {
@@ -21,6 +36,9 @@ public final class Config {
         PBKDF2_COST = cost;
     }
 
+    /**
+     * @return The number of leading zero bytes of the initial target, see {@code Block.initialTarget()}
+     */
     public static int hashGoal() {
         return HASH_GOAL;
     }
@@ -28,4 +46,174 @@ public final class Config {
     public static void setHashGoal(int goal) {
         HASH_GOAL = goal;
     }
+
+    /**
+     * @return The size in bytes past which the block store starts a new segment file
+     */
+    public static int segmentSize() {
+        return SEGMENT_SIZE;
+    }
+
+    public static void setSegmentSize(int bytes) {
+        SEGMENT_SIZE = bytes;
+    }
+
+    /**
+     * @return The number of blocks between snapshots of the unspent transactions, or 0 to never write snapshots
+     */
+    public static int utxoSnapshotInterval() {
+        return UTXO_SNAPSHOT_INTERVAL;
+    }
+
+    public static void setUtxoSnapshotInterval(int interval) {
+        UTXO_SNAPSHOT_INTERVAL = interval;
+    }
+
+    /**
+     * @return The number of threads that search for a valid nonce when mining
+     */
+    public static int miningThreads() {
+        return MINING_THREADS;
+    }
+
+    public static void setMiningThreads(int threads) {
+        MINING_THREADS = threads;
+    }
+
+    /**
+     * @return The number of seconds between logs of the mining statistics, or 0 to never log them
+     */
+    public static int miningStatsLogInterval() {
+        return MINING_STATS_LOG_INTERVAL;
+    }
+
+    public static void setMiningStatsLogInterval(int seconds) {
+        MINING_STATS_LOG_INTERVAL = seconds;
+    }
+
+    /**
+     * @return The maximum number of transactions in a block. This is a consensus rule shared by the whole network,
+     * so it is not read from the node properties.
+     */
+    public static int maxBlockTransactions() {
+        return MAX_BLOCK_TRANSACTIONS;
+    }
+
+    public static void setMaxBlockTransactions(int transactions) {
+        MAX_BLOCK_TRANSACTIONS = transactions;
+    }
+
+    /**
+     * @return The maximum size of a serialized block, in bytes. This is a consensus rule shared by the whole
+     * network, so it is not read from the node properties.
+     */
+    public static int maxBlockBytes() {
+        return MAX_BLOCK_BYTES;
+    }
+
+    public static void setMaxBlockBytes(int bytes) {
+        MAX_BLOCK_BYTES = bytes;
+    }
+
+    /**
+     * @return The maximum number of transactions this node puts in the blocks it mines, never more than
+     * {@link #maxBlockTransactions()}
+     */
+    public static int maxTemplateTransactions() {
+        return Math.min(MAX_TEMPLATE_TRANSACTIONS, MAX_BLOCK_TRANSACTIONS);
+    }
+
+    public static void setMaxTemplateTransactions(int transactions) {
+        MAX_TEMPLATE_TRANSACTIONS = transactions;
+    }
+
+    /**
+     * @return The maximum size in bytes of the blocks this node mines, never more than {@link #maxBlockBytes()}
+     */
+    public static int maxTemplateBytes() {
+        return Math.min(MAX_TEMPLATE_BYTES, MAX_BLOCK_BYTES);
+    }
+
+    public static void setMaxTemplateBytes(int bytes) {
+        MAX_TEMPLATE_BYTES = bytes;
+    }
+
+    /**
+     * @return The maximum number of verified transactions waiting to be mined
+     */
+    public static int maxMempoolTransactions() {
+        return MAX_MEMPOOL_TRANSACTIONS;
+    }
+
+    public static void setMaxMempoolTransactions(int transactions) {
+        MAX_MEMPOOL_TRANSACTIONS = transactions;
+    }
+
+    /**
+     * @return The maximum number of transactions kept while the outputs they spend are unknown
+     */
+    public static int maxOrphanTransactions() {
+        return MAX_ORPHAN_TRANSACTIONS;
+    }
+
+    public static void setMaxOrphanTransactions(int transactions) {
+        MAX_ORPHAN_TRANSACTIONS = transactions;
+    }
+
+    /**
+     * @return The time after which a transaction whose inputs are still unknown is dropped, in milliseconds
+     */
+    public static long orphanExpiryMillis() {
+        return ORPHAN_EXPIRY_MILLIS;
+    }
+
+    public static void setOrphanExpiryMillis(long millis) {
+        ORPHAN_EXPIRY_MILLIS = millis;
+    }
+
+    /**
+     * @return The maximum number of successful signature checks remembered, or 0 to remember none
+     */
+    public static int signatureCacheSize() {
+        return SIGNATURE_CACHE_SIZE;
+    }
+
+    public static void setSignatureCacheSize(int checks) {
+        SIGNATURE_CACHE_SIZE = checks;
+    }
+
+    /**
+     * @return The number of blocks between adjustments of the target. This is a consensus rule shared by the
+     * whole network, so it is not read from the node properties.
+     */
+    public static int retargetInterval() {
+        return RETARGET_INTERVAL;
+    }
+
+    public static void setRetargetInterval(int blocks) {
+        RETARGET_INTERVAL = blocks;
+    }
+
+    /**
+     * @return The time between blocks that the target is adjusted towards, in milliseconds. This is a consensus
+     * rule shared by the whole network, so it is not read from the node properties.
+     */
+    public static long targetBlockMillis() {
+        return TARGET_BLOCK_MILLIS;
+    }
+
+    public static void setTargetBlockMillis(long millis) {
+        TARGET_BLOCK_MILLIS = millis;
+    }
+
+    /**
+     * @return Whether miners hash several nonces at once, see {@code block.NonceKernel}
+     */
+    public static boolean multiBufferMining() {
+        return MULTI_BUFFER_MINING;
+    }
+
+    public static void setMultiBufferMining(boolean multiBuffer) {
+        MULTI_BUFFER_MINING = multiBuffer;
+    }
 }
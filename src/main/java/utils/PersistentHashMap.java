@@ -0,0 +1,409 @@
+package utils;
+
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * An immutable hash map, implemented as a hash array mapped trie. Updates return a new map that shares all but
+ * O(log n) of its nodes with the original, so keeping old versions around is cheap.
+ * <p>
+ * Keys and values must not be {@code null}.
+ */
+public final class PersistentHashMap<K, V> implements Iterable<Map.Entry<K, V>> {
+    private static final int BITS_PER_LEVEL = 5;
+    private static final int MASK = (1 << BITS_PER_LEVEL) - 1;
+
+    private static final PersistentHashMap<?, ?> EMPTY =
+            new PersistentHashMap<>(new BitmapNode<>(0, new Object[0]), 0);
+
+    private final Node<K, V> root;
+    private final int size;
+
+    private PersistentHashMap(Node<K, V> root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * @return The empty map
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return The value associated with {@code key}, or {@code null} if there is none
+     */
+    public V get(Object key) {
+        return root.find(hash(key), key, 0);
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return A map with the same entries as {@code this}, except that {@code key} is associated with
+     * {@code value}
+     */
+    public PersistentHashMap<K, V> put(K key, V value) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        boolean[] added = new boolean[1];
+        Node<K, V> newRoot = root.put(new Leaf<>(hash(key), key, value), 0, added);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentHashMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * @return A map with the same entries as {@code this}, except that there is no entry for {@code key}
+     */
+    public PersistentHashMap<K, V> remove(Object key) {
+        Node<K, V> newRoot = root.remove(hash(key), key, 0);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentHashMap<>(newRoot, size - 1);
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+        return new EntryIterator<>(root);
+    }
+
+    public Stream<Map.Entry<K, V>> stream() {
+        return StreamSupport.stream(
+                Spliterators.spliterator(iterator(), size, Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        } else if (!(o instanceof PersistentHashMap)) {
+            return false;
+        }
+        PersistentHashMap<?, ?> other = (PersistentHashMap<?, ?>) o;
+        if (size != other.size) {
+            return false;
+        }
+        for (Map.Entry<K, V> entry : this) {
+            if (!entry.getValue().equals(other.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Consistent with {@link Map#hashCode()}
+     */
+    @Override
+    public int hashCode() {
+        int hashCode = 0;
+        for (Map.Entry<K, V> entry : this) {
+            hashCode += entry.hashCode();
+        }
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(", ", "{", "}");
+        for (Map.Entry<K, V> entry : this) {
+            joiner.add(entry.toString());
+        }
+        return joiner.toString();
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private interface Node<K, V> {
+        V find(int hash, Object key, int shift);
+
+        /**
+         * @return The updated node, or {@code this} if nothing changed
+         */
+        Node<K, V> put(Leaf<K, V> leaf, int shift, boolean[] added);
+
+        /**
+         * @return The updated node, or {@code this} if there was nothing to remove
+         */
+        Node<K, V> remove(int hash, Object key, int shift);
+
+        /**
+         * @return Each child of this node, which is either a {@code Leaf} or a {@code Node}
+         */
+        Object[] children();
+    }
+
+    private static final class Leaf<K, V> extends AbstractMap.SimpleImmutableEntry<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int hash;
+
+        private Leaf(int hash, K key, V value) {
+            super(key, value);
+            this.hash = hash;
+        }
+
+        private boolean matches(int hash, Object key) {
+            return this.hash == hash && getKey().equals(key);
+        }
+    }
+
+    /**
+     * An interior node with up to 32 children, indexed by {@code BITS_PER_LEVEL} bits of the hash. Only the
+     * children that are present are stored, in the order of their bit in {@code bitmap}.
+     */
+    private static final class BitmapNode<K, V> implements Node<K, V> {
+        private final int bitmap;
+        private final Object[] children;
+
+        private BitmapNode(int bitmap, Object[] children) {
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+
+        private static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V find(int hash, Object key, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            Object child = children[index(bit)];
+            if (child instanceof Leaf) {
+                Leaf<K, V> leaf = (Leaf<K, V>) child;
+                return leaf.matches(hash, key) ? leaf.getValue() : null;
+            }
+            return ((Node<K, V>) child).find(hash, key, shift + BITS_PER_LEVEL);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Node<K, V> put(Leaf<K, V> leaf, int shift, boolean[] added) {
+            int bit = bit(leaf.hash, shift);
+            int index = index(bit);
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                Object[] newChildren = new Object[children.length + 1];
+                System.arraycopy(children, 0, newChildren, 0, index);
+                newChildren[index] = leaf;
+                System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+                return new BitmapNode<>(bitmap | bit, newChildren);
+            }
+            Object child = children[index];
+            Object newChild;
+            if (child instanceof Leaf) {
+                Leaf<K, V> existing = (Leaf<K, V>) child;
+                if (existing.matches(leaf.hash, leaf.getKey())) {
+                    if (existing.getValue() == leaf.getValue()) {
+                        return this;
+                    }
+                    newChild = leaf;
+                } else {
+                    added[0] = true;
+                    newChild = merge(existing, leaf, shift + BITS_PER_LEVEL);
+                }
+            } else {
+                newChild = ((Node<K, V>) child).put(leaf, shift + BITS_PER_LEVEL, added);
+                if (newChild == child) {
+                    return this;
+                }
+            }
+            Object[] newChildren = children.clone();
+            newChildren[index] = newChild;
+            return new BitmapNode<>(bitmap, newChildren);
+        }
+
+        private static <K, V> Node<K, V> merge(Leaf<K, V> a, Leaf<K, V> b, int shift) {
+            if (shift >= Integer.SIZE) {
+                return new CollisionNode<>(new Object[]{a, b});
+            }
+            int bitA = bit(a.hash, shift);
+            int bitB = bit(b.hash, shift);
+            if (bitA == bitB) {
+                return new BitmapNode<>(bitA, new Object[]{merge(a, b, shift + BITS_PER_LEVEL)});
+            }
+            Object[] children = Integer.compareUnsigned(bitA, bitB) < 0 ? new Object[]{a, b} : new Object[]{b, a};
+            return new BitmapNode<>(bitA | bitB, children);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Node<K, V> remove(int hash, Object key, int shift) {
+            int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int index = index(bit);
+            Object child = children[index];
+            Object newChild;
+            if (child instanceof Leaf) {
+                if (!((Leaf<K, V>) child).matches(hash, key)) {
+                    return this;
+                }
+                newChild = null;
+            } else {
+                Node<K, V> node = ((Node<K, V>) child).remove(hash, key, shift + BITS_PER_LEVEL);
+                if (node == child) {
+                    return this;
+                }
+                // Pull a lone remaining entry up into this node, so the trie stays as shallow as possible
+                Object[] grandchildren = node.children();
+                newChild = grandchildren.length == 1 && grandchildren[0] instanceof Leaf ? grandchildren[0] : node;
+            }
+            if (newChild != null) {
+                Object[] newChildren = children.clone();
+                newChildren[index] = newChild;
+                return new BitmapNode<>(bitmap, newChildren);
+            }
+            Object[] newChildren = new Object[children.length - 1];
+            System.arraycopy(children, 0, newChildren, 0, index);
+            System.arraycopy(children, index + 1, newChildren, index, children.length - index - 1);
+            return new BitmapNode<>(bitmap & ~bit, newChildren);
+        }
+
+        @Override
+        public Object[] children() {
+            return children;
+        }
+    }
+
+    /**
+     * A node holding leaves whose keys have the same full hash
+     */
+    private static final class CollisionNode<K, V> implements Node<K, V> {
+        private final Object[] leaves;
+
+        private CollisionNode(Object[] leaves) {
+            this.leaves = leaves;
+        }
+
+        @SuppressWarnings("unchecked")
+        private int indexOf(int hash, Object key) {
+            for (int i = 0; i < leaves.length; i++) {
+                if (((Leaf<K, V>) leaves[i]).matches(hash, key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V find(int hash, Object key, int shift) {
+            int index = indexOf(hash, key);
+            return index < 0 ? null : ((Leaf<K, V>) leaves[index]).getValue();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Node<K, V> put(Leaf<K, V> leaf, int shift, boolean[] added) {
+            int index = indexOf(leaf.hash, leaf.getKey());
+            if (index < 0) {
+                added[0] = true;
+                Object[] newLeaves = Arrays.copyOf(leaves, leaves.length + 1);
+                newLeaves[leaves.length] = leaf;
+                return new CollisionNode<>(newLeaves);
+            } else if (((Leaf<K, V>) leaves[index]).getValue() == leaf.getValue()) {
+                return this;
+            }
+            Object[] newLeaves = leaves.clone();
+            newLeaves[index] = leaf;
+            return new CollisionNode<>(newLeaves);
+        }
+
+        @Override
+        public Node<K, V> remove(int hash, Object key, int shift) {
+            int index = indexOf(hash, key);
+            if (index < 0) {
+                return this;
+            }
+            Object[] newLeaves = new Object[leaves.length - 1];
+            System.arraycopy(leaves, 0, newLeaves, 0, index);
+            System.arraycopy(leaves, index + 1, newLeaves, index, leaves.length - index - 1);
+            return new CollisionNode<>(newLeaves);
+        }
+
+        @Override
+        public Object[] children() {
+            return leaves;
+        }
+    }
+
+    /**
+     * A depth-first iterator over the leaves of a trie
+     */
+    private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        private final Deque<Object[]> nodeStack = new ArrayDeque<>();
+        private final Deque<Integer> indexStack = new ArrayDeque<>();
+        private Leaf<K, V> next;
+
+        private EntryIterator(Node<K, V> root) {
+            nodeStack.push(root.children());
+            indexStack.push(0);
+            advance();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (!nodeStack.isEmpty()) {
+                Object[] children = nodeStack.peek();
+                int index = indexStack.pop();
+                if (index == children.length) {
+                    nodeStack.pop();
+                    continue;
+                }
+                indexStack.push(index + 1);
+                Object child = children[index];
+                if (child instanceof Leaf) {
+                    next = (Leaf<K, V>) child;
+                    return;
+                }
+                nodeStack.push(((Node<K, V>) child).children());
+                indexStack.push(0);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K, V> result = next;
+            advance();
+            return result;
+        }
+    }
+}
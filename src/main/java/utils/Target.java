@@ -0,0 +1,117 @@
+package utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * A proof of work target: a block is valid if its SHA-256 hash, read as an unsigned big-endian number, is at most
+ * its target. Unlike a count of leading zero bytes, a target can be adjusted in arbitrarily small steps.
+ */
+public final class Target {
+    public static final int SIZE_IN_BYTES = ShaTwoFiftySix.HASH_SIZE_IN_BYTES;
+
+    private static final BigInteger MAX_VALUE = BigInteger.ONE.shiftLeft(8 * SIZE_IN_BYTES).subtract(BigInteger.ONE);
+
+    /**
+     * The easiest target, which every hash meets
+     */
+    public static final Target MAX = new Target(MAX_VALUE);
+
+    private final byte[] target;
+
+    private Target(byte[] target) {
+        this.target = Arrays.copyOf(target, SIZE_IN_BYTES);
+    }
+
+    private Target(BigInteger value) {
+        // Unsigned, and padded or trimmed to exactly SIZE_IN_BYTES bytes
+        byte[] bytes = value.toByteArray();
+        this.target = new byte[SIZE_IN_BYTES];
+        int length = Math.min(bytes.length, SIZE_IN_BYTES);
+        System.arraycopy(bytes, bytes.length - length, target, SIZE_IN_BYTES - length, length);
+    }
+
+    /**
+     * @return The target met by exactly the hashes that start with {@code numZeros} zero bytes
+     */
+    public static Target ofLeadingZeroBytes(int numZeros) {
+        byte[] target = new byte[SIZE_IN_BYTES];
+        Arrays.fill(target, Math.max(0, Math.min(numZeros, SIZE_IN_BYTES)), SIZE_IN_BYTES, (byte) 0xff);
+        return new Target(target);
+    }
+
+    /**
+     * Reads a target from {@code input}
+     */
+    public static Target deserialize(InputStream input) throws IOException {
+        byte[] target = new byte[SIZE_IN_BYTES];
+        IOUtils.fill(input, target);
+        return new Target(target);
+    }
+
+    /**
+     * Writes the target to {@code outputStream}
+     */
+    public void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(target);
+    }
+
+    /**
+     * @return Whether {@code hash} is at most this target
+     */
+    public boolean isMetBy(ShaTwoFiftySix hash) {
+        byte[] bytes = hash.copyOfHash();
+        for (int i = 0; i < SIZE_IN_BYTES; i++) {
+            if (bytes[i] != target[i]) {
+                return (bytes[i] & 0xff) < (target[i] & 0xff);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return This target multiplied by {@code numerator / denominator}, capped at {@code MAX} and at least 1, so
+     * that the target never becomes 0, which no hash but 0 would meet and no later scaling could move away from
+     */
+    public Target scale(long numerator, long denominator) {
+        BigInteger value = new BigInteger(1, target)
+                .multiply(BigInteger.valueOf(numerator))
+                .divide(BigInteger.valueOf(denominator));
+        return new Target(value.max(BigInteger.ONE).min(MAX_VALUE));
+    }
+
+    /**
+     * @return The target as eight big-endian 32-bit words, as compared with a SHA-256 state
+     */
+    public int[] toWords() {
+        int[] words = new int[SIZE_IN_BYTES / 4];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = target[4 * i] << 24 | (target[4 * i + 1] & 0xff) << 16
+                    | (target[4 * i + 2] & 0xff) << 8 | (target[4 * i + 3] & 0xff);
+        }
+        return words;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        } else if (!(o instanceof Target)) {
+            return false;
+        }
+        return Arrays.equals(target, ((Target) o).target);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(target);
+    }
+
+    @Override
+    public String toString() {
+        return ByteUtil.bytesToHexString(target);
+    }
+}
@@ -51,7 +51,7 @@ public class BlockChainProperties {
                     .addOutput(new TxOut(utxo.getValue().value, utxo.getValue().ownerPubKey))
                     .build();
             txs.add(tx);
-            if (txs.size() == Block.NUM_TRANSACTIONS_PER_BLOCK) {
+            if (txs.size() == Block.MIN_TRANSACTIONS_TO_MINE) {
                 break;
             }
         }
@@ -8,14 +8,17 @@ import testutils.RandomizedTest;
 import transaction.Transaction;
 import transaction.TxIn;
 import transaction.TxOut;
+import utils.ByteUtil;
 import utils.Config;
+import utils.Pair;
 import utils.ShaTwoFiftySix;
+import utils.Target;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 
@@ -40,7 +43,7 @@ public class BlockChainTest extends RandomizedTest {
 
         List<Transaction> transactions = new ArrayList<>();
         ShaTwoFiftySix prevTxOut = genesis.getShaTwoFiftySix();
-        for (int i = 0; i < Block.NUM_TRANSACTIONS_PER_BLOCK; ++i) {
+        for (int i = 0; i < Block.MIN_TRANSACTIONS_TO_MINE; ++i) {
             Transaction tx = new Transaction.Builder()
                     .addInput(new TxIn(prevTxOut, 0), senderPair.privateKey)
                     .addOutput(new TxOut(Block.REWARD_AMOUNT - (i + 1), senderPair.publicKey))
@@ -55,7 +58,7 @@ public class BlockChainTest extends RandomizedTest {
         next.findValidNonce();
 
         unspentTxs.put(prevTxOut, 0,
-                next.transactions[Block.NUM_TRANSACTIONS_PER_BLOCK - 1].getOutput(0));
+                next.transactions[Block.MIN_TRANSACTIONS_TO_MINE - 1].getOutput(0));
         unspentTxs.put(next.getShaTwoFiftySix(), 0, next.reward);
 
         Assert.assertTrue(errorMessage, bc.verifyNonGenesisBlock(next).isPresent());
@@ -66,8 +69,8 @@ public class BlockChainTest extends RandomizedTest {
         Assert.assertFalse(errorMessage, bc.verifyNonGenesisBlock(randomBlock(randomShaTwoFiftySix())).isPresent());
 
 
-        Block fauxGenesis = new Block(ShaTwoFiftySix.zero(), new Transaction[0],
-                new TxOut(Block.REWARD_AMOUNT + 1, crypto.signatureKeyPair().publicKey));
+        Block fauxGenesis = new Block(ShaTwoFiftySix.zero(), System.currentTimeMillis(), Block.initialTarget(),
+                new Transaction[0], new TxOut(Block.REWARD_AMOUNT + 1, crypto.signatureKeyPair().publicKey));
         Assert.assertFalse(errorMessage, bc.verifyNonGenesisBlock(fauxGenesis).isPresent());
     }
 
@@ -212,6 +215,41 @@ public class BlockChainTest extends RandomizedTest {
 
     }
 
+    @Test
+    public void getPath() throws Exception {
+        Block genesis = Block.genesis(crypto.signatureKeyPair().publicKey);
+        BlockChain bc = new BlockChain(Files.createTempDirectory("test"), genesis);
+        List<Block> main = new ArrayList<>();
+        List<Block> side = new ArrayList<>();
+        Block prev = genesis;
+        for (int i = 0; i < 3; ++i) {
+            prev = randomBlock(prev.getShaTwoFiftySix());
+            bc.insertBlock(prev);
+            main.add(prev);
+        }
+        prev = main.get(0);
+        for (int i = 0; i < 2; ++i) {
+            prev = randomBlock(prev.getShaTwoFiftySix());
+            bc.insertBlock(prev);
+            side.add(prev);
+        }
+
+        Pair<List<Block>, List<Block>> path = bc.getPath(main.get(2).getShaTwoFiftySix(),
+                side.get(1).getShaTwoFiftySix()).get();
+        assertEquals(errorMessage, Arrays.asList(main.get(2), main.get(1)), path.getLeft());
+        assertEquals(errorMessage, side, path.getRight());
+
+        path = bc.getPath(genesis.getShaTwoFiftySix(), main.get(2).getShaTwoFiftySix()).get();
+        assertEquals(errorMessage, Collections.emptyList(), path.getLeft());
+        assertEquals(errorMessage, main, path.getRight());
+
+        path = bc.getPath(side.get(0).getShaTwoFiftySix(), side.get(0).getShaTwoFiftySix()).get();
+        assertEquals(errorMessage, Collections.emptyList(), path.getLeft());
+        assertEquals(errorMessage, Collections.emptyList(), path.getRight());
+
+        assertFalse(errorMessage, bc.getPath(randomShaTwoFiftySix(), main.get(2).getShaTwoFiftySix()).isPresent());
+    }
+
     @Test
     public void containsBlockWithHash() throws Exception {
         Block genesis = Block.genesis(crypto.signatureKeyPair().publicKey);
@@ -280,6 +318,361 @@ public class BlockChainTest extends RandomizedTest {
             Assert.assertTrue(newBlockChain.containsBlock(b));
         }
     }
-}
 
+    @Test
+    public void refusesLegacyLayout() throws Exception {
+        Config.setHashGoal(1);
+        Block genesis = Block.genesis(crypto.signatureKeyPair().publicKey);
+        Path blockChainPath = Files.createTempDirectory("test");
+        Assert.assertFalse(errorMessage, BlockChain.hasLegacyBlocks(blockChainPath));
+        Assert.assertFalse(errorMessage, BlockChain.hasLegacyBlocks(blockChainPath.resolve("missing")));
+
+        // A block file named by its hash, as in the one-file-per-block layout
+        Path legacyBlock = blockChainPath.resolve(randomShaTwoFiftySix().toString());
+        byte[] contents = randomBytes(100);
+        Files.write(legacyBlock, contents);
+        Assert.assertTrue(errorMessage, BlockChain.hasLegacyBlocks(blockChainPath));
+
+        // The chain is unusable, and the legacy file is left untouched
+        BlockChain bc = new BlockChain(blockChainPath, genesis);
+        Assert.assertNull(errorMessage, bc.getCurrentHead());
+        Assert.assertArrayEquals(errorMessage, contents, Files.readAllBytes(legacyBlock));
+    }
+
+    @Test
+    public void smallBlockCache() throws Exception {
+        Config.setHashGoal(1);
+        Path blockChainPath = Files.createTempDirectory("test");
+        BlockChain bc = new BlockChain(blockChainPath, 2);
+        Block genesis = Block.genesis(crypto.signatureKeyPair().publicKey);
+        genesis.findValidNonce();
+        Assert.assertTrue(errorMessage, bc.insertBlock(genesis));
+
+        List<Block> blocks = new ArrayList<>();
+        blocks.add(genesis);
+        Block prev = genesis;
+        for (int i = 0; i < 10; ++i) {
+            Block next = randomBlock(prev.getShaTwoFiftySix());
+            next.findValidNonce();
+            Assert.assertTrue(errorMessage, bc.insertBlock(next));
+            blocks.add(0, next);
+            prev = next;
+        }
+
+        // Most of the blocks have been evicted from the cache, and must be read back from the store
+        for (Block b : blocks) {
+            assertEquals(errorMessage, Optional.of(b), bc.getBlockWithHash(b.getShaTwoFiftySix()));
+        }
+        assertEquals(errorMessage, blocks, bc.getAncestorsStartingAt(prev.getShaTwoFiftySix()));
+
+        BlockChain reloaded = new BlockChain(blockChainPath, 2);
+        assertEquals(errorMessage, prev, reloaded.getCurrentHead());
+        assertEquals(errorMessage, blocks, reloaded.getAncestorsStartingAt(prev.getShaTwoFiftySix()));
+    }
+
+    @Test
+    public void loadSkipsInvalidBlocks() throws Exception {
+        Config.setHashGoal(1);
+        Path blockChainPath = Files.createTempDirectory("test");
+        BlockChain bc = new BlockChain(blockChainPath);
+        Block genesis = Block.genesis(crypto.signatureKeyPair().publicKey);
+        genesis.findValidNonce();
+        Assert.assertTrue(errorMessage, bc.insertBlock(genesis));
+
+        List<Block> blocks = new ArrayList<>();
+        blocks.add(genesis);
+        Block prev = genesis;
+        for (int i = 0; i < 20; ++i) {
+            Block next = randomBlock(prev.getShaTwoFiftySix());
+            next.findValidNonce();
+            Assert.assertTrue(errorMessage, bc.insertBlock(next));
+            blocks.add(0, next);
+            prev = next;
+        }
+
+        // A block whose parent is unknown, and a block stored under the wrong hash
+        SegmentedStore store = new SegmentedStore(blockChainPath, "blocks");
+        Block unlinked = randomBlock(randomShaTwoFiftySix());
+        unlinked.findValidNonce();
+        store.append(unlinked.getShaTwoFiftySix(), serializeWithDepth(unlinked, 30));
+        ShaTwoFiftySix wrongHash = randomShaTwoFiftySix();
+        store.append(wrongHash, serializeWithDepth(randomBlock(prev.getShaTwoFiftySix()), 21));
+
+        BlockChain reloaded = new BlockChain(blockChainPath);
+        assertEquals(errorMessage, prev, reloaded.getCurrentHead());
+        assertEquals(errorMessage, blocks, reloaded.getAncestorsStartingAt(prev.getShaTwoFiftySix()));
+        Assert.assertFalse(errorMessage, reloaded.containsBlock(unlinked));
+        Assert.assertFalse(errorMessage, reloaded.containsBlockWithHash(wrongHash));
+    }
+
+    private static byte[] serializeWithDepth(Block block, int depth) throws Exception {
+        return ByteUtil.asByteArray(out -> {
+            block.serialize(out);
+            out.writeInt(depth);
+        });
+    }
+
+    @Test
+    public void unspentTransactionsAcrossForks() throws Exception {
+        Config.setHashGoal(1);
+        ECDSAKeyPair keyPair = crypto.signatureKeyPair();
+        Block genesis = Block.genesis(keyPair.publicKey);
+        BlockChain bc = new BlockChain(Files.createTempDirectory("test"), genesis);
+
+        List<Block> inserted = new ArrayList<>();
+        Map<ShaTwoFiftySix, UnspentTransactions> expected = new HashMap<>();
+        inserted.add(genesis);
+        expected.put(genesis.getShaTwoFiftySix(), replay(UnspentTransactions.empty(), genesis));
+
+        for (int i = 0; i < 40; ++i) {
+            // Usually extend one of the most recent blocks, occasionally fork further back
+            int parentIndex = random.nextInt(4) == 0
+                    ? random.nextInt(inserted.size())
+                    : Math.max(0, inserted.size() - 1 - random.nextInt(3));
+            Block parent = inserted.get(parentIndex);
+            UnspentTransactions parentUnspent = expected.get(parent.getShaTwoFiftySix());
+
+            Block block = spendingBlock(parent, parentUnspent, keyPair, true);
+            Assert.assertTrue(errorMessage, bc.insertBlock(block));
+            inserted.add(block);
+            expected.put(block.getShaTwoFiftySix(), replay(parentUnspent, block));
+
+            for (int j = 0; j < 3; ++j) {
+                Block b = inserted.get(random.nextInt(inserted.size()));
+                assertEquals(errorMessage, expected.get(b.getShaTwoFiftySix()), bc.getUnspentTransactionsAt(b));
+            }
+            assertEquals(errorMessage, expected.get(bc.getCurrentHead().getShaTwoFiftySix()),
+                    bc.getUnspentTransactionsAt(bc.getCurrentHead()));
+        }
+    }
+
+    @Test
+    public void switchBranchesAfterReload() throws Exception {
+        Config.setHashGoal(1);
+        ECDSAKeyPair keyPair = crypto.signatureKeyPair();
+        Path blockChainPath = Files.createTempDirectory("test");
+        Block genesis = Block.genesis(keyPair.publicKey);
+        genesis.findValidNonce();
+        BlockChain bc = new BlockChain(blockChainPath, genesis);
+        assertEquals(errorMessage, replay(UnspentTransactions.empty(), genesis), bc.getHeadUnspentTransactions());
+
+        // Build a main chain, and a shorter fork from the third block
+        List<Block> mainChain = new ArrayList<>();
+        List<UnspentTransactions> mainUnspent = new ArrayList<>();
+        Block prev = genesis;
+        UnspentTransactions prevUnspent = replay(UnspentTransactions.empty(), genesis);
+        for (int i = 0; i < 6; ++i) {
+            Block next = spendingBlock(prev, prevUnspent, keyPair, false);
+            Assert.assertTrue(errorMessage, bc.insertBlock(next));
+            prevUnspent = replay(prevUnspent, next);
+            prev = next;
+            mainChain.add(next);
+            mainUnspent.add(prevUnspent);
+        }
+        assertEquals(errorMessage, prevUnspent, bc.getHeadUnspentTransactions());
+
+        // The undo records of the main chain are read back from disk to switch to the fork
+        Assert.assertEquals(errorMessage, mainChain.size(),
+                new SegmentedStore(blockChainPath, "undo").size());
+        BlockChain reloaded = new BlockChain(blockChainPath, 2);
+        prev = mainChain.get(2);
+        prevUnspent = mainUnspent.get(2);
+        for (int i = 0; i < 4; ++i) {
+            Block next = spendingBlock(prev, prevUnspent, keyPair, false);
+            Assert.assertTrue(errorMessage, reloaded.insertBlock(next));
+            prevUnspent = replay(prevUnspent, next);
+            prev = next;
+        }
+        assertEquals(errorMessage, prev, reloaded.getCurrentHead());
+        assertEquals(errorMessage, prevUnspent, reloaded.getHeadUnspentTransactions());
+        assertEquals(errorMessage, mainUnspent.get(5), reloaded.getUnspentTransactionsAt(mainChain.get(5)));
+    }
+
+    @Test
+    public void loadHeadFromSnapshot() throws Exception {
+        Config.setHashGoal(1);
+        ECDSAKeyPair keyPair = crypto.signatureKeyPair();
+        Path blockChainPath = Files.createTempDirectory("test");
+        Block genesis = Block.genesis(keyPair.publicKey);
+        genesis.findValidNonce();
+        BlockChain bc = new BlockChain(blockChainPath, genesis);
+
+        List<Block> chain = new ArrayList<>();
+        List<UnspentTransactions> chainUnspent = new ArrayList<>();
+        Block prev = genesis;
+        UnspentTransactions prevUnspent = replay(UnspentTransactions.empty(), genesis);
+        for (int i = 0; i < 6; ++i) {
+            Block next = spendingBlock(prev, prevUnspent, keyPair, false);
+            Assert.assertTrue(errorMessage, bc.insertBlock(next));
+            prevUnspent = replay(prevUnspent, next);
+            prev = next;
+            chain.add(next);
+            chainUnspent.add(prevUnspent);
+        }
+        assertEquals(errorMessage, prevUnspent, bc.getHeadUnspentTransactions());
+
+        // Lose the UTXO database, and leave a snapshot of the third block with an extra output, which shows up in
+        // the head's unspent transactions only if the snapshot is used
+        try (Stream<Path> files = Files.list(blockChainPath.resolve("utxo"))) {
+            for (Path file : files.collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+        UnspentTransactions snapshot = chainUnspent.get(2).copy();
+        ShaTwoFiftySix extraHash = randomShaTwoFiftySix();
+        TxOut extraOutput = new TxOut(1, keyPair.publicKey);
+        snapshot.put(extraHash, 0, extraOutput);
+        new UtxoSnapshots(blockChainPath.resolve("snapshots")).write(chain.get(2).getShaTwoFiftySix(), 3, snapshot);
+
+        BlockChain reloaded = new BlockChain(blockChainPath);
+        UnspentTransactions expected = prevUnspent.copy();
+        expected.put(extraHash, 0, extraOutput);
+        assertEquals(errorMessage, expected, reloaded.getHeadUnspentTransactions());
+    }
+
+    @Test
+    public void snapshotsDisabled() throws Exception {
+        Config.setHashGoal(1);
+        int interval = Config.utxoSnapshotInterval();
+        try {
+            Config.setUtxoSnapshotInterval(0);
+            ECDSAKeyPair keyPair = crypto.signatureKeyPair();
+            Path blockChainPath = Files.createTempDirectory("test");
+            Block genesis = Block.genesis(keyPair.publicKey);
+            genesis.findValidNonce();
+            BlockChain bc = new BlockChain(blockChainPath, genesis);
+
+            Block prev = genesis;
+            UnspentTransactions prevUnspent = replay(UnspentTransactions.empty(), genesis);
+            for (int i = 0; i < 3; ++i) {
+                Block next = spendingBlock(prev, prevUnspent, keyPair, false);
+                Assert.assertTrue(errorMessage, bc.insertBlock(next));
+                prevUnspent = replay(prevUnspent, next);
+                prev = next;
+            }
+            assertEquals(errorMessage, prevUnspent, bc.getHeadUnspentTransactions());
+            try (Stream<Path> files = Files.list(blockChainPath.resolve("snapshots"))) {
+                Assert.assertEquals(errorMessage, 0, files.count());
+            }
+        } finally {
+            Config.setUtxoSnapshotInterval(interval);
+        }
+    }
+
+    /**
+     * @return A {@code Block} whose transactions each spend an output of {@code parentUnspent} or of an earlier
+     * transaction in the block, or if {@code allowMissing}, sometimes an output that does not exist
+     */
+    private Block spendingBlock(Block parent, UnspentTransactions parentUnspent, ECDSAKeyPair keyPair,
+                                boolean allowMissing) throws Exception {
+        List<TxIn> available = new ArrayList<>();
+        parentUnspent.forEach(entry -> available.add(entry.getKey()));
+        List<Transaction> transactions = new ArrayList<>();
+        for (int j = 0; j < Block.MIN_TRANSACTIONS_TO_MINE; ++j) {
+            TxIn input = available.isEmpty() || (allowMissing && random.nextInt(5) == 0)
+                    ? new TxIn(randomShaTwoFiftySix(), 0)
+                    : available.remove(random.nextInt(available.size()));
+            Transaction tx = new Transaction.Builder()
+                    .addInput(input, keyPair.privateKey)
+                    .addOutput(new TxOut(1 + random.nextInt(100), keyPair.publicKey))
+                    .addOutput(new TxOut(1 + random.nextInt(100), keyPair.publicKey))
+                    .build();
+            transactions.add(tx);
+            available.add(new TxIn(tx.getShaTwoFiftySix(), 0));
+            available.add(new TxIn(tx.getShaTwoFiftySix(), 1));
+        }
+        Block block = Block.block(parent.getShaTwoFiftySix(), transactions, keyPair.publicKey);
+        block.findValidNonce();
+        return block;
+    }
 
+    @Test
+    public void retarget() throws Exception {
+        Config.setHashGoal(1);
+        int interval = Config.retargetInterval();
+        long blockMillis = Config.targetBlockMillis();
+        try {
+            Config.setRetargetInterval(4);
+            Config.setTargetBlockMillis(1000);
+            ECDSAPublicKey key = crypto.signatureKeyPair().publicKey;
+            long start = System.currentTimeMillis() - 60_000;
+
+            // The last 3 intervals took half as long as they should have, so the target halves
+            BlockChain bc = chainWithTimestamps(key, start, start + 500, start + 1000, start + 1500);
+            ShaTwoFiftySix head = bc.getCurrentHead().getShaTwoFiftySix();
+            Target expected = Block.initialTarget().scale(1500, 3000);
+            assertEquals(errorMessage, Optional.of(expected), bc.nextTarget(head));
+            assertEquals(errorMessage, Optional.of(Block.initialTarget()),
+                    bc.nextTarget(bc.getCurrentHead().previousBlockHash));
+
+            Block wrongTarget = emptyBlock(head, start + 2000, Block.initialTarget(), key);
+            Assert.assertFalse(errorMessage, bc.verifyNonGenesisBlock(wrongTarget).isPresent());
+            Block child = emptyBlock(head, start + 2000, expected, key);
+            Assert.assertTrue(errorMessage, bc.verifyNonGenesisBlock(child).isPresent());
+
+            // Much slower blocks only make the target easier by MAX_RETARGET_FACTOR
+            bc = chainWithTimestamps(key, start, start + 10_000, start + 20_000, start + 30_000);
+            assertEquals(errorMessage, Optional.of(Block.initialTarget().scale(BlockChain.MAX_RETARGET_FACTOR, 1)),
+                    bc.nextTarget(bc.getCurrentHead().getShaTwoFiftySix()));
+        } finally {
+            Config.setRetargetInterval(interval);
+            Config.setTargetBlockMillis(blockMillis);
+        }
+    }
+
+    @Test
+    public void verifyTimestamp() throws Exception {
+        Config.setHashGoal(1);
+        ECDSAPublicKey key = crypto.signatureKeyPair().publicKey;
+        long start = System.currentTimeMillis() - 60_000;
+        BlockChain bc = chainWithTimestamps(key, start, start + 1000, start + 2000, start + 3000);
+        ShaTwoFiftySix head = bc.getCurrentHead().getShaTwoFiftySix();
+        assertEquals(errorMessage, start + 2000, bc.medianTimestamp(head));
+
+        Block beforeMedian = emptyBlock(head, start + 1999, Block.initialTarget(), key);
+        Assert.assertFalse(errorMessage, bc.verifyNonGenesisBlock(beforeMedian).isPresent());
+        Block future = emptyBlock(head, System.currentTimeMillis() + 2 * BlockChain.MAX_FUTURE_BLOCK_MILLIS,
+                Block.initialTarget(), key);
+        Assert.assertFalse(errorMessage, bc.verifyNonGenesisBlock(future).isPresent());
+        Block valid = emptyBlock(head, start + 2000, Block.initialTarget(), key);
+        Assert.assertTrue(errorMessage, bc.verifyNonGenesisBlock(valid).isPresent());
+    }
+
+    /**
+     * @return A chain of empty blocks with the given timestamps, starting with a genesis block
+     */
+    private BlockChain chainWithTimestamps(ECDSAPublicKey key, long... timestamps) throws Exception {
+        BlockChain bc = new BlockChain(Files.createTempDirectory("test"));
+        ShaTwoFiftySix parent = ShaTwoFiftySix.zero();
+        for (long timestamp : timestamps) {
+            Target target = parent.equals(ShaTwoFiftySix.zero()) ? Block.initialTarget()
+                    : bc.nextTarget(parent).get();
+            Block block = emptyBlock(parent, timestamp, target, key);
+            Assert.assertTrue(errorMessage, bc.insertBlock(block));
+            parent = block.getShaTwoFiftySix();
+        }
+        return bc;
+    }
+
+    private static Block emptyBlock(ShaTwoFiftySix parent, long timestamp, Target target, ECDSAPublicKey key)
+            throws Exception {
+        Block block = Block.block(parent, timestamp, target, new Transaction[0], key);
+        block.findValidNonce();
+        return block;
+    }
+
+    private static UnspentTransactions replay(UnspentTransactions parentUnspent, Block block) {
+        UnspentTransactions unspentTxs = parentUnspent.copy();
+        for (Transaction tx : block) {
+            for (int j = 0; j < tx.numInputs; ++j) {
+                TxIn inRef = tx.getInput(j);
+                unspentTxs.remove(inRef.previousTxn, inRef.txIdx);
+            }
+            for (int j = 0; j < tx.numOutputs; ++j) {
+                unspentTxs.put(tx.getShaTwoFiftySix(), j, tx.getOutput(j));
+            }
+        }
+        unspentTxs.put(block.getShaTwoFiftySix(), 0, block.reward);
+        return unspentTxs;
+    }
+}
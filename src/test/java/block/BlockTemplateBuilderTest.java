@@ -0,0 +1,80 @@
+package block;
+
+import crypto.ECDSAPublicKey;
+import org.junit.Assert;
+import org.junit.Test;
+import testutils.RandomizedTest;
+import transaction.Transaction;
+import utils.ByteUtil;
+import utils.Config;
+import utils.ShaTwoFiftySix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BlockTemplateBuilderTest extends RandomizedTest {
+
+    @Test
+    public void testMaxTransactions() throws Exception {
+        ShaTwoFiftySix previousHash = randomShaTwoFiftySix();
+        ECDSAPublicKey rewardKey = crypto.signatureKeyPair().publicKey;
+        int maxTransactions = 1 + random.nextInt(5);
+        BlockTemplateBuilder builder = new BlockTemplateBuilder(previousHash, Block.initialTarget(), 0, rewardKey,
+                maxTransactions, Integer.MAX_VALUE);
+
+        List<Transaction> added = new ArrayList<>();
+        for (int i = 0; i < maxTransactions; i++) {
+            Transaction transaction = randomTransaction();
+            Assert.assertTrue(errorMessage, builder.add(transaction));
+            added.add(transaction);
+        }
+        Assert.assertFalse(errorMessage, builder.add(randomTransaction()));
+
+        Block block = builder.build();
+        Assert.assertEquals(errorMessage, maxTransactions, builder.size());
+        Assert.assertEquals(errorMessage, previousHash, block.previousBlockHash);
+        Assert.assertEquals(errorMessage, rewardKey, block.reward.ownerPubKey);
+        Assert.assertEquals(errorMessage, added, Arrays.asList(block.transactions));
+        Assert.assertEquals(errorMessage, ByteUtil.asByteArray(block::serialize).length, builder.bytes());
+    }
+
+    @Test
+    public void testMaxBytes() throws Exception {
+        ShaTwoFiftySix previousHash = randomShaTwoFiftySix();
+        ECDSAPublicKey rewardKey = crypto.signatureKeyPair().publicKey;
+        Transaction first = randomTransaction();
+        Transaction second = randomTransaction();
+        int emptyBytes = new BlockTemplateBuilder(previousHash, Block.initialTarget(), 0, rewardKey).bytes();
+        int maxBytes = emptyBytes + ByteUtil.asByteArray(first::serialize).length;
+        BlockTemplateBuilder builder = new BlockTemplateBuilder(previousHash, Block.initialTarget(), 0, rewardKey,
+                Integer.MAX_VALUE, maxBytes);
+
+        Assert.assertTrue(errorMessage, builder.add(first));
+        Assert.assertFalse(errorMessage, builder.add(second));
+        Assert.assertEquals(errorMessage, 1, builder.size());
+        Assert.assertEquals(errorMessage, maxBytes, ByteUtil.asByteArray(builder.build()::serialize).length);
+    }
+
+    @Test
+    public void testTemplateLimitCappedByConsensus() throws Exception {
+        ShaTwoFiftySix previousHash = randomShaTwoFiftySix();
+        ECDSAPublicKey rewardKey = crypto.signatureKeyPair().publicKey;
+        int maxTransactions = Config.maxBlockTransactions();
+        int maxTemplateTransactions = Config.maxTemplateTransactions();
+        try {
+            Config.setMaxBlockTransactions(1 + random.nextInt(5));
+            Config.setMaxTemplateTransactions(Integer.MAX_VALUE);
+            BlockTemplateBuilder builder = new BlockTemplateBuilder(previousHash, Block.initialTarget(), 0,
+                    rewardKey);
+            for (int i = 0; i < Config.maxBlockTransactions(); i++) {
+                Assert.assertTrue(errorMessage, builder.add(randomTransaction()));
+            }
+            Assert.assertFalse(errorMessage, builder.add(randomTransaction()));
+            Assert.assertEquals(errorMessage, Config.maxBlockTransactions(), builder.size());
+        } finally {
+            Config.setMaxBlockTransactions(maxTransactions);
+            Config.setMaxTemplateTransactions(maxTemplateTransactions);
+        }
+    }
+}
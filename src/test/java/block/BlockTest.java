@@ -11,14 +11,17 @@ import testutils.RandomizedTest;
 import testutils.TestModule;
 import testutils.TestUtils;
 import transaction.Transaction;
+import transaction.TxIn;
 import transaction.TxOut;
 import utils.ByteUtil;
 import utils.Config;
+import utils.DeserializationException;
 import utils.Pair;
 import utils.ShaTwoFiftySix;
 
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BlockTest extends RandomizedTest {
     private final Crypto crypto;
@@ -34,7 +37,8 @@ public class BlockTest extends RandomizedTest {
 
         Assert.assertNotEquals(errorMessage, b1, new Object());
 
-        Block b2 = Block.block(ShaTwoFiftySix.zero(), b1.transactions, b1.reward.ownerPubKey);
+        Block b2 = Block.block(ShaTwoFiftySix.zero(), b1.timestamp, b1.target, b1.transactions,
+                b1.reward.ownerPubKey);
         System.arraycopy(b1.nonce, 0, b2.nonce, 0, Block.NONCE_SIZE_IN_BYTES);
 
         TestUtils.assertEqualsWithHashCode(errorMessage, b1, b2);
@@ -80,7 +84,7 @@ public class BlockTest extends RandomizedTest {
         UnspentTransactions result = TestUtils.assertPresent(block.verifyNonGenesis(pair.getRight()));
 
         UnspentTransactions expected = UnspentTransactions.empty();
-        Transaction lastTxn = block.transactions[Block.NUM_TRANSACTIONS_PER_BLOCK - 1];
+        Transaction lastTxn = block.transactions[Block.MIN_TRANSACTIONS_TO_MINE - 1];
         for (int i = 0; i < lastTxn.numOutputs; i++) {
             expected.put(lastTxn.getShaTwoFiftySix(), i, lastTxn.getOutput(i));
         }
@@ -91,6 +95,83 @@ public class BlockTest extends RandomizedTest {
         Assert.assertFalse(errorMessage, block.verifyNonGenesis(UnspentTransactions.empty()).isPresent());
     }
 
+    @Test
+    public void testVerifyRejectsAnyInvalidSignature() throws Exception {
+        Config.setHashGoal(1);
+        int numTransactions = 32;
+        int invalid = random.nextInt(numTransactions);
+        UnspentTransactions unspent = UnspentTransactions.empty();
+        Transaction[] valid = new Transaction[numTransactions];
+        Transaction[] withInvalid = new Transaction[numTransactions];
+        for (int i = 0; i < numTransactions; i++) {
+            ECDSAKeyPair owner = crypto.signatureKeyPair();
+            ShaTwoFiftySix previous = randomShaTwoFiftySix();
+            unspent.put(previous, 0, new TxOut(10, owner.publicKey));
+            TxOut out = new TxOut(10, crypto.signatureKeyPair().publicKey);
+            valid[i] = new Transaction.Builder()
+                    .addInput(new TxIn(previous, 0), owner.privateKey).addOutput(out).build();
+            // Signed by a key other than the owner's
+            withInvalid[i] = i != invalid ? valid[i] : new Transaction.Builder()
+                    .addInput(new TxIn(previous, 0), crypto.signatureKeyPair().privateKey).addOutput(out).build();
+        }
+
+        ECDSAPublicKey rewardKey = crypto.signatureKeyPair().publicKey;
+        Block block = Block.block(randomShaTwoFiftySix(), valid, rewardKey);
+        block.findValidNonce();
+        Assert.assertTrue(errorMessage, block.verifyNonGenesis(unspent).isPresent());
+
+        block = Block.block(randomShaTwoFiftySix(), withInvalid, rewardKey);
+        block.findValidNonce();
+        Assert.assertFalse(errorMessage, block.verifyNonGenesis(unspent).isPresent());
+    }
+
+    @Test
+    public void testVerifyBlockLimits() throws Exception {
+        Config.setHashGoal(1);
+        ECDSAPublicKey rewardKey = crypto.signatureKeyPair().publicKey;
+        Block empty = Block.block(randomShaTwoFiftySix(), Collections.emptyList(), rewardKey);
+        empty.findValidNonce();
+        Assert.assertTrue(errorMessage, empty.verifyNonGenesis(UnspentTransactions.empty()).isPresent());
+
+        Pair<Block, UnspentTransactions> pair = randomValidBlock(randomShaTwoFiftySix());
+        Block block = pair.getLeft();
+        block.findValidNonce();
+        byte[] serialized = ByteUtil.asByteArray(block::serialize);
+        int maxTransactions = Config.maxBlockTransactions();
+        int maxBytes = Config.maxBlockBytes();
+        try {
+            Config.setMaxBlockBytes(serialized.length - 1);
+            Assert.assertFalse(errorMessage, block.verifyNonGenesis(pair.getRight()).isPresent());
+            Config.setMaxBlockBytes(maxBytes);
+
+            Config.setMaxBlockTransactions(block.transactions.length - 1);
+            Assert.assertFalse(errorMessage, block.verifyNonGenesis(pair.getRight()).isPresent());
+            try {
+                Block.DESERIALIZER.deserialize(serialized);
+                Assert.fail(errorMessage);
+            } catch (DeserializationException e) {
+                // expected
+            }
+        } finally {
+            Config.setMaxBlockTransactions(maxTransactions);
+            Config.setMaxBlockBytes(maxBytes);
+        }
+        Assert.assertTrue(errorMessage, block.verifyNonGenesis(pair.getRight()).isPresent());
+    }
+
+    @Test
+    public void testFindValidNonceInParallel() throws Exception {
+        Config.setHashGoal(1);
+        Block block = randomValidBlock(randomShaTwoFiftySix()).getLeft();
+        Assert.assertTrue(errorMessage, block.findValidNonce(new AtomicBoolean(false), 1 + random.nextInt(8)));
+        Assert.assertTrue(errorMessage, block.checkHash());
+
+        Block stopped = randomValidBlock(randomShaTwoFiftySix()).getLeft();
+        byte[] nonce = stopped.nonce.clone();
+        Assert.assertFalse(errorMessage, stopped.findValidNonce(new AtomicBoolean(true), 4));
+        Assert.assertArrayEquals(errorMessage, nonce, stopped.nonce);
+    }
+
     @Test
     public void testVerifyGenesis() throws Exception {
         ECDSAKeyPair pair = crypto.signatureKeyPair();
@@ -103,6 +184,8 @@ public class BlockTest extends RandomizedTest {
 
         Block badGenesis = new Block(
                 ShaTwoFiftySix.zero(),
+                System.currentTimeMillis(),
+                Block.initialTarget(),
                 new Transaction[0],
                 new TxOut(Block.REWARD_AMOUNT + 1, pair.publicKey)
         );
@@ -0,0 +1,68 @@
+package block;
+
+import org.junit.Assert;
+import org.junit.Test;
+import testutils.RandomizedTest;
+import utils.ByteUtil;
+import utils.Config;
+import utils.ShaTwoFiftySix;
+import utils.Target;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class MultiNonceHasherTest extends RandomizedTest {
+
+    @Test
+    public void testFindsSameNonceAsScalar() throws Exception {
+        for (int trial = 0; trial < 30; trial++) {
+            byte[] prefix = randomBytes(random.nextInt(300));
+            byte[] nonce = randomBytes(1 + random.nextInt(Block.NONCE_SIZE_IN_BYTES));
+            // Make the lanes carry into earlier bytes, and sometimes across a block boundary
+            int carried = random.nextInt(Math.min(nonce.length, 80) + 1);
+            Arrays.fill(nonce, nonce.length - carried, nonce.length, (byte) 0xff);
+            // Both kernels try every nonce above one whose last byte is a multiple of the number of lanes
+            nonce[nonce.length - 1] |= MultiNonceHasher.LANES - 1;
+            // Met by about one hash in 64
+            int[] target = Target.MAX.scale(1, 64).toWords();
+
+            NonceHasher scalar = new NonceHasher(prefix, nonce);
+            MultiNonceHasher multi = new MultiNonceHasher(prefix, nonce);
+            byte[] expected = new byte[nonce.length];
+            byte[] actual = new byte[nonce.length];
+            for (int i = 0; i < 3; i++) {
+                Assert.assertTrue(errorMessage, scalar.search(target, Integer.MAX_VALUE));
+                Assert.assertTrue(errorMessage, multi.search(target, Integer.MAX_VALUE));
+                scalar.copyNonce(expected);
+                multi.copyNonce(actual);
+                Assert.assertArrayEquals(errorMessage, expected, actual);
+                Assert.assertEquals(errorMessage, scalar.hashes(), multi.hashes());
+                ShaTwoFiftySix hash = ShaTwoFiftySix.hashOf(ByteUtil.concatenate(prefix, actual));
+                Assert.assertTrue(errorMessage, Target.MAX.scale(1, 64).isMetBy(hash));
+
+                // Continue after the found nonce's group of lanes, as the multi-buffer kernel does
+                while ((expected[expected.length - 1] & (MultiNonceHasher.LANES - 1))
+                        != MultiNonceHasher.LANES - 1) {
+                    scalar.increment();
+                    scalar.copyNonce(expected);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFindValidNonce() throws Exception {
+        boolean multiBuffer = Config.multiBufferMining();
+        int hashGoal = Config.hashGoal();
+        try {
+            Config.setMultiBufferMining(true);
+            Config.setHashGoal(1);
+            Block block = Block.genesis(crypto.signatureKeyPair().publicKey);
+            Assert.assertTrue(errorMessage, block.findValidNonce(new AtomicBoolean(false), 1));
+            Assert.assertTrue(errorMessage, block.checkHash());
+        } finally {
+            Config.setMultiBufferMining(multiBuffer);
+            Config.setHashGoal(hashGoal);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package block;
+
+import org.junit.Assert;
+import org.junit.Test;
+import testutils.RandomizedTest;
+import utils.ByteUtil;
+import utils.ShaTwoFiftySix;
+import utils.Target;
+
+import java.util.Arrays;
+
+public class NonceHasherTest extends RandomizedTest {
+
+    @Test
+    public void testMatchesSha256() throws Exception {
+        for (int trial = 0; trial < 50; trial++) {
+            byte[] prefix = randomBytes(random.nextInt(300));
+            byte[] nonce = randomBytes(1 + random.nextInt(Block.NONCE_SIZE_IN_BYTES));
+            // Make increments carry into earlier bytes, and sometimes across a block boundary
+            int carried = random.nextInt(Math.min(nonce.length, 80) + 1);
+            Arrays.fill(nonce, nonce.length - carried, nonce.length, (byte) 0xff);
+
+            NonceHasher hasher = new NonceHasher(prefix, nonce);
+            byte[] hash = new byte[ShaTwoFiftySix.HASH_SIZE_IN_BYTES];
+            byte[] copied = new byte[nonce.length];
+            for (int i = 0; i < 3; i++) {
+                hasher.digest(hash, 0);
+                ShaTwoFiftySix expected = ShaTwoFiftySix.hashOf(ByteUtil.concatenate(prefix, nonce));
+                Assert.assertArrayEquals(errorMessage, expected.copyOfHash(), hash);
+                for (int zeros = 0; zeros < 3; zeros++) {
+                    Assert.assertEquals(errorMessage, expected.checkHashZeros(zeros),
+                            hasher.hasLeadingZeroBytes(zeros));
+                }
+                Target target = Target.MAX.scale(random.nextInt(1024), 1024);
+                Assert.assertEquals(errorMessage, target.isMetBy(expected), hasher.meetsTarget(target.toWords()));
+                hasher.copyNonce(copied);
+                Assert.assertArrayEquals(errorMessage, nonce, copied);
+
+                hasher.increment();
+                ByteUtil.addOne(nonce);
+            }
+        }
+    }
+
+    @Test
+    public void testFindsLeadingZeros() throws Exception {
+        NonceHasher hasher = new NonceHasher(randomBytes(200), randomBytes(Block.NONCE_SIZE_IN_BYTES));
+        do {
+            hasher.increment();
+        } while (!hasher.hasLeadingZeroBytes(1));
+        byte[] hash = new byte[ShaTwoFiftySix.HASH_SIZE_IN_BYTES];
+        hasher.digest(hash, 0);
+        Assert.assertEquals(errorMessage, 0, hash[0]);
+    }
+}
@@ -0,0 +1,120 @@
+package block;
+
+import org.junit.Assert;
+import org.junit.Test;
+import testutils.RandomizedTest;
+import utils.ShaTwoFiftySix;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+public class SegmentedStoreTest extends RandomizedTest {
+
+    @Test
+    public void testAppendRead() throws Exception {
+        SegmentedStore store = new SegmentedStore(Files.createTempDirectory("test"), "test");
+        Assert.assertTrue(errorMessage, store.isEmpty());
+
+        Map<ShaTwoFiftySix, byte[]> records = randomRecords(store, 20);
+        for (Map.Entry<ShaTwoFiftySix, byte[]> entry : records.entrySet()) {
+            Assert.assertTrue(errorMessage, store.contains(entry.getKey()));
+            Assert.assertArrayEquals(errorMessage, entry.getValue(), store.read(entry.getKey()).get());
+        }
+        Assert.assertFalse(errorMessage, store.read(randomShaTwoFiftySix()).isPresent());
+        Assert.assertEquals(errorMessage, new ArrayList<>(records.keySet()), store.keys());
+    }
+
+    @Test
+    public void testAppendDuplicate() throws Exception {
+        SegmentedStore store = new SegmentedStore(Files.createTempDirectory("test"), "test");
+        ShaTwoFiftySix key = randomShaTwoFiftySix();
+        byte[] record = randomBytes(100);
+        store.append(key, record);
+        store.append(key, randomBytes(100));
+        Assert.assertEquals(errorMessage, 1, store.size());
+        Assert.assertArrayEquals(errorMessage, record, store.read(key).get());
+    }
+
+    @Test
+    public void testReadWhileAppending() throws Exception {
+        SegmentedStore store = new SegmentedStore(Files.createTempDirectory("test"), "test", 1024);
+        Map<ShaTwoFiftySix, byte[]> records = new LinkedHashMap<>();
+        for (int i = 0; i < 30; i++) {
+            records.putAll(randomRecords(store, 1));
+            // Records of sealed segments and of the growing active segment are all readable
+            assertContainsExactly(store, records);
+        }
+        Assert.assertTrue(errorMessage, Files.exists(store.segmentPath(1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSegmentSize() throws Exception {
+        new SegmentedStore(Files.createTempDirectory("test"), "test", 0);
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        Path path = Files.createTempDirectory("test");
+        SegmentedStore store = new SegmentedStore(path, "test", 1024);
+        Map<ShaTwoFiftySix, byte[]> records = randomRecords(store, 50);
+        Assert.assertTrue(errorMessage, Files.exists(store.segmentPath(1)));
+
+        SegmentedStore reopened = new SegmentedStore(path, "test", 1024);
+        assertContainsExactly(reopened, records);
+
+        records.putAll(randomRecords(reopened, 10));
+        assertContainsExactly(new SegmentedStore(path, "test", 1024), records);
+    }
+
+    @Test
+    public void testRebuildIndex() throws Exception {
+        Path path = Files.createTempDirectory("test");
+        SegmentedStore store = new SegmentedStore(path, "test", 1024);
+        Map<ShaTwoFiftySix, byte[]> records = randomRecords(store, 30);
+
+        Files.delete(path.resolve("test.idx"));
+        assertContainsExactly(new SegmentedStore(path, "test", 1024), records);
+    }
+
+    @Test
+    public void testRecoverUnindexedAndTruncated() throws Exception {
+        Path path = Files.createTempDirectory("test");
+        SegmentedStore store = new SegmentedStore(path, "test");
+        Map<ShaTwoFiftySix, byte[]> records = randomRecords(store, 10);
+
+        // Drop the last index entry and leave a partial record at the end of the segment
+        Path indexPath = path.resolve("test.idx");
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(indexPath) - 10);
+        }
+        Path segmentPath = store.segmentPath(0);
+        long segmentSize = Files.size(segmentPath);
+        Files.write(segmentPath, randomBytes(40), StandardOpenOption.APPEND);
+
+        SegmentedStore reopened = new SegmentedStore(path, "test");
+        assertContainsExactly(reopened, records);
+        Assert.assertEquals(errorMessage, segmentSize, Files.size(segmentPath));
+    }
+
+    private Map<ShaTwoFiftySix, byte[]> randomRecords(SegmentedStore store, int numRecords) throws Exception {
+        Map<ShaTwoFiftySix, byte[]> records = new LinkedHashMap<>();
+        for (int i = 0; i < numRecords; i++) {
+            ShaTwoFiftySix key = randomShaTwoFiftySix();
+            byte[] record = randomBytes(random.nextInt(200));
+            store.append(key, record);
+            records.put(key, record);
+        }
+        return records;
+    }
+
+    private void assertContainsExactly(SegmentedStore store, Map<ShaTwoFiftySix, byte[]> records)
+            throws Exception {
+        Assert.assertEquals(errorMessage, records.size(), store.size());
+        for (Map.Entry<ShaTwoFiftySix, byte[]> entry : records.entrySet()) {
+            Assert.assertArrayEquals(errorMessage, entry.getValue(), store.read(entry.getKey()).get());
+        }
+    }
+}
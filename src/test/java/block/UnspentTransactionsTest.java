@@ -9,12 +9,11 @@ import testutils.TestUtils;
 import transaction.Transaction;
 import transaction.TxIn;
 import transaction.TxOut;
+import utils.Pair;
 import utils.ShaTwoFiftySix;
 
 import java.security.GeneralSecurityException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
 
 public class UnspentTransactionsTest extends RandomizedTest {
 
@@ -249,4 +248,155 @@ public class UnspentTransactionsTest extends RandomizedTest {
 
         assert (txb3.equalsUnordered(result3));
     }
+
+    @Test
+    public void testOffHeapMatchesDefault() throws Exception {
+        UnspentTransactions offHeap = UnspentTransactions.offHeap();
+        UnspentTransactions expected = UnspentTransactions.empty();
+        ECDSAPublicKey[] keys = {crypto.signatureKeyPair().publicKey, crypto.signatureKeyPair().publicKey};
+        List<TxIn> inserted = new ArrayList<>();
+
+        for (int i = 0; i < 3000; ++i) {
+            if (!inserted.isEmpty() && random.nextInt(3) == 0) {
+                TxIn in = inserted.remove(random.nextInt(inserted.size()));
+                Assert.assertEquals(errorMessage,
+                        expected.remove(in.previousTxn, in.txIdx), offHeap.remove(in.previousTxn, in.txIdx));
+            } else {
+                TxIn in = !inserted.isEmpty() && random.nextInt(10) == 0
+                        ? inserted.get(random.nextInt(inserted.size()))
+                        : new TxIn(randomShaTwoFiftySix(), random.nextInt(4));
+                TxOut out = new TxOut(random.nextLong(), keys[random.nextInt(keys.length)]);
+                Assert.assertEquals(errorMessage,
+                        expected.put(in.previousTxn, in.txIdx, out), offHeap.put(in.previousTxn, in.txIdx, out));
+                inserted.add(in);
+            }
+        }
+        Assert.assertEquals(errorMessage, expected.size(), offHeap.size());
+        Assert.assertEquals(errorMessage, expected, offHeap);
+        Assert.assertEquals(errorMessage, offHeap, expected);
+        Assert.assertEquals(errorMessage, expected.hashCode(), offHeap.hashCode());
+        for (TxIn in : inserted) {
+            Assert.assertEquals(errorMessage,
+                    expected.get(in.previousTxn, in.txIdx), offHeap.get(in.previousTxn, in.txIdx));
+        }
+        Assert.assertEquals(errorMessage, expected.getAmounts(keys), offHeap.getAmounts(keys));
+    }
+
+    @Test
+    public void testOffHeapCopy() throws Exception {
+        UnspentTransactions ut = UnspentTransactions.offHeap();
+        ShaTwoFiftySix hash = randomShaTwoFiftySix();
+        TxOut out = new TxOut(1024, crypto.signatureKeyPair().publicKey);
+        ut.put(hash, 0, out);
+
+        UnspentTransactions copy = ut.copy();
+        copy.remove(hash, 0);
+        copy.put(hash, 1, out);
+        Assert.assertEquals(errorMessage, out, ut.get(hash, 0));
+        Assert.assertFalse(errorMessage, ut.contains(hash, 1));
+        Assert.assertFalse(errorMessage, copy.contains(hash, 0));
+        Assert.assertEquals(errorMessage, out, copy.get(hash, 1));
+    }
+
+    @Test
+    public void testOwnerIndex() throws Exception {
+        UnspentTransactions ut = UnspentTransactions.empty();
+        ECDSAPublicKey[] keys = new ECDSAPublicKey[4];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = crypto.signatureKeyPair().publicKey;
+        }
+        List<TxIn> inserted = new ArrayList<>();
+        UnspentTransactions snapshot = ut.copy();
+
+        for (int i = 0; i < 500; ++i) {
+            if (!inserted.isEmpty() && random.nextInt(3) == 0) {
+                TxIn in = inserted.remove(random.nextInt(inserted.size()));
+                ut.remove(in.previousTxn, in.txIdx);
+            } else {
+                // Sometimes overwrite an output with one owned by another key
+                TxIn in = !inserted.isEmpty() && random.nextInt(10) == 0
+                        ? inserted.get(random.nextInt(inserted.size()))
+                        : new TxIn(randomShaTwoFiftySix(), random.nextInt(4));
+                ut.put(in.previousTxn, in.txIdx, new TxOut(1 + random.nextInt(1000), keys[random.nextInt(keys.length)]));
+                inserted.add(in);
+            }
+            if (i == 250) {
+                snapshot = ut.copy();
+            }
+        }
+
+        for (UnspentTransactions checked : new UnspentTransactions[]{ut, snapshot}) {
+            for (ECDSAPublicKey key : keys) {
+                long expected = 0;
+                for (Map.Entry<TxIn, TxOut> entry : checked) {
+                    if (entry.getValue().ownerPubKey.equals(key)) {
+                        expected += entry.getValue().value;
+                    }
+                }
+                Assert.assertEquals(errorMessage, expected, checked.getAmount(key));
+            }
+        }
+        long total = 0;
+        for (Map.Entry<TxIn, TxOut> entry : ut) {
+            total += entry.getValue().value;
+        }
+        Assert.assertEquals(errorMessage, total, ut.getAmounts(new ECDSAPublicKey[]{keys[0], keys[1], keys[0],
+                keys[2], keys[3]}));
+
+        // Every owned output can be spent
+        Optional<Pair<List<ECDSAPublicKey>, Transaction>> spendAll =
+                ut.buildUnsignedTransaction(Arrays.asList(keys), keys[0], keys[1], total);
+        Assert.assertTrue(errorMessage, spendAll.isPresent());
+        Assert.assertEquals(errorMessage, ut.size(), spendAll.get().getRight().numInputs);
+    }
+
+    @Test
+    public void testOverlayMatchesCopy() throws Exception {
+        ECDSAPublicKey[] keys = {crypto.signatureKeyPair().publicKey, crypto.signatureKeyPair().publicKey};
+        for (UnspentTransactions base : new UnspentTransactions[]{UnspentTransactions.empty(),
+                UnspentTransactions.offHeap()}) {
+            List<TxIn> inserted = new ArrayList<>();
+            for (int i = 0; i < 500; ++i) {
+                TxIn in = new TxIn(randomShaTwoFiftySix(), random.nextInt(4));
+                base.put(in.previousTxn, in.txIdx, new TxOut(1 + random.nextInt(1024), keys[i % keys.length]));
+                inserted.add(in);
+            }
+            UnspentTransactions original = base.copy();
+            UnspentTransactions overlay = base.overlay();
+            UnspentTransactions expected = base.copy();
+            UnspentTransactions snapshot = null;
+
+            for (int i = 0; i < 2000; ++i) {
+                if (random.nextInt(3) == 0) {
+                    // Sometimes removes what was already removed
+                    TxIn in = inserted.get(random.nextInt(inserted.size()));
+                    Assert.assertEquals(errorMessage,
+                            expected.remove(in.previousTxn, in.txIdx), overlay.remove(in.previousTxn, in.txIdx));
+                } else {
+                    TxIn in = random.nextInt(5) == 0
+                            ? inserted.get(random.nextInt(inserted.size()))
+                            : new TxIn(randomShaTwoFiftySix(), random.nextInt(4));
+                    TxOut out = new TxOut(1 + random.nextInt(1024), keys[random.nextInt(keys.length)]);
+                    Assert.assertEquals(errorMessage,
+                            expected.put(in.previousTxn, in.txIdx, out), overlay.put(in.previousTxn, in.txIdx, out));
+                    inserted.add(in);
+                }
+                if (i == 1000) {
+                    snapshot = overlay.copy();
+                    Assert.assertEquals(errorMessage, expected, snapshot);
+                }
+            }
+            Assert.assertEquals(errorMessage, expected.size(), overlay.size());
+            Assert.assertEquals(errorMessage, expected, overlay);
+            Assert.assertEquals(errorMessage, overlay, expected);
+            Assert.assertEquals(errorMessage, expected.getAmounts(keys), overlay.getAmounts(keys));
+            for (TxIn in : inserted) {
+                Assert.assertEquals(errorMessage,
+                        expected.get(in.previousTxn, in.txIdx), overlay.get(in.previousTxn, in.txIdx));
+            }
+            // Neither the base nor an earlier copy of the overlay see later changes
+            Assert.assertEquals(errorMessage, original, base);
+            Assert.assertNotEquals(errorMessage, snapshot, overlay);
+        }
+    }
 }
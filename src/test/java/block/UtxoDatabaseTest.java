@@ -0,0 +1,215 @@
+package block;
+
+import crypto.ECDSAKeyPair;
+import crypto.ECDSAPublicKey;
+import org.junit.Assert;
+import org.junit.Test;
+import testutils.RandomizedTest;
+import testutils.TestUtils;
+import transaction.TxIn;
+import transaction.TxOut;
+import utils.ShaTwoFiftySix;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class UtxoDatabaseTest extends RandomizedTest {
+
+    private List<ShaTwoFiftySix> putRandomOutputs(UnspentTransactions ut, int count)
+            throws GeneralSecurityException {
+        ECDSAKeyPair pair = crypto.signatureKeyPair();
+        List<ShaTwoFiftySix> hashes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ShaTwoFiftySix hash = randomShaTwoFiftySix();
+            ut.put(hash, i % 3, new TxOut(random.nextInt(1 << 20), pair.publicKey));
+            hashes.add(hash);
+        }
+        return hashes;
+    }
+
+    @Test
+    public void testCommitAndReopen() throws IOException, GeneralSecurityException {
+        Path directory = Files.createTempDirectory("utxo");
+        UtxoDatabase db = new UtxoDatabase(directory);
+        Assert.assertEquals(errorMessage, ShaTwoFiftySix.zero(), db.tip());
+        Assert.assertEquals(errorMessage, 0, db.unspentTransactions().size());
+
+        List<ShaTwoFiftySix> hashes = putRandomOutputs(db.unspentTransactions(), 20);
+        db.unspentTransactions().remove(hashes.get(0), 0);
+        ShaTwoFiftySix tip = randomShaTwoFiftySix();
+        db.commit(tip);
+        UnspentTransactions expected = db.unspentTransactions().copy();
+
+        // Changes that are not committed are lost
+        putRandomOutputs(db.unspentTransactions(), 5);
+        db.unspentTransactions().remove(hashes.get(1), 1);
+
+        UtxoDatabase reopened = new UtxoDatabase(directory);
+        Assert.assertEquals(errorMessage, tip, reopened.tip());
+        TestUtils.assertEqualsWithHashCode(errorMessage, expected, reopened.unspentTransactions());
+    }
+
+    @Test
+    public void testAbort() throws IOException, GeneralSecurityException {
+        UtxoDatabase db = new UtxoDatabase(Files.createTempDirectory("utxo"));
+        List<ShaTwoFiftySix> hashes = putRandomOutputs(db.unspentTransactions(), 10);
+        db.commit(randomShaTwoFiftySix());
+        UnspentTransactions expected = db.unspentTransactions().copy();
+
+        putRandomOutputs(db.unspentTransactions(), 10);
+        db.unspentTransactions().remove(hashes.get(2), 2);
+        db.abort();
+        TestUtils.assertEqualsWithHashCode(errorMessage, expected, db.unspentTransactions());
+    }
+
+    @Test
+    public void testTornWalTail() throws IOException, GeneralSecurityException {
+        Path directory = Files.createTempDirectory("utxo");
+        UtxoDatabase db = new UtxoDatabase(directory);
+        putRandomOutputs(db.unspentTransactions(), 10);
+        ShaTwoFiftySix tip = randomShaTwoFiftySix();
+        db.commit(tip);
+        UnspentTransactions expected = db.unspentTransactions().copy();
+
+        putRandomOutputs(db.unspentTransactions(), 10);
+        db.commit(randomShaTwoFiftySix());
+
+        // Cut the last batch short, as if the process died while writing it
+        List<Path> wals = Files.list(directory)
+                .filter(path -> path.toString().endsWith(".wal"))
+                .collect(Collectors.toList());
+        Assert.assertEquals(errorMessage, 1, wals.size());
+        try (FileChannel channel = FileChannel.open(wals.get(0), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1 - random.nextInt(100));
+        }
+
+        UtxoDatabase reopened = new UtxoDatabase(directory);
+        Assert.assertEquals(errorMessage, tip, reopened.tip());
+        TestUtils.assertEqualsWithHashCode(errorMessage, expected, reopened.unspentTransactions());
+
+        // The database stays usable after the torn batch has been dropped
+        putRandomOutputs(reopened.unspentTransactions(), 3);
+        ShaTwoFiftySix newTip = randomShaTwoFiftySix();
+        reopened.commit(newTip);
+        Assert.assertEquals(errorMessage, newTip, new UtxoDatabase(directory).tip());
+    }
+
+    @Test
+    public void testFlushAndCompaction() throws IOException, GeneralSecurityException {
+        Path directory = Files.createTempDirectory("utxo");
+        UtxoDatabase db = new UtxoDatabase(directory, 8);
+        UnspentTransactions expected = UnspentTransactions.empty();
+        List<ShaTwoFiftySix> hashes = new ArrayList<>();
+
+        // Enough commits to flush the memtable into more than MAX_SEGMENTS segments
+        for (int i = 0; i < 4 * UtxoDatabase.MAX_SEGMENTS; i++) {
+            List<ShaTwoFiftySix> added = putRandomOutputs(db.unspentTransactions(), 10);
+            for (int j = 0; j < added.size(); j++) {
+                expected.put(added.get(j), j % 3, db.unspentTransactions().get(added.get(j), j % 3));
+            }
+            hashes.addAll(added);
+            for (int j = 0; j < 3; j++) {
+                int k = random.nextInt(hashes.size());
+                db.unspentTransactions().remove(hashes.get(k), k % 10 % 3);
+                expected.remove(hashes.get(k), k % 10 % 3);
+            }
+            db.commit(randomShaTwoFiftySix());
+            TestUtils.assertEqualsWithHashCode(errorMessage, expected, db.unspentTransactions());
+        }
+
+        long segments = Files.list(directory).filter(path -> path.toString().endsWith(".seg")).count();
+        Assert.assertTrue(errorMessage, segments > 0);
+        // Each flush writes a segment of outputs and one of the owner index
+        Assert.assertTrue(errorMessage, segments <= 2 * UtxoDatabase.MAX_SEGMENTS);
+
+        UtxoDatabase reopened = new UtxoDatabase(directory, 8);
+        Assert.assertEquals(errorMessage, db.tip(), reopened.tip());
+        TestUtils.assertEqualsWithHashCode(errorMessage, expected, reopened.unspentTransactions());
+        // The owner index is merged along with the outputs
+        for (Map.Entry<TxIn, TxOut> entry : expected) {
+            assertAmount(reopened.unspentTransactions(), entry.getValue().ownerPubKey);
+        }
+    }
+
+    @Test
+    public void testCopyIsDetached() throws IOException, GeneralSecurityException {
+        Path directory = Files.createTempDirectory("utxo");
+        UtxoDatabase db = new UtxoDatabase(directory, 4);
+        List<ShaTwoFiftySix> hashes = putRandomOutputs(db.unspentTransactions(), 10);
+        db.commit(randomShaTwoFiftySix());
+
+        UnspentTransactions copy = db.unspentTransactions().copy();
+        UnspentTransactions expected = copy.copy();
+        db.unspentTransactions().remove(hashes.get(0), 0);
+        putRandomOutputs(db.unspentTransactions(), 10);
+        db.commit(randomShaTwoFiftySix());
+        TestUtils.assertEqualsWithHashCode(errorMessage, expected, copy);
+
+        copy.remove(hashes.get(1), 1);
+        Assert.assertTrue(errorMessage, db.unspentTransactions().contains(hashes.get(1), 1));
+    }
+
+    @Test
+    public void testOwnerIndexFollowsChanges() throws IOException, GeneralSecurityException {
+        Path directory = Files.createTempDirectory("utxo");
+        UtxoDatabase db = new UtxoDatabase(directory, 4);
+        ECDSAPublicKey key = crypto.signatureKeyPair().publicKey;
+        UnspentTransactions live = db.unspentTransactions();
+        List<ShaTwoFiftySix> hashes = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            hashes.add(randomShaTwoFiftySix());
+            live.put(hashes.get(i), 0, new TxOut(1 + random.nextInt(1000), key));
+        }
+        db.commit(randomShaTwoFiftySix());
+        assertAmount(live, key);
+        assertAmount(live.copy(), key);
+
+        // Changes that are aborted are dropped from the index as well
+        live.remove(hashes.get(0), 0);
+        live.put(randomShaTwoFiftySix(), 0, new TxOut(1, key));
+        db.abort();
+        assertAmount(live, key);
+        assertAmount(live.copy(), key);
+
+        // Committed changes, including those that flush the memtable, are kept
+        live.remove(hashes.get(1), 0);
+        for (int i = 0; i < 10; i++) {
+            live.put(randomShaTwoFiftySix(), 0, new TxOut(1 + random.nextInt(1000), key));
+        }
+        db.commit(randomShaTwoFiftySix());
+        assertAmount(live, key);
+        assertAmount(live.copy(), key);
+        assertAmount(new UtxoDatabase(directory, 4).unspentTransactions(), key);
+
+        // Overlays answer from the index of their base, with their own changes on top
+        UnspentTransactions overlay = live.overlay();
+        overlay.remove(hashes.get(2), 0);
+        overlay.put(randomShaTwoFiftySix(), 0, new TxOut(7, key));
+        assertAmount(overlay, key);
+        Assert.assertEquals(errorMessage, live.getAmount(key) - live.get(hashes.get(2), 0).value + 7,
+                overlay.getAmount(key));
+
+        db.clear();
+        Assert.assertEquals(errorMessage, 0, live.getAmount(key));
+        live.put(randomShaTwoFiftySix(), 0, new TxOut(5, key));
+        Assert.assertEquals(errorMessage, 5, live.copy().getAmount(key));
+    }
+
+    private void assertAmount(UnspentTransactions ut, ECDSAPublicKey key) {
+        long expected = 0;
+        for (Map.Entry<TxIn, TxOut> entry : ut) {
+            if (entry.getValue().ownerPubKey.equals(key)) {
+                expected += entry.getValue().value;
+            }
+        }
+        Assert.assertEquals(errorMessage, expected, ut.getAmount(key));
+    }
+}
@@ -0,0 +1,88 @@
+package block;
+
+import crypto.ECDSAKeyPair;
+import org.junit.Assert;
+import org.junit.Test;
+import testutils.RandomizedTest;
+import testutils.TestUtils;
+import transaction.TxOut;
+import utils.ShaTwoFiftySix;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.Future;
+
+public class UtxoSnapshotsTest extends RandomizedTest {
+
+    private UnspentTransactions randomUnspentTransactions(int count) throws Exception {
+        ECDSAKeyPair pair = crypto.signatureKeyPair();
+        UnspentTransactions ut = UnspentTransactions.empty();
+        for (int i = 0; i < count; i++) {
+            ut.put(randomShaTwoFiftySix(), random.nextInt(4), new TxOut(random.nextInt(1 << 20), pair.publicKey));
+        }
+        return ut;
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        UtxoSnapshots snapshots = new UtxoSnapshots(Files.createTempDirectory("snapshots"));
+        Assert.assertFalse(errorMessage, snapshots.readNewest(hash -> true).isPresent());
+
+        UnspentTransactions ut = randomUnspentTransactions(50);
+        ShaTwoFiftySix hash = randomShaTwoFiftySix();
+        snapshots.write(hash, 7, ut);
+
+        Optional<UtxoSnapshots.Snapshot> snapshot = snapshots.readNewest(h -> true);
+        Assert.assertTrue(errorMessage, snapshot.isPresent());
+        Assert.assertEquals(errorMessage, hash, snapshot.get().hash);
+        Assert.assertEquals(errorMessage, 7, snapshot.get().depth);
+        TestUtils.assertEqualsWithHashCode(errorMessage, ut, snapshot.get().unspentTxs);
+    }
+
+    @Test
+    public void testReadNewestUsable() throws Exception {
+        Path directory = Files.createTempDirectory("snapshots");
+        UtxoSnapshots snapshots = new UtxoSnapshots(directory);
+        ShaTwoFiftySix older = randomShaTwoFiftySix();
+        ShaTwoFiftySix newer = randomShaTwoFiftySix();
+        UnspentTransactions olderUt = randomUnspentTransactions(10);
+        snapshots.write(older, 10, olderUt);
+        snapshots.write(newer, 20, randomUnspentTransactions(10));
+
+        Assert.assertEquals(errorMessage, newer, snapshots.readNewest(h -> true).get().hash);
+        Assert.assertEquals(errorMessage, older, snapshots.readNewest(older::equals).get().hash);
+        Assert.assertFalse(errorMessage, snapshots.readNewest(h -> false).isPresent());
+
+        // A corrupted snapshot is skipped in favour of an older one
+        Path newest = directory.resolve(String.format("%010d.snapshot", 20));
+        byte[] bytes = Files.readAllBytes(newest);
+        bytes[random.nextInt(bytes.length)] ^= 1 + random.nextInt(255);
+        Files.write(newest, bytes);
+        Optional<UtxoSnapshots.Snapshot> snapshot = snapshots.readNewest(h -> true);
+        Assert.assertTrue(errorMessage, snapshot.isPresent());
+        Assert.assertEquals(errorMessage, older, snapshot.get().hash);
+        TestUtils.assertEqualsWithHashCode(errorMessage, olderUt, snapshot.get().unspentTxs);
+
+        // So is a truncated one
+        Files.write(newest, new byte[random.nextInt(64)]);
+        Assert.assertEquals(errorMessage, older, snapshots.readNewest(h -> true).get().hash);
+    }
+
+    @Test
+    public void testBackgroundWriteRetainsNewest() throws Exception {
+        Path directory = Files.createTempDirectory("snapshots");
+        UtxoSnapshots snapshots = new UtxoSnapshots(directory);
+        ShaTwoFiftySix hash = null;
+        for (int depth = 1; depth <= UtxoSnapshots.RETAINED_SNAPSHOTS + 3; depth++) {
+            hash = randomShaTwoFiftySix();
+            Optional<Future<?>> write = snapshots.writeInBackground(hash, depth, randomUnspentTransactions(5));
+            Assert.assertTrue(errorMessage, write.isPresent());
+            write.get().get();
+        }
+
+        Assert.assertEquals(errorMessage, hash, snapshots.readNewest(h -> true).get().hash);
+        Assert.assertEquals(errorMessage, UtxoSnapshots.RETAINED_SNAPSHOTS,
+                Files.list(directory).filter(path -> path.toString().endsWith(".snapshot")).count());
+    }
+}
@@ -7,7 +7,9 @@ import testutils.RandomizedTest;
 import testutils.TestUtils;
 import utils.ByteUtil;
 import utils.Config;
+import utils.ShaTwoFiftySix;
 
+import java.math.BigInteger;
 import java.util.Base64;
 
 
@@ -38,6 +40,49 @@ public class CryptoTest extends RandomizedTest {
         TestUtils.assertEqualsWithHashCode(errorMessage, publicKey, deserializedKey);
     }
 
+    @Test
+    public void testVerifyAllMatchesVerify() throws Exception {
+        int count = 20;
+        ShaTwoFiftySix[] hashes = new ShaTwoFiftySix[count];
+        ECDSASignature[] signatures = new ECDSASignature[count];
+        ECDSAPublicKey[] keys = new ECDSAPublicKey[count];
+        for (int i = 0; i < count; i++) {
+            ECDSAKeyPair pair = crypto.signatureKeyPair();
+            byte[] content = randomBytes(1 + random.nextInt(256));
+            hashes[i] = ShaTwoFiftySix.hashOf(content);
+            signatures[i] = Crypto.sign(content, pair.privateKey);
+            keys[i] = pair.publicKey;
+        }
+        // Corrupt some of them: wrong content, wrong key, and values out of range
+        hashes[3] = ShaTwoFiftySix.hashOf(randomBytes(32));
+        keys[7] = crypto.signatureKeyPair().publicKey;
+        signatures[11] = new ECDSASignature(BigInteger.ZERO, signatures[11].s);
+        signatures[12] = new ECDSASignature(signatures[12].r, Crypto.SPEC.getN().add(signatures[12].s));
+        signatures[13] = new ECDSASignature(signatures[13].r, Crypto.SPEC.getN().subtract(signatures[13].s));
+
+        boolean[] valid = Crypto.verifyAll(hashes, signatures, keys);
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(errorMessage, Crypto.verify(hashes[i], signatures[i], keys[i]), valid[i]);
+        }
+        Assert.assertFalse(errorMessage, valid[3] || valid[7] || valid[11] || valid[12]);
+        Assert.assertTrue(errorMessage, valid[0]);
+        Assert.assertEquals(errorMessage, 0, Crypto.verifyAll(new ShaTwoFiftySix[0], new ECDSASignature[0],
+                new ECDSAPublicKey[0]).length);
+    }
+
+    @Test
+    public void testBatchInverse() throws Exception {
+        BigInteger modulus = Crypto.SPEC.getN();
+        BigInteger[] values = new BigInteger[1 + random.nextInt(10)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new BigInteger(256, random).mod(modulus.subtract(BigInteger.ONE)).add(BigInteger.ONE);
+        }
+        BigInteger[] inverses = Crypto.batchInverse(values, modulus);
+        for (int i = 0; i < values.length; i++) {
+            Assert.assertEquals(errorMessage, values[i].modInverse(modulus), inverses[i]);
+        }
+    }
+
     @Test
     public void testSign() throws Exception {
         byte[] content = randomBytes(random.nextInt(1024));
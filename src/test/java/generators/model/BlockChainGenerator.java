@@ -56,7 +56,7 @@ public class BlockChainGenerator extends Generator<BlockChain> {
         ShaTwoFiftySix prevHash = genesis.getShaTwoFiftySix();
         List<Transaction> transactions = new ArrayList<>();
         try {
-            for (int i = 0; i < Block.NUM_TRANSACTIONS_PER_BLOCK - 1; ++i) {
+            for (int i = 0; i < Block.MIN_TRANSACTIONS_TO_MINE - 1; ++i) {
                 Transaction dummy = new Transaction.Builder()
                         .addInput(
                                 new TxIn(prevHash, 0),
@@ -36,7 +36,7 @@ public class BlockGenerator extends Generator<Block> {
         ECDSAKeyPair keys = new SigningKeyPairGenerator().generate(random, status);
         TransactionGenerator txGen = new TransactionGenerator(unspentTxs);
 
-        List<Transaction> transactions = IntStream.range(0, Block.NUM_TRANSACTIONS_PER_BLOCK)
+        List<Transaction> transactions = IntStream.range(0, Block.MIN_TRANSACTIONS_TO_MINE)
                 .mapToObj(i -> txGen.generate(random, status))
                 .collect(Collectors.toList());
 
@@ -0,0 +1,116 @@
+package network;
+
+import block.Block;
+import org.junit.Assert;
+import org.junit.Test;
+import testutils.RandomizedTest;
+import transaction.Transaction;
+import transaction.TxIn;
+import transaction.TxOut;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class MempoolTest extends RandomizedTest {
+
+    private Transaction spend(TxIn... inputs) throws GeneralSecurityException, IOException {
+        Transaction.Builder builder = new Transaction.Builder();
+        for (TxIn input : inputs) {
+            builder.addInput(input, crypto.signatureKeyPair().privateKey);
+        }
+        return builder
+                .addOutput(new TxOut(1 + random.nextInt(100), crypto.signatureKeyPair().publicKey))
+                .addOutput(new TxOut(1 + random.nextInt(100), crypto.signatureKeyPair().publicKey))
+                .build();
+    }
+
+    private static TxIn output(Transaction transaction, int index) {
+        return new TxIn(transaction.getShaTwoFiftySix(), index);
+    }
+
+    private static List<Transaction> contents(Mempool mempool) {
+        List<Transaction> transactions = new ArrayList<>();
+        mempool.forEach(transactions::add);
+        return transactions;
+    }
+
+    @Test
+    public void testAddIndexesTransactions() throws Exception {
+        Mempool mempool = new Mempool(10);
+        TxIn input = new TxIn(randomShaTwoFiftySix(), 0);
+        Transaction parent = spend(input);
+        Transaction child = spend(output(parent, 1));
+
+        Assert.assertTrue(errorMessage, mempool.add(parent));
+        Assert.assertTrue(errorMessage, mempool.add(child));
+        Assert.assertFalse(errorMessage, mempool.add(parent));
+        Assert.assertEquals(errorMessage, 2, mempool.size());
+        Assert.assertEquals(errorMessage, child, mempool.get(child.getShaTwoFiftySix()).get());
+        Assert.assertEquals(errorMessage, parent.getShaTwoFiftySix(), mempool.spender(input).get());
+        Assert.assertEquals(errorMessage, child.getShaTwoFiftySix(), mempool.spender(output(parent, 1)).get());
+        Assert.assertFalse(errorMessage, mempool.spender(output(parent, 0)).isPresent());
+        Assert.assertEquals(errorMessage, Arrays.asList(parent, child), contents(mempool));
+    }
+
+    @Test
+    public void testRejectsConflictsAndOverflow() throws Exception {
+        Mempool mempool = new Mempool(2);
+        TxIn input = new TxIn(randomShaTwoFiftySix(), 0);
+        Assert.assertTrue(errorMessage, mempool.add(spend(input)));
+        Assert.assertFalse(errorMessage, mempool.add(spend(new TxIn(randomShaTwoFiftySix(), 0), input)));
+        Assert.assertTrue(errorMessage, mempool.add(spend(new TxIn(randomShaTwoFiftySix(), 0))));
+        Assert.assertTrue(errorMessage, mempool.isFull());
+        Assert.assertFalse(errorMessage, mempool.add(spend(new TxIn(randomShaTwoFiftySix(), 0))));
+        Assert.assertEquals(errorMessage, 2, mempool.size());
+    }
+
+    @Test
+    public void testRemoveDescendants() throws Exception {
+        Mempool mempool = new Mempool(10);
+        Transaction parent = spend(new TxIn(randomShaTwoFiftySix(), 0));
+        Transaction left = spend(output(parent, 0));
+        Transaction right = spend(output(parent, 1));
+        Transaction grandchild = spend(output(left, 0), output(right, 0));
+        Transaction unrelated = spend(new TxIn(randomShaTwoFiftySix(), 0));
+        for (Transaction transaction : Arrays.asList(parent, left, unrelated, right, grandchild)) {
+            Assert.assertTrue(errorMessage, mempool.add(transaction));
+        }
+
+        List<Transaction> removed = mempool.remove(left.getShaTwoFiftySix());
+        Assert.assertEquals(errorMessage, Arrays.asList(left, grandchild), removed);
+        Assert.assertEquals(errorMessage, Arrays.asList(parent, unrelated, right), contents(mempool));
+        Assert.assertFalse(errorMessage, mempool.spender(output(parent, 0)).isPresent());
+        Assert.assertFalse(errorMessage, mempool.spender(output(right, 0)).isPresent());
+        Assert.assertEquals(errorMessage, Collections.emptyList(), mempool.remove(left.getShaTwoFiftySix()));
+    }
+
+    @Test
+    public void testRemoveConfirmed() throws Exception {
+        Mempool mempool = new Mempool(10);
+        TxIn contested = new TxIn(randomShaTwoFiftySix(), 0);
+        Transaction confirmed = spend(new TxIn(randomShaTwoFiftySix(), 0));
+        Transaction child = spend(output(confirmed, 0));
+        Transaction loser = spend(contested);
+        Transaction loserChild = spend(output(loser, 1));
+        Transaction unrelated = spend(new TxIn(randomShaTwoFiftySix(), 0));
+        for (Transaction transaction : Arrays.asList(confirmed, loser, child, unrelated, loserChild)) {
+            Assert.assertTrue(errorMessage, mempool.add(transaction));
+        }
+
+        // The block confirms one pooled transaction, and another one spending the contested output
+        Transaction winner = spend(contested);
+        Block block = Block.block(randomShaTwoFiftySix(), new Transaction[]{confirmed, winner},
+                crypto.signatureKeyPair().publicKey);
+        List<Transaction> conflicts = mempool.removeConfirmed(block);
+
+        Assert.assertEquals(errorMessage, Arrays.asList(loser, loserChild), conflicts);
+        Assert.assertEquals(errorMessage, Arrays.asList(child, unrelated), contents(mempool));
+        Assert.assertFalse(errorMessage, mempool.contains(confirmed.getShaTwoFiftySix()));
+        Assert.assertFalse(errorMessage, mempool.spender(contested).isPresent());
+        Assert.assertEquals(errorMessage, child.getShaTwoFiftySix(), mempool.spender(output(confirmed, 0)).get());
+    }
+}
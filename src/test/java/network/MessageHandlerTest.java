@@ -0,0 +1,163 @@
+package network;
+
+import block.Block;
+import block.BlockChain;
+import crypto.ECDSAKeyPair;
+import message.IncomingMessage;
+import message.Message;
+import org.junit.Assert;
+import org.junit.Test;
+import testutils.RandomizedTest;
+import transaction.Transaction;
+import transaction.TxIn;
+import transaction.TxOut;
+import utils.ByteUtil;
+import utils.Config;
+
+import java.nio.file.Files;
+import java.util.concurrent.ArrayBlockingQueue;
+
+public class MessageHandlerTest extends RandomizedTest {
+
+    private Transaction spendReward(Block block, ECDSAKeyPair owner) throws Exception {
+        return new Transaction.Builder()
+                .addInput(new TxIn(block.getShaTwoFiftySix(), 0), owner.privateKey)
+                .addOutput(new TxOut(Block.REWARD_AMOUNT - 1, crypto.signatureKeyPair().publicKey))
+                .addOutput(new TxOut(1, owner.publicKey))
+                .build();
+    }
+
+    private Block mine(Block parent, Transaction... transactions) throws Exception {
+        Block block = Block.block(parent.getShaTwoFiftySix(), transactions, crypto.signatureKeyPair().publicKey);
+        block.findValidNonce();
+        return block;
+    }
+
+    @Test
+    public void testReorgRestoresTransactions() throws Exception {
+        Config.setHashGoal(1);
+        ECDSAKeyPair pair = crypto.signatureKeyPair();
+        Block genesis = Block.genesis(pair.publicKey);
+        BlockChain chain = new BlockChain(Files.createTempDirectory("test"), genesis);
+        MiningBundle bundle = new MiningBundle(chain, pair, pair.publicKey, chain.getHeadUnspentTransactions());
+        MessageHandler handler = new MessageHandler("", new ArrayBlockingQueue<>(10), bundle, false);
+
+        Transaction tx = spendReward(genesis, pair);
+        Block main = mine(genesis, tx);
+        Assert.assertTrue(errorMessage, handler.blockHandler(main));
+        Assert.assertTrue(errorMessage, bundle.getUnspentTransactions().contains(tx.getShaTwoFiftySix(), 0));
+
+        // A longer branch that does not include the transaction
+        Block side = mine(genesis);
+        Assert.assertTrue(errorMessage, handler.blockHandler(side));
+        Assert.assertEquals(errorMessage, main, chain.getCurrentHead());
+        Block sideHead = mine(side);
+        Assert.assertTrue(errorMessage, handler.blockHandler(sideHead));
+        Assert.assertEquals(errorMessage, sideHead, chain.getCurrentHead());
+
+        // The transaction is pending again, so its outputs are spendable
+        Assert.assertTrue(errorMessage, bundle.getUnspentTransactions().contains(tx.getShaTwoFiftySix(), 0));
+        Assert.assertTrue(errorMessage, bundle.getUnspentTransactions().contains(tx.getShaTwoFiftySix(), 1));
+        Assert.assertFalse(errorMessage, bundle.getUnspentTransactions().contains(genesis.getShaTwoFiftySix(), 0));
+        Assert.assertFalse(errorMessage, bundle.getUnspentTransactions().contains(main.getShaTwoFiftySix(), 0));
+    }
+
+    @Test
+    public void testReorgDropsConflictingTransactions() throws Exception {
+        Config.setHashGoal(1);
+        ECDSAKeyPair pair = crypto.signatureKeyPair();
+        Block genesis = Block.genesis(pair.publicKey);
+        BlockChain chain = new BlockChain(Files.createTempDirectory("test"), genesis);
+        MiningBundle bundle = new MiningBundle(chain, pair, pair.publicKey, chain.getHeadUnspentTransactions());
+        MessageHandler handler = new MessageHandler("", new ArrayBlockingQueue<>(10), bundle, false);
+
+        Transaction tx = spendReward(genesis, pair);
+        Assert.assertTrue(errorMessage, handler.blockHandler(mine(genesis, tx)));
+
+        // The longer branch spends the same output differently
+        Transaction conflict = spendReward(genesis, pair);
+        Block side = mine(genesis, conflict);
+        Assert.assertTrue(errorMessage, handler.blockHandler(side));
+        Block sideHead = mine(side);
+        Assert.assertTrue(errorMessage, handler.blockHandler(sideHead));
+        Assert.assertEquals(errorMessage, sideHead, chain.getCurrentHead());
+
+        Assert.assertFalse(errorMessage, bundle.getUnspentTransactions().contains(tx.getShaTwoFiftySix(), 0));
+        Assert.assertTrue(errorMessage, bundle.getUnspentTransactions().contains(conflict.getShaTwoFiftySix(), 0));
+        Assert.assertEquals(errorMessage, chain.getHeadUnspentTransactions(), bundle.getUnspentTransactions());
+    }
+
+    @Test
+    public void testPromotesOrphans() throws Exception {
+        Config.setHashGoal(1);
+        ECDSAKeyPair pair = crypto.signatureKeyPair();
+        Block genesis = Block.genesis(pair.publicKey);
+        BlockChain chain = new BlockChain(Files.createTempDirectory("test"), genesis);
+        MiningBundle bundle = new MiningBundle(chain, pair, pair.publicKey, chain.getHeadUnspentTransactions());
+        MessageHandler handler = new MessageHandler("", new ArrayBlockingQueue<>(10), bundle, false);
+
+        ECDSAKeyPair middle = crypto.signatureKeyPair();
+        Transaction parent = new Transaction.Builder()
+                .addInput(new TxIn(genesis.getShaTwoFiftySix(), 0), pair.privateKey)
+                .addOutput(new TxOut(Block.REWARD_AMOUNT, middle.publicKey))
+                .build();
+        Transaction child = new Transaction.Builder()
+                .addInput(new TxIn(parent.getShaTwoFiftySix(), 0), middle.privateKey)
+                .addOutput(new TxOut(Block.REWARD_AMOUNT, crypto.signatureKeyPair().publicKey))
+                .build();
+
+        // The child arrives first, and waits for its parent
+        handler.txMsgHandler(message(child), child);
+        Assert.assertFalse(errorMessage, bundle.getUnspentTransactions().contains(child.getShaTwoFiftySix(), 0));
+        handler.txMsgHandler(message(parent), parent);
+        Assert.assertFalse(errorMessage, bundle.getUnspentTransactions().contains(parent.getShaTwoFiftySix(), 0));
+        Assert.assertTrue(errorMessage, bundle.getUnspentTransactions().contains(child.getShaTwoFiftySix(), 0));
+    }
+
+    @Test
+    public void testReorgPromotesOrphansOfRestoredTransactions() throws Exception {
+        Config.setHashGoal(1);
+        ECDSAKeyPair pair = crypto.signatureKeyPair();
+        Block genesis = Block.genesis(pair.publicKey);
+        BlockChain chain = new BlockChain(Files.createTempDirectory("test"), genesis);
+        MiningBundle bundle = new MiningBundle(chain, pair, pair.publicKey, chain.getHeadUnspentTransactions());
+        MessageHandler handler = new MessageHandler("", new ArrayBlockingQueue<>(10), bundle, false);
+
+        Transaction tx = spendReward(genesis, pair);
+        Block first = Block.block(genesis.getShaTwoFiftySix(), new Transaction[]{tx}, pair.publicKey);
+        first.findValidNonce();
+        Assert.assertTrue(errorMessage, handler.blockHandler(first));
+        // Spends the reward of the first block too, so it cannot be restored once that block is disconnected
+        Transaction spender = new Transaction.Builder()
+                .addInput(new TxIn(tx.getShaTwoFiftySix(), 1), pair.privateKey)
+                .addInput(new TxIn(first.getShaTwoFiftySix(), 0), pair.privateKey)
+                .addOutput(new TxOut(Block.REWARD_AMOUNT + 1, crypto.signatureKeyPair().publicKey))
+                .build();
+        Assert.assertTrue(errorMessage, handler.blockHandler(mine(first, spender)));
+
+        // The output is spent by the chain, so this waits for it
+        Transaction orphan = new Transaction.Builder()
+                .addInput(new TxIn(tx.getShaTwoFiftySix(), 1), pair.privateKey)
+                .addOutput(new TxOut(1, crypto.signatureKeyPair().publicKey))
+                .build();
+        handler.txMsgHandler(message(orphan), orphan);
+        Assert.assertFalse(errorMessage, bundle.getUnspentTransactions().contains(orphan.getShaTwoFiftySix(), 0));
+
+        // A longer branch without either block restores the transaction, but not the one spending its output
+        Block side = mine(genesis);
+        for (int i = 0; i < 2; i++) {
+            Assert.assertTrue(errorMessage, handler.blockHandler(side));
+            side = mine(side);
+        }
+        Assert.assertTrue(errorMessage, handler.blockHandler(side));
+        Assert.assertEquals(errorMessage, side, chain.getCurrentHead());
+
+        Assert.assertTrue(errorMessage, bundle.getUnspentTransactions().contains(tx.getShaTwoFiftySix(), 0));
+        Assert.assertFalse(errorMessage, bundle.getUnspentTransactions().contains(spender.getShaTwoFiftySix(), 0));
+        Assert.assertTrue(errorMessage, bundle.getUnspentTransactions().contains(orphan.getShaTwoFiftySix(), 0));
+    }
+
+    private static IncomingMessage message(Transaction transaction) throws Exception {
+        return new IncomingMessage(Message.TRANSACTION, ByteUtil.asByteArray(transaction::serialize));
+    }
+}
@@ -105,7 +105,7 @@ public final class MinerSimulation {
     }
 
     public Block addValidBlock(Random random) throws Exception {
-        List<Transaction> transactions = validTransactions(random, Block.NUM_TRANSACTIONS_PER_BLOCK);
+        List<Transaction> transactions = validTransactions(random, Block.MIN_TRANSACTIONS_TO_MINE);
         for (Transaction transaction : transactions) {
             sendValidTransaction(choiceList(random, miners), transaction);
         }
@@ -0,0 +1,123 @@
+package network;
+
+import block.Block;
+import message.Message;
+import message.OutgoingMessage;
+import message.payloads.BlocksPayload;
+import message.payloads.MiningStatsPayload;
+import org.junit.Assert;
+import org.junit.Test;
+import testutils.RandomizedTest;
+import utils.ByteUtil;
+import utils.Config;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class MiningServiceTest extends RandomizedTest {
+
+    private static Block minedBlock(Message msg) throws Exception {
+        List<Block> blocks = BlocksPayload.DESERIALIZER.deserialize(msg.payload).blocks();
+        Assert.assertEquals(1, blocks.size());
+        return blocks.get(0);
+    }
+
+    @Test
+    public void testMinesTemplate() throws Exception {
+        Config.setHashGoal(1);
+        BlockingQueue<OutgoingMessage> queue = new ArrayBlockingQueue<>(5);
+        MiningService service = new MiningService("", queue, 1 + random.nextInt(4));
+        service.start();
+
+        Block block = randomBlock(randomShaTwoFiftySix());
+        byte[] templateNonce = block.nonce.clone();
+        service.setTemplate(block);
+        Message msg = queue.take();
+        Assert.assertEquals(errorMessage, Message.BLOCKS, msg.type);
+        Block mined = minedBlock(msg);
+        Assert.assertTrue(errorMessage, mined.checkHash());
+        Assert.assertEquals(errorMessage, block, mined.withNonce(templateNonce));
+        // The template itself is left unchanged
+        Assert.assertArrayEquals(errorMessage, templateNonce, block.nonce);
+        Assert.assertEquals(errorMessage, 1, service.blocksMined());
+        Assert.assertFalse(errorMessage, service.isMining());
+        service.shutdown();
+    }
+
+    @Test
+    public void testSwitchTemplate() throws Exception {
+        BlockingQueue<OutgoingMessage> queue = new ArrayBlockingQueue<>(5);
+        MiningService service = new MiningService("", queue, 2);
+        service.start();
+
+        Config.setHashGoal(10); // really big, so the first template won't be mined
+        Block stale = randomBlock(randomShaTwoFiftySix());
+        Config.setHashGoal(1);
+        Block block = randomBlock(randomShaTwoFiftySix());
+        service.setTemplate(stale);
+        while (service.hashes() == 0) {
+            Thread.sleep(1);
+        }
+        service.setTemplate(block);
+
+        Block mined = minedBlock(queue.take());
+        Assert.assertTrue(errorMessage, mined.checkHash());
+        Assert.assertEquals(errorMessage, block, mined.withNonce(block.nonce));
+        Assert.assertEquals(errorMessage, 1, service.templateSwitches());
+        Assert.assertNull(errorMessage, queue.poll(10, TimeUnit.MILLISECONDS));
+        service.shutdown();
+    }
+
+    @Test
+    public void testClearTemplate() throws Exception {
+        Config.setHashGoal(10);
+        MiningService service = new MiningService("", new ArrayBlockingQueue<>(5), 2);
+        service.start();
+        service.setTemplate(randomBlock(randomShaTwoFiftySix()));
+        Assert.assertTrue(errorMessage, service.isMining());
+        service.clearTemplate();
+        Assert.assertFalse(errorMessage, service.isMining());
+        service.shutdown();
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        Config.setHashGoal(1);
+        BlockingQueue<OutgoingMessage> queue = new ArrayBlockingQueue<>(5);
+        int numWorkers = 1 + random.nextInt(4);
+        MiningService service = new MiningService("", queue, numWorkers);
+        service.start();
+        Assert.assertEquals(errorMessage, -1, service.stats().templateAgeNanos);
+
+        service.setTemplate(randomBlock(randomShaTwoFiftySix()));
+        queue.take();
+        MiningStatsPayload stats = service.stats();
+        service.shutdown();
+
+        Assert.assertEquals(errorMessage, numWorkers, stats.workerHashes.length);
+        Assert.assertEquals(errorMessage, service.hashes(), stats.hashes());
+        Assert.assertTrue(errorMessage, stats.hashesPerSecond() > 0);
+        Assert.assertEquals(errorMessage, 1, stats.blocksMined);
+        Assert.assertEquals(errorMessage, 1, Arrays.stream(stats.solutionTimes).sum());
+        Assert.assertEquals(errorMessage, -1, stats.templateAgeNanos);
+
+        MiningStatsPayload copy = MiningStatsPayload.DESERIALIZER.deserialize(ByteUtil.asByteArray(stats::serialize));
+        Assert.assertEquals(errorMessage, stats.elapsedNanos, copy.elapsedNanos);
+        Assert.assertArrayEquals(errorMessage, stats.workerHashes, copy.workerHashes);
+        Assert.assertArrayEquals(errorMessage, stats.solutionTimes, copy.solutionTimes);
+        Assert.assertEquals(errorMessage, stats.staleSolutions, copy.staleSolutions);
+    }
+
+    @Test
+    public void testSolutionTimeBuckets() {
+        Assert.assertEquals(errorMessage, 0, MiningStats.solutionTimeBucket(TimeUnit.MICROSECONDS.toNanos(999)));
+        Assert.assertEquals(errorMessage, 1, MiningStats.solutionTimeBucket(TimeUnit.MILLISECONDS.toNanos(1)));
+        Assert.assertEquals(errorMessage, 3, MiningStats.solutionTimeBucket(TimeUnit.MILLISECONDS.toNanos(7)));
+        Assert.assertEquals(errorMessage, 4, MiningStats.solutionTimeBucket(TimeUnit.MILLISECONDS.toNanos(8)));
+        Assert.assertEquals(errorMessage, MiningStatsPayload.SOLUTION_TIME_BUCKETS - 1,
+                MiningStats.solutionTimeBucket(TimeUnit.DAYS.toNanos(365)));
+    }
+}
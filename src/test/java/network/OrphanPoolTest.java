@@ -0,0 +1,91 @@
+package network;
+
+import org.junit.Assert;
+import org.junit.Test;
+import testutils.RandomizedTest;
+import transaction.Transaction;
+import transaction.TxIn;
+import transaction.TxOut;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class OrphanPoolTest extends RandomizedTest {
+
+    private Transaction spend(TxIn... inputs) throws GeneralSecurityException, IOException {
+        Transaction.Builder builder = new Transaction.Builder();
+        for (TxIn input : inputs) {
+            builder.addInput(input, crypto.signatureKeyPair().privateKey);
+        }
+        return builder.addOutput(new TxOut(1 + random.nextInt(100), crypto.signatureKeyPair().publicKey)).build();
+    }
+
+    @Test
+    public void testTakeSpending() throws Exception {
+        OrphanPool pool = new OrphanPool(10, 1000);
+        Transaction parent = spend(new TxIn(randomShaTwoFiftySix(), 0));
+        TxIn first = new TxIn(parent.getShaTwoFiftySix(), 0);
+        TxIn second = new TxIn(parent.getShaTwoFiftySix(), 1);
+        Transaction both = spend(first, second);
+        Transaction one = spend(second);
+        Transaction other = spend(new TxIn(randomShaTwoFiftySix(), 0));
+
+        Assert.assertTrue(errorMessage, pool.add(both, Arrays.asList(first, second), 0));
+        Assert.assertTrue(errorMessage, pool.add(other, Collections.singletonList(other.getInput(0)), 0));
+        Assert.assertTrue(errorMessage, pool.add(one, Collections.singletonList(second), 0));
+        Assert.assertFalse(errorMessage, pool.add(one, Collections.singletonList(second), 0));
+        Assert.assertEquals(errorMessage, 3, pool.size());
+
+        // Orphans are taken once any output they miss is known
+        Assert.assertEquals(errorMessage, Collections.singletonList(both),
+                pool.takeSpending(parent.getShaTwoFiftySix(), 1));
+        Assert.assertFalse(errorMessage, pool.contains(both.getShaTwoFiftySix()));
+        Assert.assertEquals(errorMessage, Collections.singletonList(one),
+                pool.takeSpending(parent.getShaTwoFiftySix(), 2));
+        Assert.assertEquals(errorMessage, Collections.emptyList(), pool.takeSpending(parent.getShaTwoFiftySix(), 2));
+        Assert.assertEquals(errorMessage, 1, pool.size());
+        Assert.assertTrue(errorMessage, pool.contains(other.getShaTwoFiftySix()));
+    }
+
+    @Test
+    public void testEvictsOldestWhenFull() throws Exception {
+        OrphanPool pool = new OrphanPool(3, 1000);
+        Transaction[] transactions = new Transaction[5];
+        for (int i = 0; i < transactions.length; i++) {
+            transactions[i] = spend(new TxIn(randomShaTwoFiftySix(), 0));
+            Assert.assertTrue(errorMessage,
+                    pool.add(transactions[i], Collections.singletonList(transactions[i].getInput(0)), i));
+            Assert.assertTrue(errorMessage, pool.size() <= 3);
+        }
+        Assert.assertFalse(errorMessage, pool.contains(transactions[0].getShaTwoFiftySix()));
+        Assert.assertFalse(errorMessage, pool.contains(transactions[1].getShaTwoFiftySix()));
+        for (int i = 2; i < transactions.length; i++) {
+            Assert.assertTrue(errorMessage, pool.contains(transactions[i].getShaTwoFiftySix()));
+        }
+        // An evicted orphan is no longer indexed
+        TxIn evicted = transactions[0].getInput(0);
+        Assert.assertEquals(errorMessage, Collections.emptyList(),
+                pool.takeSpending(evicted.previousTxn, evicted.txIdx + 1));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        OrphanPool pool = new OrphanPool(10, 100);
+        Transaction old = spend(new TxIn(randomShaTwoFiftySix(), 0));
+        Transaction recent = spend(new TxIn(randomShaTwoFiftySix(), 0));
+        pool.add(old, Collections.singletonList(old.getInput(0)), 0);
+        pool.add(recent, Collections.singletonList(recent.getInput(0)), 50);
+
+        Assert.assertEquals(errorMessage, 0, pool.removeExpired(100));
+        Assert.assertEquals(errorMessage, 1, pool.removeExpired(101));
+        Assert.assertFalse(errorMessage, pool.contains(old.getShaTwoFiftySix()));
+        Assert.assertTrue(errorMessage, pool.contains(recent.getShaTwoFiftySix()));
+
+        // Adding removes expired orphans as well
+        Transaction next = spend(new TxIn(randomShaTwoFiftySix(), 0));
+        Assert.assertTrue(errorMessage, pool.add(next, Collections.singletonList(next.getInput(0)), 200));
+        Assert.assertEquals(errorMessage, 1, pool.size());
+    }
+}
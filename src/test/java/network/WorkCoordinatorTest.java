@@ -0,0 +1,90 @@
+package network;
+
+import block.Block;
+import message.payloads.SubmitWorkPayload;
+import message.payloads.WorkPayload;
+import org.junit.Assert;
+import org.junit.Test;
+import testutils.RandomizedTest;
+import utils.ByteUtil;
+import utils.Config;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+public class WorkCoordinatorTest extends RandomizedTest {
+
+    @Test
+    public void testNoWorkWithoutTemplate() throws Exception {
+        WorkCoordinator coordinator = new WorkCoordinator("");
+        Assert.assertFalse(errorMessage, coordinator.getWork().isPresent());
+        coordinator.setTemplate(randomBlock(randomShaTwoFiftySix()));
+        coordinator.clear();
+        Assert.assertFalse(errorMessage, coordinator.getWork().isPresent());
+    }
+
+    @Test
+    public void testDisjointExtranonces() throws Exception {
+        WorkCoordinator coordinator = new WorkCoordinator("");
+        coordinator.setTemplate(randomBlock(randomShaTwoFiftySix()));
+        WorkPayload first = coordinator.getWork().get();
+        WorkPayload second = coordinator.getWork().get();
+        Assert.assertEquals(errorMessage, first.workId, second.workId);
+        Assert.assertNotEquals(errorMessage, first.extranonce, second.extranonce);
+        Assert.assertTrue(errorMessage, first.extranonce >= WorkCoordinator.REMOTE_EXTRANONCE_START);
+        Assert.assertTrue(errorMessage, second.extranonce >= WorkCoordinator.REMOTE_EXTRANONCE_START);
+    }
+
+    @Test
+    public void testSubmitValidWork() throws Exception {
+        Config.setHashGoal(1);
+        WorkCoordinator coordinator = new WorkCoordinator("");
+        Block template = randomBlock(randomShaTwoFiftySix());
+        byte[] originalNonce = template.nonce.clone();
+        coordinator.setTemplate(template);
+
+        // Round trip the work, as a remote miner would receive it
+        WorkPayload sent = coordinator.getWork().get();
+        WorkPayload work = WorkPayload.DESERIALIZER.deserialize(ByteUtil.asByteArray(sent::serialize));
+        byte[] nonce = RemoteMiner.search(work, Long.MAX_VALUE).get();
+        Assert.assertEquals(errorMessage, work.extranonce, ByteBuffer.wrap(nonce).getInt());
+
+        SubmitWorkPayload sentSubmission = new SubmitWorkPayload(work.workId, nonce);
+        SubmitWorkPayload submission = SubmitWorkPayload.DESERIALIZER.deserialize(
+                ByteUtil.asByteArray(sentSubmission::serialize));
+        Optional<Block> block = coordinator.submit(submission);
+        Assert.assertTrue(errorMessage, block.isPresent());
+        Assert.assertTrue(errorMessage, block.get().checkHash());
+        Assert.assertArrayEquals(errorMessage, nonce, block.get().nonce);
+        Assert.assertArrayEquals(errorMessage, originalNonce, template.nonce);
+
+        // The template is used up
+        Assert.assertFalse(errorMessage, coordinator.submit(submission).isPresent());
+        Assert.assertFalse(errorMessage, coordinator.getWork().isPresent());
+    }
+
+    @Test
+    public void testRejectInvalidWork() throws Exception {
+        Config.setHashGoal(10);
+        WorkCoordinator coordinator = new WorkCoordinator("");
+        coordinator.setTemplate(randomBlock(randomShaTwoFiftySix()));
+        WorkPayload work = coordinator.getWork().get();
+        byte[] nonce = new byte[Block.NONCE_SIZE_IN_BYTES];
+        random.nextBytes(nonce);
+        Assert.assertFalse(errorMessage, coordinator.submit(new SubmitWorkPayload(work.workId, nonce)).isPresent());
+        Assert.assertFalse(errorMessage,
+                coordinator.submit(new SubmitWorkPayload(work.workId + 1, nonce)).isPresent());
+        Assert.assertTrue(errorMessage, coordinator.getWork().isPresent());
+    }
+
+    @Test
+    public void testAcceptRecentTemplates() throws Exception {
+        Config.setHashGoal(1);
+        WorkCoordinator coordinator = new WorkCoordinator("");
+        coordinator.setTemplate(randomBlock(randomShaTwoFiftySix()));
+        WorkPayload work = coordinator.getWork().get();
+        coordinator.setTemplate(randomBlock(randomShaTwoFiftySix()));
+        byte[] nonce = RemoteMiner.search(work, Long.MAX_VALUE).get();
+        Assert.assertTrue(errorMessage, coordinator.submit(new SubmitWorkPayload(work.workId, nonce)).isPresent());
+    }
+}
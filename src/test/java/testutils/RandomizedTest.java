@@ -62,7 +62,7 @@ public abstract class RandomizedTest {
 
     protected Block randomBlock(ShaTwoFiftySix previousHash) throws GeneralSecurityException, IOException {
         List<Transaction> transactions = new ArrayList<>();
-        for (int i = 0; i < Block.NUM_TRANSACTIONS_PER_BLOCK; ++i) {
+        for (int i = 0; i < Block.MIN_TRANSACTIONS_TO_MINE; ++i) {
             transactions.add(randomTransaction());
         }
         Block b = Block.block(previousHash, transactions, crypto.signatureKeyPair().publicKey);
@@ -82,7 +82,7 @@ public abstract class RandomizedTest {
                 .build();
 
         List<Transaction> transactions = new ArrayList<>();
-        for (int i = 0; i < Block.NUM_TRANSACTIONS_PER_BLOCK; i++) {
+        for (int i = 0; i < Block.MIN_TRANSACTIONS_TO_MINE; i++) {
             senderPair = recipientPair;
             recipientPair = crypto.signatureKeyPair();
 
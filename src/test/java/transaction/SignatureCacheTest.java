@@ -0,0 +1,105 @@
+package transaction;
+
+import crypto.Crypto;
+import crypto.ECDSAKeyPair;
+import org.junit.Assert;
+import org.junit.Test;
+import testutils.RandomizedTest;
+import utils.Config;
+import utils.ShaTwoFiftySix;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class SignatureCacheTest extends RandomizedTest {
+
+    private SignatureCheck signedCheck() throws Exception {
+        ECDSAKeyPair pair = crypto.signatureKeyPair();
+        byte[] content = randomBytes(64);
+        return new SignatureCheck(ShaTwoFiftySix.hashOf(content), Crypto.sign(content, pair.privateKey),
+                pair.publicKey);
+    }
+
+    private static boolean verify(SignatureCheck check) {
+        return SignatureCheck.verifyAll(Collections.singletonList(check));
+    }
+
+    @Test
+    public void testRemembersSuccessfulChecks() throws Exception {
+        SignatureCheck.CACHE.clear();
+        SignatureCheck valid = signedCheck();
+        SignatureCheck otherKey = new SignatureCheck(valid.hash, valid.signature,
+                crypto.signatureKeyPair().publicKey);
+        SignatureCheck otherHash = new SignatureCheck(randomShaTwoFiftySix(), valid.signature, valid.key);
+
+        Assert.assertFalse(errorMessage, SignatureCheck.CACHE.contains(valid));
+        Assert.assertTrue(errorMessage, verify(valid));
+        Assert.assertTrue(errorMessage, SignatureCheck.CACHE.contains(valid));
+        Assert.assertTrue(errorMessage, verify(new SignatureCheck(valid.hash, valid.signature, valid.key)));
+
+        // Failed checks are not remembered, nor do they match a remembered one
+        Assert.assertFalse(errorMessage, verify(otherKey));
+        Assert.assertFalse(errorMessage, verify(otherHash));
+        Assert.assertFalse(errorMessage, SignatureCheck.CACHE.contains(otherKey));
+        Assert.assertFalse(errorMessage, SignatureCheck.CACHE.contains(otherHash));
+        Assert.assertEquals(errorMessage, 1, SignatureCheck.CACHE.size());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        int cacheSize = Config.signatureCacheSize();
+        try {
+            Config.setSignatureCacheSize(3);
+            // A single stripe evicts in exact LRU order
+            SignatureCache cache = new SignatureCache(1);
+            SignatureCheck[] checks = new SignatureCheck[4];
+            for (int i = 0; i < checks.length; i++) {
+                checks[i] = signedCheck();
+            }
+            cache.add(checks[0]);
+            cache.add(checks[1]);
+            cache.add(checks[2]);
+            Assert.assertTrue(errorMessage, cache.contains(checks[0]));
+            cache.add(checks[3]);
+
+            Assert.assertEquals(errorMessage, 3, cache.size());
+            Assert.assertTrue(errorMessage, cache.contains(checks[0]));
+            Assert.assertFalse(errorMessage, cache.contains(checks[1]));
+            Assert.assertTrue(errorMessage, cache.contains(checks[2]));
+            Assert.assertTrue(errorMessage, cache.contains(checks[3]));
+
+            Config.setSignatureCacheSize(0);
+            cache.add(checks[1]);
+            Assert.assertEquals(errorMessage, 0, cache.size());
+        } finally {
+            Config.setSignatureCacheSize(cacheSize);
+        }
+    }
+
+    @Test
+    public void testStripedCacheIsBounded() throws Exception {
+        int cacheSize = Config.signatureCacheSize();
+        try {
+            int maxSize = 1 + random.nextInt(3 * SignatureCache.STRIPES);
+            Config.setSignatureCacheSize(maxSize);
+            SignatureCache cache = new SignatureCache();
+            SignatureCheck signed = signedCheck();
+            List<SignatureCheck> checks = new ArrayList<>();
+            for (int i = 0; i < 4 * maxSize; i++) {
+                checks.add(new SignatureCheck(randomShaTwoFiftySix(), signed.signature, signed.key));
+            }
+            Assert.assertEquals(errorMessage, checks, cache.unknown(checks));
+
+            cache.addAll(checks);
+            Assert.assertTrue(errorMessage, cache.size() <= maxSize);
+            Assert.assertEquals(errorMessage, checks.size() - cache.size(), cache.unknown(checks).size());
+            for (SignatureCheck check : checks) {
+                Assert.assertEquals(errorMessage, !cache.unknown(Collections.singletonList(check)).isEmpty(),
+                        !cache.contains(check));
+            }
+        } finally {
+            Config.setSignatureCacheSize(cacheSize);
+        }
+    }
+}
@@ -89,6 +89,29 @@ public class TransactionTest extends RandomizedTest {
         Assert.assertFalse(errorMessage, transaction1.rollback(unspentTransactions, lookup));
     }
 
+    @Test
+    public void testApplyMatchesVerify() throws Exception {
+        ECDSAKeyPair senderPair = crypto.signatureKeyPair();
+        ECDSAKeyPair recipientPair = crypto.signatureKeyPair();
+        TxOut spent = new TxOut(300, senderPair.publicKey);
+        ShaTwoFiftySix hash = randomShaTwoFiftySix();
+        Transaction tx = new Transaction.Builder()
+                .addInput(new TxIn(hash, 0), senderPair.privateKey)
+                .addOutput(new TxOut(100, recipientPair.publicKey))
+                .addOutput(new TxOut(200, senderPair.publicKey))
+                .build();
+
+        UnspentTransactions verified = UnspentTransactions.empty();
+        verified.put(hash, 0, spent);
+        UnspentTransactions applied = verified.copy();
+        Assert.assertTrue(errorMessage, tx.verify(verified));
+        Assert.assertTrue(errorMessage, tx.apply(applied));
+        Assert.assertEquals(errorMessage, verified, applied);
+
+        // The input is spent now
+        Assert.assertFalse(errorMessage, tx.apply(applied));
+    }
+
     @Test
     public void doTransaction() throws Exception {
         ECDSAKeyPair senderPair = crypto.signatureKeyPair();
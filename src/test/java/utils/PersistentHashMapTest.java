@@ -0,0 +1,123 @@
+package utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+import testutils.RandomizedTest;
+
+import java.util.*;
+
+public class PersistentHashMapTest extends RandomizedTest {
+
+    @Test
+    public void testPutGetRemove() throws Exception {
+        PersistentHashMap<Integer, Integer> map = PersistentHashMap.empty();
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            int key = random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                Assert.assertEquals(errorMessage, expected.remove(key), map.get(key));
+                map = map.remove(key);
+            } else {
+                int value = random.nextInt();
+                expected.put(key, value);
+                map = map.put(key, value);
+            }
+            Assert.assertEquals(errorMessage, expected.size(), map.size());
+        }
+        assertSameEntries(expected, map);
+    }
+
+    @Test
+    public void testVersionsAreIndependent() throws Exception {
+        PersistentHashMap<Integer, Integer> map = PersistentHashMap.empty();
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            map = map.put(i, i);
+            expected.put(i, i);
+        }
+        PersistentHashMap<Integer, Integer> snapshot = map;
+        Map<Integer, Integer> expectedSnapshot = new HashMap<>(expected);
+
+        for (int i = 0; i < 1000; i++) {
+            int key = random.nextInt(2000);
+            if (random.nextBoolean()) {
+                map = map.remove(key);
+                expected.remove(key);
+            } else {
+                map = map.put(key, -key);
+                expected.put(key, -key);
+            }
+        }
+        assertSameEntries(expected, map);
+        assertSameEntries(expectedSnapshot, snapshot);
+    }
+
+    @Test
+    public void testCollisions() throws Exception {
+        PersistentHashMap<CollidingKey, Integer> map = PersistentHashMap.empty();
+        Map<CollidingKey, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200; i++) {
+            CollidingKey key = new CollidingKey(random.nextInt(50), random.nextInt(4));
+            if (random.nextInt(3) == 0) {
+                map = map.remove(key);
+                expected.remove(key);
+            } else {
+                map = map.put(key, i);
+                expected.put(key, i);
+            }
+        }
+        assertSameEntries(expected, map);
+    }
+
+    @Test
+    public void testEquals() throws Exception {
+        PersistentHashMap<Integer, Integer> a = PersistentHashMap.empty();
+        PersistentHashMap<Integer, Integer> b = PersistentHashMap.empty();
+        int[] permutation = randomPermutation(500);
+        for (int i = 0; i < 500; i++) {
+            a = a.put(i, i);
+            b = b.put(permutation[i], permutation[i]);
+        }
+        Assert.assertEquals(errorMessage, a, b);
+        Assert.assertEquals(errorMessage, a.hashCode(), b.hashCode());
+
+        Map<Integer, Integer> expected = new HashMap<>();
+        a.forEach(entry -> expected.put(entry.getKey(), entry.getValue()));
+        Assert.assertEquals(errorMessage, expected.hashCode(), a.hashCode());
+
+        Assert.assertNotEquals(errorMessage, a, b.put(0, 1));
+        Assert.assertNotEquals(errorMessage, a, b.remove(0));
+    }
+
+    private <K, V> void assertSameEntries(Map<K, V> expected, PersistentHashMap<K, V> map) {
+        Assert.assertEquals(errorMessage, expected.size(), map.size());
+        for (Map.Entry<K, V> entry : expected.entrySet()) {
+            Assert.assertEquals(errorMessage, entry.getValue(), map.get(entry.getKey()));
+        }
+        Map<K, V> iterated = new HashMap<>();
+        for (Map.Entry<K, V> entry : map) {
+            Assert.assertNull(errorMessage, iterated.put(entry.getKey(), entry.getValue()));
+        }
+        Assert.assertEquals(errorMessage, expected, iterated);
+    }
+
+    private static final class CollidingKey {
+        private final int id;
+        private final int hash;
+
+        private CollidingKey(int id, int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CollidingKey && ((CollidingKey) o).id == id && ((CollidingKey) o).hash == hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+import testutils.RandomizedTest;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+
+public class TargetTest extends RandomizedTest {
+
+    @Test
+    public void testLeadingZeroBytes() {
+        for (int i = 0; i < 100; i++) {
+            byte[] hash = randomBytes(ShaTwoFiftySix.HASH_SIZE_IN_BYTES);
+            int zeros = random.nextInt(4);
+            for (int j = 0; j < zeros; j++) {
+                hash[j] = 0;
+            }
+            ShaTwoFiftySix sha256 = ShaTwoFiftySix.create(hash).get();
+            for (int numZeros = 0; numZeros < 5; numZeros++) {
+                Assert.assertEquals(errorMessage, sha256.checkHashZeros(numZeros),
+                        Target.ofLeadingZeroBytes(numZeros).isMetBy(sha256));
+            }
+        }
+    }
+
+    @Test
+    public void testScale() throws Exception {
+        Target target = Target.ofLeadingZeroBytes(1 + random.nextInt(8));
+        BigInteger value = new BigInteger(1, ByteUtil.asByteArray(target::writeTo));
+        long numerator = 1 + random.nextInt(1000);
+        long denominator = 1 + random.nextInt(1000);
+        Target scaled = target.scale(numerator, denominator);
+        BigInteger expected = value.multiply(BigInteger.valueOf(numerator)).divide(BigInteger.valueOf(denominator));
+        Assert.assertEquals(errorMessage, expected, new BigInteger(1, ByteUtil.asByteArray(scaled::writeTo)));
+
+        Assert.assertEquals(errorMessage, Target.MAX, Target.MAX.scale(2, 1));
+        Assert.assertEquals(errorMessage, Target.MAX, Target.ofLeadingZeroBytes(0));
+    }
+
+    @Test
+    public void testScaleIsAtLeastOne() throws Exception {
+        Target one = Target.ofLeadingZeroBytes(Target.SIZE_IN_BYTES).scale(1, 1);
+        Assert.assertEquals(errorMessage, BigInteger.ONE, new BigInteger(1, ByteUtil.asByteArray(one::writeTo)));
+
+        Target target = Target.ofLeadingZeroBytes(1 + random.nextInt(Target.SIZE_IN_BYTES));
+        Target scaled = target.scale(1, Long.MAX_VALUE);
+        Assert.assertEquals(errorMessage, one, scaled.scale(1, 1 + random.nextInt(1000)));
+        Target raised = one.scale(4, 1);
+        Assert.assertEquals(errorMessage, BigInteger.valueOf(4),
+                new BigInteger(1, ByteUtil.asByteArray(raised::writeTo)));
+    }
+
+    @Test
+    public void testSerialize() throws Exception {
+        Target target = Target.MAX.scale(1 + random.nextInt(1 << 20), 1 << 20);
+        byte[] serialized = ByteUtil.asByteArray(target::writeTo);
+        Assert.assertEquals(errorMessage, Target.SIZE_IN_BYTES, serialized.length);
+        Target deserialized = Target.deserialize(new ByteArrayInputStream(serialized));
+        Assert.assertEquals(errorMessage, target, deserialized);
+        Assert.assertEquals(errorMessage, target.hashCode(), deserialized.hashCode());
+    }
+}